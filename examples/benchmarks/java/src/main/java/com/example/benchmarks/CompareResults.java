@@ -0,0 +1,104 @@
+package com.example.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Compares two JMH result files written with "-rf json", such as results/baseline.json and a new run, and exits with
+// status 1 when a benchmark got slower or allocates more per operation than the threshold allows.
+//
+//   java -cp target/benchmarks.jar com.example.benchmarks.CompareResults results/baseline.json results/current.json [percent]
+public class CompareResults {
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+    // Allocations are exact, but a few bytes per operation come and go with the JIT
+    private static final double ALLOCATION_SLACK_BYTES = 16;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults <baseline.json> <current.json> [threshold percent, default 10]");
+            System.exit(2);
+        }
+        Map<String, JsonNode> baseline = read(args[0]);
+        Map<String, JsonNode> current = read(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.10;
+
+        int regressions = 0;
+        System.out.printf("%-100s %14s %14s %8s %12s %12s%n", "Benchmark", "Baseline", "Current", "Change", "Base B/op", "Cur B/op");
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            JsonNode after = entry.getValue();
+            if (before == null) {
+                System.out.printf("%-100s %14s %14.1f %8s%n", entry.getKey(), "-", score(after), "new");
+                continue;
+            }
+            double scoreBefore = score(before);
+            double scoreAfter = score(after);
+            double change = (scoreAfter - scoreBefore) / scoreBefore;
+            // Only a change beyond both the threshold and the measurement errors counts as a regression
+            double errors = error(before) + error(after);
+            boolean slower = change > threshold && scoreAfter - scoreBefore > errors;
+
+            double allocationBefore = allocation(before);
+            double allocationAfter = allocation(after);
+            boolean allocates = allocationBefore >= 0 && allocationAfter >= 0
+                    && allocationAfter - allocationBefore > Math.max(ALLOCATION_SLACK_BYTES, allocationBefore * threshold);
+
+            System.out.printf("%-100s %14.1f %14.1f %+7.1f%% %12s %12s%s%n", entry.getKey(), scoreBefore, scoreAfter,
+                    change * 100, bytes(allocationBefore), bytes(allocationAfter),
+                    slower || allocates ? "  REGRESSION" : "");
+            if (slower || allocates) {
+                regressions++;
+            }
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name)) {
+                System.out.printf("%-100s %14.1f %14s %8s%n", name, score(baseline.get(name)), "-", "missing");
+            }
+        }
+
+        System.out.println(regressions == 0 ? "No regressions" : regressions + " regressions");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    // Results by benchmark name and parameters, such as "SendPathBenchmarks.encodeReusedFixedBuffer bodySize=256"
+    private static Map<String, JsonNode> read(String file) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(new File(file))) {
+            String benchmark = result.get("benchmark").asText();
+            StringBuilder name = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+            JsonNode params = result.get("params");
+            if (params != null) {
+                for (Iterator<Map.Entry<String, JsonNode>> it = params.fields(); it.hasNext(); ) {
+                    Map.Entry<String, JsonNode> param = it.next();
+                    name.append(' ').append(param.getKey()).append('=').append(param.getValue().asText());
+                }
+            }
+            results.put(name.toString(), result);
+        }
+        return results;
+    }
+
+    private static double score(JsonNode result) {
+        return result.path("primaryMetric").path("score").asDouble();
+    }
+
+    private static double error(JsonNode result) {
+        double error = result.path("primaryMetric").path("scoreError").asDouble(0);
+        return Double.isNaN(error) ? 0 : error;
+    }
+
+    // Bytes allocated per operation, -1 when the run was made without "-prof gc"
+    private static double allocation(JsonNode result) {
+        JsonNode metric = result.path("secondaryMetrics").path(ALLOCATION);
+        return metric.isMissingNode() ? -1 : metric.path("score").asDouble();
+    }
+
+    private static String bytes(double allocation) {
+        return allocation < 0 ? "-" : String.format("%.0f", allocation);
+    }
+}
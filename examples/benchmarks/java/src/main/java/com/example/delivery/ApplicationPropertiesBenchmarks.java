@@ -0,0 +1,41 @@
+package com.example.delivery;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// The JSON work around the application properties. The example parsed MESSAGE_APPLICATION_PROPERTIES_JSON and
+// serialised the sorted properties for every message, SendPath now does both once.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ApplicationPropertiesBenchmarks {
+    // Application properties as set with MESSAGE_APPLICATION_PROPERTIES_JSON in example.sh
+    static final String PROPERTIES_JSON = "{\"messageType\": \"TEST\", \"publisherId\": \"XX99999\", "
+            + "\"publicationId\": \"XX99999:TEST\", \"originatingCountry\": \"XX\", \"protocolVersion\": \"TEST:0.0.0\", "
+            + "\"quadTree\": \",1004,\"}";
+
+    private Map<String, Object> properties;
+
+    @Setup
+    public void setup() throws Exception {
+        properties = parse();
+    }
+
+    @Benchmark
+    public Map<String, Object> parse() throws Exception {
+        return Main.objectMapper.readValue(PROPERTIES_JSON, new TypeReference<Map<String, Object>>() {});
+    }
+
+    // The properties in sorted order for the "Sending message" log line
+    @Benchmark
+    public String formatSorted() throws Exception {
+        return Main.objectMapper.writeValueAsString(new TreeMap<>(properties));
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.subscription;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.Symbol;
+import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
+import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.messaging.MessageAnnotations;
+import org.apache.qpid.proton.amqp.messaging.Properties;
+import org.apache.qpid.proton.message.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+// Receive path of the subscription example: decoding a received message, extracting its application properties and
+// creation time. "decodeAndExtract" is the path of ReceiverHandler with MESSAGE_CONSUMER_THREADS 0, the "view"
+// benchmarks the path with the in-place view of the consumer pipeline.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceivePathBenchmarks {
+    // Application properties as sent by the delivery example with example.sh
+    static final String PROPERTIES_JSON = "{\"messageType\": \"TEST\", \"publisherId\": \"XX99999\", "
+            + "\"publicationId\": \"XX99999:TEST\", \"originatingCountry\": \"XX\", \"protocolVersion\": \"TEST:0.0.0\", "
+            + "\"quadTree\": \",1004,\"}";
+
+    private byte[] encoded;
+    private int encodedSize;
+    private ByteBuffer receiveBuffer;
+    private Main.MessageView view;
+    private Main.ReceiverMetrics metrics;
+
+    @Setup
+    public void setup() throws Exception {
+        // The per message log line is measured separately, it would dominate the decode path
+        Main.logger.setLevel(Level.OFF);
+
+        Map<String, Object> properties = Main.objectMapper.readValue(PROPERTIES_JSON, new TypeReference<Map<String, Object>>() {});
+        Message message = Message.Factory.create();
+        message.setBody(new Data(new Binary("Hello World! Message #1 at 12:00:00".getBytes(StandardCharsets.US_ASCII))));
+        message.setApplicationProperties(new ApplicationProperties(properties));
+        long nanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        Properties messageProperties = new Properties();
+        messageProperties.setCreationTime(new Date(TimeUnit.NANOSECONDS.toMillis(nanos)));
+        message.setProperties(messageProperties);
+        Map<Symbol, Object> annotations = new HashMap<>();
+        annotations.put(Main.CreationTime.ANNOTATION, nanos);
+        message.setMessageAnnotations(new MessageAnnotations(annotations));
+        encoded = new byte[1024];
+        encodedSize = message.encode(encoded, 0, encoded.length);
+
+        receiveBuffer = ByteBuffer.allocate(1024);
+        receiveBuffer.put(encoded, 0, encodedSize);
+        view = new Main.MessageView();
+        metrics = new Main.ReceiverMetrics("benchmark");
+    }
+
+    // Proton decodes the whole message, then the properties and creation time are read from it
+    @Benchmark
+    public void decodeAndExtract() {
+        Main.processMessage(encoded, encodedSize, metrics);
+    }
+
+    // The view locates the sections in place and only decodes the application properties
+    @Benchmark
+    public Map<String, Object> viewAndExtract() {
+        view.wrap(receiveBuffer, encodedSize);
+        metrics.recordEndToEnd(view.messageType(), view.creationTimeNanos());
+        return view.applicationProperties();
+    }
+
+    // The view without decoding the application properties, as when no consumer selector needs them
+    @Benchmark
+    public long viewCreationTimeOnly() {
+        view.wrap(receiveBuffer, encodedSize);
+        metrics.recordEndToEnd(view.messageType(), view.creationTimeNanos());
+        return view.body().remaining();
+    }
+
+    // Serialising the properties in sorted order for the sampled "Message received" log line
+    @Benchmark
+    public String formatSortedProperties() {
+        view.wrap(receiveBuffer, encodedSize);
+        return new Main.SortedProperties(view.applicationProperties()).toString();
+    }
+}
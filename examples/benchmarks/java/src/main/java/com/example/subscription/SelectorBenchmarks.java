@@ -0,0 +1,44 @@
+package com.example.subscription;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Selectors of the consumers. A selector is parsed once when the router is set up and evaluated against the
+// application properties of every message.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SelectorBenchmarks {
+    // A selector on the identifying properties, and one that also needs the quadtree match
+    @Param({"messageType = 'TEST' AND originatingCountry IN ('NL', 'XX')",
+            "messageType = 'TEST' AND quadTree LIKE '%,1004%'"})
+    String selector;
+
+    private Main.Expression expression;
+    private Function<String, Object> lookup;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, Object> properties = Main.objectMapper.readValue(ReceivePathBenchmarks.PROPERTIES_JSON,
+                new TypeReference<Map<String, Object>>() {});
+        expression = Main.SelectorParser.parse(selector);
+        lookup = properties::get;
+    }
+
+    @Benchmark
+    public Main.Expression parse() {
+        return Main.SelectorParser.parse(selector);
+    }
+
+    @Benchmark
+    public Object evaluate() {
+        return expression.evaluate(lookup);
+    }
+}
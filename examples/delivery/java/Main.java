@@ -1,17 +1,35 @@
 package com.example;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sun.net.httpserver.HttpServer;
 import okhttp3.*;
 import org.apache.qpid.proton.Proton;
 import org.apache.qpid.proton.amqp.Binary;
+import org.apache.qpid.proton.amqp.Symbol;
+import org.apache.qpid.proton.amqp.UnsignedByte;
+import org.apache.qpid.proton.amqp.UnsignedInteger;
+import org.apache.qpid.proton.amqp.UnsignedShort;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
 import org.apache.qpid.proton.amqp.messaging.Data;
+import org.apache.qpid.proton.amqp.messaging.MessageAnnotations;
+import org.apache.qpid.proton.amqp.messaging.Properties;
+import org.apache.qpid.proton.amqp.messaging.Rejected;
 import org.apache.qpid.proton.amqp.messaging.Source;
 import org.apache.qpid.proton.amqp.messaging.Target;
+import org.apache.qpid.proton.amqp.transport.DeliveryState;
+import org.apache.qpid.proton.codec.ReadableBuffer;
+import org.apache.qpid.proton.codec.WritableBuffer;
 import org.apache.qpid.proton.engine.BaseHandler;
 import org.apache.qpid.proton.engine.Connection;
 import org.apache.qpid.proton.engine.Delivery;
+import org.apache.qpid.proton.engine.EndpointState;
 import org.apache.qpid.proton.engine.Event;
 import org.apache.qpid.proton.engine.Link;
 import org.apache.qpid.proton.engine.Sasl;
@@ -28,6 +46,10 @@ import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
@@ -35,21 +57,61 @@ import javax.net.ssl.X509TrustManager;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.cert.CertificateFactory;
-import java.text.SimpleDateFormat;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 import java.util.logging.ConsoleHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 public class Main {
     private static final Logger logger = Logger.getLogger(Main.class.getName());
@@ -62,9 +124,19 @@ public class Main {
     private static final String ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM = getEnv("ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM", "pem_with_x509_certificate_chain_and_private_key");
     private static final String CA_CERTIFICATE_PEM = getEnv("CA_CERTIFICATE_PEM", "pem_with_x509_certificate");
     private static final String MESSAGE_APPLICATION_PROPERTIES_JSON = getEnv("MESSAGE_APPLICATION_PROPERTIES_JSON", "message_application_properties_json");
-
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String MESSAGE_SEND_MODE = getEnv("MESSAGE_SEND_MODE", "interval");
+    private static final int ACTOR_API_POLL_INTERVAL = Integer.parseInt(getEnv("ACTOR_API_POLL_INTERVAL", "10"));
+    private static final String MESSAGE_RATE_LIMIT_POLICY = getEnv("MESSAGE_RATE_LIMIT_POLICY", "queue");
+    private static final long MESSAGE_BATCH_DELAY_MICROS = Long.parseLong(getEnv("MESSAGE_BATCH_DELAY_MICROS", "0"));
+    private static final int MESSAGE_BATCH_MAX_BYTES = Integer.parseInt(getEnv("MESSAGE_BATCH_MAX_BYTES", "16384"));
+    private static final String MESSAGE_SPOOL_DIR = getEnv("MESSAGE_SPOOL_DIR", "");
+    private static final int METRICS_PORT = Integer.parseInt(getEnv("METRICS_PORT", "0"));
+    private static final String LOG_MODE = getEnv("LOG_MODE", "sync");
+    private static final int LOG_MESSAGE_SAMPLE_RATE = Integer.parseInt(getEnv("LOG_MESSAGE_SAMPLE_RATE", "1"));
+
+    static final ObjectMapper objectMapper = new ObjectMapper();
     private static OkHttpClient httpClient;
+    private static final UsagePolicyInterceptor usagePolicy = new UsagePolicyInterceptor();
 
     private static String getEnv(String key, String defaultValue) {
         String value = System.getenv(key);
@@ -76,43 +148,33 @@ public class Main {
         return String.format("https://%s:%s/%s/%s", ACTOR_API_HOST, ACTOR_API_PORT, ACTOR_COMMON_NAME, endpoint);
     }
 
-    private static Response apiGet(String endpoint) throws IOException {
-        Request request = new Request.Builder()
-                .url(apiUrl(endpoint))
-                .build();
-        return httpClient.newCall(request).execute();
+    // Completes with the delivery, or with null when it doesn't exist
+    private static CompletableFuture<DeliveryResource> apiGetDeliveryAsync(String id) {
+        return apiGetAsync("deliveries/" + id, DELIVERY_READER);
     }
 
-    private static Response apiPost(String endpoint, String jsonData) throws IOException {
-        RequestBody body = RequestBody.create(jsonData, MediaType.parse("application/json"));
+    // Completes with the created delivery
+    private static CompletableFuture<DeliveryResource> apiCreateDeliveryAsync() {
+        Map<String, Object> jsonData = new HashMap<>();
+        jsonData.put("selector", ACTOR_API_DELIVERY_SELECTOR);
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(jsonData);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        RequestBody body = RequestBody.create(json, MediaType.parse("application/json"));
         Request request = new Request.Builder()
-                .url(apiUrl(endpoint))
+                .url(apiUrl("deliveries"))
                 .post(body)
                 .build();
-        return httpClient.newCall(request).execute();
-    }
-
-    private static Response apiDelete(String endpoint) throws IOException {
-        Request request = new Request.Builder()
-                .url(apiUrl(endpoint))
-                .delete()
-                .build();
-        return httpClient.newCall(request).execute();
-    }
-
-    private static Response apiGetDelivery(String id) throws IOException {
-        return apiGet("deliveries/" + id);
-    }
-
-    private static Response apiDeleteDelivery(String id) throws IOException {
-        return apiDelete("deliveries/" + id);
-    }
-
-    private static Response apiCreateDelivery() throws IOException {
-        Map<String, Object> jsonData = new HashMap<>();
-        jsonData.put("selector", ACTOR_API_DELIVERY_SELECTOR);
-        String json = objectMapper.writeValueAsString(jsonData);
-        return apiPost("deliveries", json);
+        return apiCallAsync(request, response -> {
+            if (!response.isSuccessful()) {
+                throw new IOException("Creating the delivery failed with HTTP status " + response.code() + ": "
+                        + response.body().string());
+            }
+            return DELIVERY_READER.readValue(response.body().byteStream());
+        });
     }
 
     // ======== SSL Configuration for HTTP Client ========
@@ -178,30 +240,383 @@ public class Main {
                 .sslSocketFactory(sslContext.getSocketFactory(), (X509TrustManager) tmf.getTrustManagers()[0])
                 .connectTimeout(30, TimeUnit.SECONDS)
                 .readTimeout(30, TimeUnit.SECONDS)
+                .addInterceptor(usagePolicy)
+                .build();
+    }
+
+    // ======== USAGE POLICY ========
+    // Keeps the Actor API calls within the usage policy: GET and DELETE at most once per 5 seconds per path, POST at
+    // most once per 30 seconds per path. A call that comes too early waits for its turn. Concurrent GET calls for the
+    // same path share a single request, every caller gets its own copy of the response. Asynchronous calls reserve
+    // their turn before they are enqueued, see reserveTurn, and pass the interceptor untouched.
+    private static class UsagePolicyInterceptor implements Interceptor {
+        private static final long GET_DELETE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+        private static final long POST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+        // Earliest time the next call may be made, by method and path
+        private final Map<String, AtomicLong> nextAllowed = new ConcurrentHashMap<>();
+        private final Map<String, CompletableFuture<BufferedResponse>> inFlight = new ConcurrentHashMap<>();
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            if (request.tag(UsagePolicyInterceptor.class) == this) {
+                return chain.proceed(request);
+            }
+            String key = keyOf(request);
+            if (!"GET".equals(request.method())) {
+                awaitTurn(key, intervalOf(request));
+                return chain.proceed(request);
+            }
+
+            CompletableFuture<BufferedResponse> call = new CompletableFuture<>();
+            CompletableFuture<BufferedResponse> existing = inFlight.putIfAbsent(key, call);
+            if (existing != null) {
+                return join(existing).copyFor(request);
+            }
+            try {
+                awaitTurn(key, intervalOf(request));
+                // Buffer the body so the response can be handed to every caller waiting for it
+                BufferedResponse response = new BufferedResponse(chain.proceed(request));
+                call.complete(response);
+                return response.copyFor(request);
+            } catch (IOException | RuntimeException e) {
+                call.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, call);
+            }
+        }
+
+        // Reserves the next slot for an asynchronous request and returns the number of nanoseconds until it has been
+        // reached. The request must then be sent as returned by reserved, so the interceptor doesn't wait again.
+        long reserveTurn(Request request) {
+            return reserveSlot(keyOf(request), intervalOf(request));
+        }
+
+        Request reserved(Request request) {
+            return request.newBuilder().tag(UsagePolicyInterceptor.class, this).build();
+        }
+
+        // Reserves the next slot for the method and path and sleeps until it has been reached
+        private void awaitTurn(String key, long intervalNanos) throws IOException {
+            long waitNanos = reserveSlot(key, intervalNanos);
+            if (waitNanos > 0) {
+                logger.fine("Delaying " + key + " by " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms (usage policy)");
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for usage policy");
+                }
+            }
+        }
+
+        // Returns the number of nanoseconds until the reserved slot
+        private long reserveSlot(String key, long intervalNanos) {
+            AtomicLong next = nextAllowed.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+            long now = System.nanoTime();
+            long current;
+            long slot;
+            do {
+                current = next.get();
+                slot = Math.max(now, current);
+            } while (!next.compareAndSet(current, slot + intervalNanos));
+            return slot - now;
+        }
+
+        private static String keyOf(Request request) {
+            return request.method() + " " + request.url().encodedPath();
+        }
+
+        private static long intervalOf(Request request) {
+            return "POST".equals(request.method()) ? POST_INTERVAL_NANOS : GET_DELETE_INTERVAL_NANOS;
+        }
+
+        private static BufferedResponse join(CompletableFuture<BufferedResponse> call) throws IOException {
+            try {
+                return call.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for shared request");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+    }
+
+    private static class BufferedResponse {
+        private final Response response;
+        private final byte[] body;
+        private final MediaType contentType;
+
+        BufferedResponse(Response response) throws IOException {
+            try (ResponseBody responseBody = response.body()) {
+                this.response = response;
+                this.body = responseBody != null ? responseBody.bytes() : new byte[0];
+                this.contentType = responseBody != null ? responseBody.contentType() : null;
+            }
+        }
+
+        Response copyFor(Request request) {
+            return response.newBuilder()
+                    .request(request)
+                    .body(ResponseBody.create(body, contentType))
+                    .build();
+        }
+    }
+
+    // ======== ASYNC ACTOR API ========
+    // The Actor API functions don't block. Calls are enqueued on the dispatcher and connection pool of the shared
+    // HTTP client, so an outstanding call doesn't hold a thread. A call that comes
+    // too early for the usage policy is enqueued after a delay instead of sleeping, and concurrent GET calls for the
+    // same path share a single request and its parsed response.
+    private static final Map<String, CompletableFuture<?>> asyncGetsInFlight = new ConcurrentHashMap<>();
+
+    private interface ResponseParser<T> {
+        T parse(Response response) throws IOException;
+    }
+
+    private static <T> CompletableFuture<T> apiCallAsync(Request request, ResponseParser<T> parser) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Call call = httpClient.newCall(usagePolicy.reserved(request));
+        Callback callback = new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    result.complete(parser.parse(response));
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+        long waitNanos = usagePolicy.reserveTurn(request);
+        if (waitNanos > 0) {
+            logger.fine("Delaying " + request.method() + " " + request.url().encodedPath() + " by "
+                    + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms (usage policy)");
+            CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS).execute(() -> call.enqueue(callback));
+        } else {
+            call.enqueue(callback);
+        }
+        return result;
+    }
+
+    // Completes with the parsed response, or with null when the resource doesn't exist
+    @SuppressWarnings("unchecked")
+    private static <T> CompletableFuture<T> apiGetAsync(String endpoint, ObjectReader reader) {
+        CompletableFuture<T> call = new CompletableFuture<>();
+        CompletableFuture<T> existing = (CompletableFuture<T>) asyncGetsInFlight.putIfAbsent(endpoint, call);
+        if (existing != null) {
+            return existing;
+        }
+        Request request = new Request.Builder()
+                .url(apiUrl(endpoint))
                 .build();
+        apiCallAsync(request, response -> {
+            if (response.code() == 404) {
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("GET " + endpoint + " failed with HTTP status " + response.code());
+            }
+            return reader.<T>readValue(response.body().byteStream());
+        }).whenComplete((value, e) -> {
+            asyncGetsInFlight.remove(endpoint, call);
+            if (e != null) {
+                call.completeExceptionally(e);
+            } else {
+                call.complete(value);
+            }
+        });
+        return call;
+    }
+
+    // Gets the resource again every interval while its status is "REQUESTED". Completes with the first response with
+    // another status, or with null when the resource doesn't exist. The gets are scheduled on the executor, no thread
+    // sleeps in between.
+    private static <T extends ApiResource> CompletableFuture<T> apiGetWhileRequestedAsync(
+            Supplier<CompletableFuture<T>> get, long intervalMillis, ScheduledExecutorService executor) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        getWhileRequested(get, intervalMillis, executor, result);
+        return result;
+    }
+
+    private static <T extends ApiResource> void getWhileRequested(Supplier<CompletableFuture<T>> get,
+            long intervalMillis, ScheduledExecutorService executor, CompletableFuture<T> result) {
+        get.get().whenComplete((resource, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else if (resource != null && "REQUESTED".equals(resource.getStatus())) {
+                executor.schedule(() -> getWhileRequested(get, intervalMillis, executor, result),
+                        intervalMillis, TimeUnit.MILLISECONDS);
+            } else {
+                result.complete(resource);
+            }
+        });
+    }
+
+    // ======== ACTOR API MODELS ========
+    // Immutable views of the Actor API resources, see docs/openapi.yml. The readers are built once and parse straight
+    // from the response stream. Properties that are not used by the example are ignored. The delivery resource is
+    // named DeliveryResource to keep it apart from the AMQP Delivery.
+    private static final ObjectReader DELIVERY_READER = objectMapper.readerFor(DeliveryResource.class);
+    private static final ObjectReader DELIVERY_LIST_READER =
+            objectMapper.readerFor(new TypeReference<List<DeliveryResource>>() {});
+
+    private interface ApiResource {
+        String getId();
+
+        String getStatus();
+
+        // Null when the API didn't report it
+        Long getLastUpdatedTimestamp();
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private static final class DeliveryResource implements ApiResource {
+        private final String id;
+        private final String selector;
+        private final String status;
+        private final List<DeliveryEndpoint> endpoints;
+        private final Long lastUpdatedTimestamp;
+
+        @JsonCreator
+        DeliveryResource(@JsonProperty("id") String id,
+                 @JsonProperty("selector") String selector,
+                 @JsonProperty("status") String status,
+                 @JsonProperty("endpoints") List<DeliveryEndpoint> endpoints,
+                 @JsonProperty("lastUpdatedTimestamp") Long lastUpdatedTimestamp) {
+            this.id = id;
+            this.selector = selector;
+            this.status = status;
+            this.endpoints = endpoints != null ? List.copyOf(endpoints) : Collections.emptyList();
+            this.lastUpdatedTimestamp = lastUpdatedTimestamp;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        public String getSelector() {
+            return selector;
+        }
+
+        @Override
+        public String getStatus() {
+            return status;
+        }
+
+        public List<DeliveryEndpoint> getEndpoints() {
+            return endpoints;
+        }
+
+        @Override
+        public Long getLastUpdatedTimestamp() {
+            return lastUpdatedTimestamp;
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private static final class DeliveryEndpoint {
+        private final String host;
+        private final int port;
+        private final String target;
+        private final String selector;
+        private final Integer maxBandwidth;
+        private final Integer maxMessageRate;
+
+        @JsonCreator
+        DeliveryEndpoint(@JsonProperty("host") String host,
+                         @JsonProperty("port") int port,
+                         @JsonProperty("target") String target,
+                         @JsonProperty("selector") String selector,
+                         @JsonProperty("maxBandwidth") Integer maxBandwidth,
+                         @JsonProperty("maxMessageRate") Integer maxMessageRate) {
+            this.host = host;
+            this.port = port;
+            this.target = target;
+            this.selector = selector;
+            this.maxBandwidth = maxBandwidth;
+            this.maxMessageRate = maxMessageRate;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public String getSelector() {
+            return selector;
+        }
+
+        // Null when the endpoint has no limit
+        public Integer getMaxBandwidth() {
+            return maxBandwidth;
+        }
+
+        // Null when the endpoint has no limit
+        public Integer getMaxMessageRate() {
+            return maxMessageRate;
+        }
+
+        // Identifies the endpoint across status responses
+        String key() {
+            return host + ":" + port + "/" + target;
+        }
+
+        @Override
+        public String toString() {
+            return key();
+        }
     }
 
     // ======== AMQP 1.0 CLIENT ========
     private static class SenderHandler extends BaseHandler {
-        private final Map<String, Object> endpoint;
-        private final AtomicInteger messageCount = new AtomicInteger(0);
+        private final DeliveryEndpoint endpoint;
+        private final SenderGroup group;
+        // Rate limits, batching, the spool, delivery tracking and reconnects, see SendPath
+        private final SendPath sendPath;
+        private final StringBuilder bodyText = new StringBuilder(64);
         private Sender sender;
-        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
         private SSLContext sslContext;
+        private Connection connection;
+        private boolean closed;
 
-        public SenderHandler(Map<String, Object> endpoint) {
+        public SenderHandler(DeliveryEndpoint endpoint, SenderGroup group) throws IOException {
             this.endpoint = endpoint;
+            this.group = group;
+            this.sendPath = new SendPath(endpoint, group, this);
         }
 
         public void setSslContext(SSLContext sslContext) {
             this.sslContext = sslContext;
         }
 
+        SendPath sendPath() {
+            return sendPath;
+        }
+
         @Override
         public void onConnectionInit(Event event) {
             logger.fine("Connection initialized");
-            Connection connection = event.getConnection();
-            connection.setHostname((String) endpoint.get("host"));
+            connection = event.getConnection();
+            connection.setHostname(endpoint.getHost());
             connection.setContainer("java-delivery-example");
             connection.open();
         }
@@ -229,6 +644,9 @@ public class Main {
         @Override
         public void onConnectionRemoteOpen(Event event) {
             logger.fine("Connection opened");
+            int remoteMaxFrameSize = event.getTransport().getRemoteMaxFrameSize();
+            logger.fine("Remote max frame size: " + remoteMaxFrameSize);
+            sendPath.setRemoteMaxFrameSize(remoteMaxFrameSize);
             Connection connection = event.getConnection();
             Session session = connection.session();
             session.open();
@@ -239,7 +657,7 @@ public class Main {
             logger.fine("Session opened");
             Session session = event.getSession();
             Target target = new Target();
-            String targetAddress = (String) endpoint.get("target");
+            String targetAddress = endpoint.getTarget();
             target.setAddress(targetAddress);
             sender = session.sender(targetAddress);
             sender.setTarget(target);
@@ -256,70 +674,88 @@ public class Main {
                 logger.severe("Condition: " + link.getRemoteCondition().getCondition());
                 logger.severe("Description: " + link.getRemoteCondition().getDescription());
             }
+            if (sendPath.unsettledCount() > 0) {
+                logger.severe("Unsettled messages: " + sendPath.unsettledCount());
+            }
+            // The link can't be attached again on this connection, closing it makes the send path reconnect
+            if (!closed) {
+                link.close();
+                event.getConnection().close();
+            }
         }
 
         @Override
         public void onLinkRemoteOpen(Event event) {
             logger.fine("Sender link opened, ready to send messages");
-            if (event.getLink() instanceof Sender && event.getSender().getCredit() > 0) {
-                sendMessage();
+            if (event.getLink() instanceof Sender) {
+                sendPath.linkOpened(event.getReactor(), event.getSender());
             }
         }
 
         @Override
-        public void onDelivery(Event event) {
-            Delivery delivery = event.getDelivery();
-            if (delivery.getRemoteState() != null) {
-                delivery.settle();
-                // Schedule next message after 1 second
-                event.getReactor().schedule(1000, this);
+        public void onLinkFlow(Event event) {
+            if (event.getLink() instanceof Sender) {
+                sendPath.creditChanged();
             }
         }
 
         @Override
-        public void onTimerTask(Event event) {
-            if (sender != null && sender.getCredit() > 0) {
-                sendMessage();
+        public void onDelivery(Event event) {
+            Delivery delivery = event.getDelivery();
+            if (delivery.getRemoteState() != null) {
+                // Settles the delivery and sends the next message
+                sendPath.settled(delivery);
             }
         }
 
-        private void sendMessage() {
+        boolean sendMessage() {
             try {
                 // Increment message counter
-                int count = messageCount.incrementAndGet();
+                int count = group.nextMessageNumber();
                 // Create dynamic message content with counter and timestamp
-                String bodyText = String.format("Hello World! Message #%d at %s", count, timeFormat.format(new Date()));
-
-                // Create message
-                Message message = Message.Factory.create();
-                message.setBody(new Data(new Binary(bodyText.getBytes(StandardCharsets.UTF_8))));
-
-                // Parse and set application properties
-                Map<String, Object> properties = objectMapper.readValue(MESSAGE_APPLICATION_PROPERTIES_JSON,
-                        new TypeReference<Map<String, Object>>() {
-                        });
-                message.setApplicationProperties(new ApplicationProperties(properties));
-
-                // Format properties for logging
-                String sortedProperties = objectMapper.writeValueAsString(new TreeMap<>(properties));
-                logger.info(String.format("Sending message: body='%s', properties=%s", bodyText, sortedProperties));
-
-                // Send message
-                byte[] encodedMessage = new byte[1024];
-                int encodedSize = message.encode(encodedMessage, 0, encodedMessage.length);
-                Delivery delivery = sender.delivery(new byte[0]);
-                sender.send(encodedMessage, 0, encodedSize);
-                sender.advance();
+                bodyText.setLength(0);
+                bodyText.append("Hello World! Message #").append(count).append(" at ").append(sendPath.currentTime());
+
+                // The per message log line is skipped when pipelining, it would dominate the send path
+                if (!sendPath.isPipelined() && sampleMessageLog()) {
+                    logger.info("Sending message: body='" + bodyText + "', properties=" + sendPath.sortedProperties());
+                }
+
+                // Send message, as far as the rate limits of the endpoint allow
+                return sendPath.send(count, bodyText);
             } catch (Exception e) {
                 logger.log(Level.WARNING, "Error sending message", e);
                 e.printStackTrace();
+                return false;
+            }
+        }
+
+        // Closes the connection of an endpoint that is no longer part of the delivery. The sender is closed locally
+        // as well, so nothing more is sent from the spool, which another endpoint adopts.
+        void close() {
+            closed = true;
+            sendPath.close();
+            if (sender != null) {
+                sender.close();
+            }
+            if (connection != null) {
+                connection.close();
             }
         }
 
         @Override
         public void onTransportError(Event event) {
+            sendPath.transportError();
             logger.log(Level.SEVERE, "Transport error: " + event.getTransport().getCondition());
         }
+
+        // Follows every lost connection and every failed attempt to connect, but also a connection closed on purpose
+        @Override
+        public void onTransportClosed(Event event) {
+            sender = null;
+            connection = null;
+            sendPath.connectionLost(event.getReactor());
+        }
     }
 
     private static SSLContext createSSLContext() throws Exception {
@@ -382,32 +818,32 @@ public class Main {
         return sslContext;
     }
 
-    private static void amqpConnectAndPublish(Map<String, Object> endpoint) throws Exception {
+    private static void amqpConnectAndPublish(String deliveryId, List<DeliveryEndpoint> endpoints,
+            ScheduledExecutorService poller) throws Exception {
         // Configure SSL
         SSLContext sslContext = createSSLContext();
 
-        // Create handler
-        SenderHandler handler = new SenderHandler(endpoint);
-        handler.setSslContext(sslContext);
-
-        // Create reactor
-        Reactor reactor = Proton.reactor(handler);
+        // Create reactor, the sender group manages the connections and spreads the messages over them
+        SenderGroup group = new SenderGroup(sslContext, deliveryId);
+        Reactor reactor = Proton.reactor(group);
+        group.reconcile(reactor, endpoints);
 
-        // Connect to host with SSL and SASL configuration
-        String host = (String) endpoint.get("host");
-        int port = ((Number) endpoint.get("port")).intValue();
-
-        // Use reactor's connection method with proper SSL/SASL setup
-        reactor.connectionToHost(host, port, handler);
+        // Keep polling the delivery status and apply endpoint changes while the reactor runs
+        StatusCache<DeliveryResource> statusCache = new StatusCache<>("deliveries", DELIVERY_LIST_READER, DELIVERY_READER, poller);
+        statusCache.addListener(deliveryId, new DeliveryMonitor(deliveryId, group));
+        // A random offset spreads the polls of many resources over the interval instead of bursting
+        long intervalMillis = TimeUnit.SECONDS.toMillis(ACTOR_API_POLL_INTERVAL);
+        long offsetMillis = ThreadLocalRandom.current().nextLong(intervalMillis);
+        statusCache.start(intervalMillis + offsetMillis, intervalMillis);
 
         // Run reactor
         reactor.run();
     }
 
     // ======== CREATE AND PUBLISH INTO A DELIVERY ========
-    private static void logJson(String message, Map<String, Object> jsonDict) {
+    private static void logJson(String message, Object json) {
         try {
-            String jsonString = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(jsonDict);
+            String jsonString = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(json);
             logger.info(message + ": " + jsonString);
         } catch (Exception e) {
             logger.warning("Error formatting JSON: " + e.getMessage());
@@ -415,107 +851,2910 @@ public class Main {
     }
 
     private static void createAndPublish() {
+        // Gets the delivery status, first until the delivery is created and then while the reactor runs. The poller
+        // thread only handles the responses, the calls themselves don't occupy it.
+        ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "delivery-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
         try {
+            // The calls are chained, the main thread only waits for the outcome and runs the AMQP 1.0 client next
             // Step 1: create a delivery using the actor API
-            try (Response deliveryCreateResponse = apiCreateDelivery()) {
-                String responseBody = deliveryCreateResponse.body().string();
-                Map<String, Object> deliveryCreateResponseJson = objectMapper.readValue(responseBody, 
-                    new TypeReference<Map<String, Object>>() {});
-                logJson("Delivery create response", deliveryCreateResponseJson);
-
-                if (deliveryCreateResponse.isSuccessful()) {
-                    // Step 2: get the delivery status
-                    String deliveryId = (String) deliveryCreateResponseJson.get("id");
-                    Map<String, Object> deliveryStatusResponseJson;
-                    String deliveryStatus;
-                    
-                    try (Response deliveryStatusResponse = apiGetDelivery(deliveryId)) {
-                        deliveryStatusResponseJson = objectMapper.readValue(deliveryStatusResponse.body().string(),
-                            new TypeReference<Map<String, Object>>() {});
-                        logJson("Delivery " + deliveryId + " status response", deliveryStatusResponseJson);
-                        deliveryStatus = (String) deliveryStatusResponseJson.get("status");
-                    }
+            DeliveryResource delivery = apiCreateDeliveryAsync().thenCompose(deliveryCreateResponse -> {
+                logJson("Delivery create response", deliveryCreateResponse);
+
+                // Step 2: get the delivery status
+                String deliveryId = deliveryCreateResponse.getId();
+
+                // Step 3: while the delivery status is "REQUESTED", keep getting the status
+                // every 2 seconds, the gets are scheduled on the poller and nothing waits in between
+                return Main.<DeliveryResource>apiGetWhileRequestedAsync(() -> apiGetDeliveryAsync(deliveryId), 2000, poller);
+            }).get();
+            if (delivery == null) {
+                logger.warning("The delivery no longer exists");
+                return;
+            }
+            String deliveryId = delivery.getId();
+            logJson("Delivery " + deliveryId + " status response", delivery);
+
+            // Step 4a: if the status is "CREATED", get the endpoint information from the status response and use the endpoint with the AMQP 1.0 client
+            if ("CREATED".equals(delivery.getStatus())) {
+                // A delivery with a shard count above one has multiple endpoints, messages are spread over all of them
+                List<DeliveryEndpoint> endpoints = delivery.getEndpoints();
+                logger.info("Using endpoints " + endpoints);
+                amqpConnectAndPublish(deliveryId, endpoints, poller);
+            }
+            // Step 4b: if the status is not "CREATED" warn log and do nothing
+            else {
+                logger.warning("Unable to use delivery " + deliveryId);
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "An exception occurred while running createAndPublish", e);
+            e.printStackTrace();
+        } finally {
+            poller.shutdownNow();
+        }
+    }
 
-                    // Step 3: while the delivery status is "REQUESTED", keep getting the status
-                    while ("REQUESTED".equals(deliveryStatus)) {
-                        Thread.sleep(2000);
-                        try (Response deliveryStatusResponse = apiGetDelivery(deliveryId)) {
-                            deliveryStatusResponseJson = objectMapper.readValue(deliveryStatusResponse.body().string(),
-                                new TypeReference<Map<String, Object>>() {});
-                            deliveryStatus = (String) deliveryStatusResponseJson.get("status");
-                        }
-                    }
+    // ======== CONNECTION MANAGEMENT ========
+    // Keeps the status of all resources of one kind up to date with a single list call per poll instead of one call
+    // per resource. Listeners are only notified of resources whose lastUpdatedTimestamp changed since the previous
+    // list, or that disappeared from it. A registered resource missing from the list is fetched by its id before it
+    // is reported as deleted, as a freshly created resource may not be listed yet.
+    private static class StatusCache<T extends ApiResource> {
+        private final String path;
+        private final ObjectReader listReader;
+        private final ObjectReader reader;
+        private final ScheduledExecutorService executor;
+        private final Map<String, Consumer<T>> listeners = new ConcurrentHashMap<>();
+        private final Map<String, Long> lastUpdated = new HashMap<>();
+
+        // Listeners are notified on the given executor, which must be single threaded
+        StatusCache(String path, ObjectReader listReader, ObjectReader reader, ScheduledExecutorService executor) {
+            this.path = path;
+            this.listReader = listReader;
+            this.reader = reader;
+            this.executor = executor;
+        }
 
-                    logJson("Delivery " + deliveryId + " status response", deliveryStatusResponseJson);
+        void addListener(String id, Consumer<T> listener) {
+            listeners.put(id, listener);
+        }
 
-                    // Step 4a: if the status is "CREATED", get the endpoint information from the status response and use the endpoint with the AMQP 1.0 client
-                    if ("CREATED".equals(deliveryStatus)) {
-                        // NOTE to keep things simple, this code assumes that this response contains exactly one endpoint!
-                        List<Map<String, Object>> endpoints = (List<Map<String, Object>>) deliveryStatusResponseJson.get("endpoints");
-                        Map<String, Object> endpoint = endpoints.get(0);
-                        logger.info("Using endpoint " + endpoint);
-                        amqpConnectAndPublish(endpoint);
-                    }
-                    // Step 4b: if the status is not "CREATED" warn log and do nothing
-                    else {
-                        logger.warning("Unable to use delivery " + deliveryId);
-                    }
+        void removeListener(String id) {
+            listeners.remove(id);
+        }
+
+        // Refreshes the status every interval, the next refresh is only scheduled once the previous one completed
+        void start(long initialDelayMillis, long intervalMillis) {
+            executor.schedule(() -> refresh().whenComplete((ignored, e) -> {
+                if (e != null) {
+                    logger.log(Level.WARNING, "Error refreshing " + path, e);
+                }
+                if (!executor.isShutdown()) {
+                    start(intervalMillis, intervalMillis);
+                }
+            }), initialDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        CompletableFuture<Void> refresh() {
+            return Main.<List<T>>apiGetAsync(path, listReader).thenComposeAsync(this::update, executor);
+        }
+
+        private CompletableFuture<Void> update(List<T> resources) {
+            Set<String> listed = new HashSet<>();
+            for (T resource : resources) {
+                String id = resource.getId();
+                listed.add(id);
+                Long current = resource.getLastUpdatedTimestamp();
+                boolean known = lastUpdated.containsKey(id);
+                Long previous = lastUpdated.put(id, current);
+                // Without a timestamp a change cannot be ruled out
+                if (!known || current == null || !current.equals(previous)) {
+                    notifyListener(id, resource);
                 }
             }
-        } catch (Exception e) {
-            logger.log(Level.WARNING, "An exception occurred while running createAndPublish", e);
-            e.printStackTrace();
+            lastUpdated.keySet().retainAll(listed);
+
+            List<CompletableFuture<Void>> fetches = new ArrayList<>();
+            for (String id : listeners.keySet()) {
+                if (!listed.contains(id)) {
+                    fetches.add(Main.<T>apiGetAsync(path + "/" + id, reader)
+                            .thenAcceptAsync(resource -> notifyListener(id, resource), executor));
+                }
+            }
+            return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0]));
+        }
+
+        private void notifyListener(String id, T resource) {
+            Consumer<T> listener = listeners.get(id);
+            if (listener != null) {
+                listener.accept(resource);
+            }
         }
     }
 
-    // ======== STARTUP AND RUN LOOP ========
-    private static void dumpConfig() {
-        logger.info("ACTOR_API_HOST: '" + ACTOR_API_HOST + "'");
-        logger.info("ACTOR_API_PORT: '" + ACTOR_API_PORT + "'");
-        logger.info("ACTOR_API_DELIVERY_SELECTOR: '" + ACTOR_API_DELIVERY_SELECTOR + "'");
-        logger.info("ACTOR_COMMON_NAME: '" + ACTOR_COMMON_NAME + "'");
-        logger.info("ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM: '" + ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM + "'");
-        logger.info("CA_CERTIFICATE_PEM: '" + CA_CERTIFICATE_PEM + "'");
-        logger.info("MESSAGE_APPLICATION_PROPERTIES_JSON: '" + MESSAGE_APPLICATION_PROPERTIES_JSON + "'");
+    // Applies status changes of the delivery as required by the connection management rules of the interchange and
+    // passes its endpoints to the sender group, which connects to added and disconnects from removed endpoints.
+    private static class DeliveryMonitor implements Consumer<DeliveryResource> {
+        private final String deliveryId;
+        private final SenderGroup group;
+        private String lastStatus = "CREATED";
+
+        DeliveryMonitor(String deliveryId, SenderGroup group) {
+            this.deliveryId = deliveryId;
+            this.group = group;
+        }
+
+        @Override
+        public void accept(DeliveryResource delivery) {
+            if (delivery == null) {
+                logger.warning("Delivery " + deliveryId + " no longer exists, stopping");
+                group.stop();
+                return;
+            }
+            String status = delivery.getStatus();
+            if (!status.equals(lastStatus)) {
+                logJson("Delivery " + deliveryId + " status changed", delivery);
+                lastStatus = status;
+            }
+
+            if ("CREATED".equals(status)) {
+                group.updateEndpoints(delivery.getEndpoints());
+            } else {
+                group.updateEndpoints(Collections.emptyList());
+            }
+        }
     }
 
-    private static void configureLogging() {
-        // Configure console handler
-        ConsoleHandler consoleHandler = new ConsoleHandler();
-        consoleHandler.setLevel(Level.ALL);
-        consoleHandler.setFormatter(new SimpleFormatter() {
-            private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    // Paces the reconnect attempts for one endpoint with exponential backoff. The delay is picked at random from the
+    // upper half of the backoff, so clients that lost their connections at the same moment don't all reconnect at the
+    // same moment too. Keeps the reconnect count and downtime of the endpoint. Only used by the reactor thread.
+    private static class ReconnectSupervisor {
+        private static final long INITIAL_BACKOFF_MILLIS = 500;
+        private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+        private final String name;
+        private int attempts;
+        private long lostAt = -1;
+        private long reconnects;
+        private long downtimeNanos;
+
+        ReconnectSupervisor(String name) {
+            this.name = name;
+        }
 
-            @Override
-            public synchronized String format(LogRecord record) {
-                return String.format("%s %s %s%n",
-                        dateFormat.format(new Date(record.getMillis())),
-                        record.getLevel().getName(),
-                        record.getMessage());
+        // Called when the connection is lost or an attempt to connect failed, returns the delay before the next attempt
+        int connectionLost() {
+            if (lostAt < 0) {
+                lostAt = System.nanoTime();
             }
-        });
+            attempts++;
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempts - 1, 16));
+            return (int) (backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+        }
 
-        // Configure logger
-        logger.setLevel(Level.ALL);
-        logger.setUseParentHandlers(false);
-        logger.addHandler(consoleHandler);
+        // Called when the link is open, which ends the downtime that started with the lost connection. Returns the
+        // downtime in nanoseconds, or 0 when the link was opened on the first connection.
+        long connected() {
+            if (lostAt < 0) {
+                return 0;
+            }
+            long downtime = System.nanoTime() - lostAt;
+            reconnects++;
+            downtimeNanos += downtime;
+            logger.info("Reconnected to " + name + " after " + attempts + " attempts, down for "
+                    + TimeUnit.NANOSECONDS.toMillis(downtime) + " ms (" + reconnects + " reconnects, "
+                    + TimeUnit.NANOSECONDS.toMillis(downtimeNanos) + " ms downtime in total)");
+            lostAt = -1;
+            attempts = 0;
+            return downtime;
+        }
 
-        // Set Proton library logging to INFO
-        Logger protonLogger = Logger.getLogger("org.apache.qpid.proton");
-        protonLogger.setLevel(Level.INFO);
+        long reconnects() {
+            return reconnects;
+        }
+
+        // Includes the current downtime when the endpoint is not connected
+        long downtimeMillis() {
+            long downtime = downtimeNanos + (lostAt >= 0 ? System.nanoTime() - lostAt : 0);
+            return TimeUnit.NANOSECONDS.toMillis(downtime);
+        }
     }
 
-    public static void main(String[] args) {
-        configureLogging();
-        logger.info("Starting application");
-        dumpConfig();
+    // Spreads the outgoing messages over the senders of all delivery endpoints. The endpoints are reconciled with the
+    // latest delivery status: connections are opened for added endpoints and closed for removed ones, the others are
+    // left untouched. Endpoint updates may come from any thread, they are applied on the reactor thread.
+    private static class SenderGroup extends BaseHandler {
+        private final SSLContext sslContext;
+        private final Map<String, SenderHandler> handlers = new LinkedHashMap<>();
+        private final List<SenderHandler> rotation = new ArrayList<>();
+        private final AtomicInteger messageCount = new AtomicInteger(0);
+        private final AtomicReference<List<DeliveryEndpoint>> endpointUpdate = new AtomicReference<>();
+        private volatile Reactor reactor;
+        private volatile boolean stopRequested;
+        private boolean stopped;
+        private boolean started;
+        private int next;
+        private final boolean spooled = !MESSAGE_SPOOL_DIR.isEmpty();
+        // The spools of the endpoints of this delivery, another delivery may have a different selector
+        private final Path spoolRoot;
+
+        // Keeps the reactor running while the delivery temporarily has no endpoints
+        private final BaseHandler keepAlive = new BaseHandler() {
+            @Override
+            public void onTimerTask(Event event) {
+                if (!stopped) {
+                    event.getReactor().schedule(1000, this);
+                }
+            }
+        };
 
-        try {
-            initializeHttpClient();
-            createAndPublish();
+        SenderGroup(SSLContext sslContext, String deliveryId) {
+            this.sslContext = sslContext;
+            this.spoolRoot = OutboundSpool.rootFor(deliveryId);
+        }
+
+        int nextMessageNumber() {
+            return messageCount.incrementAndGet();
+        }
+
+        Path spoolRoot() {
+            return spoolRoot;
+        }
+
+        // Called from the poller thread with the endpoints of the latest delivery status
+        void updateEndpoints(List<DeliveryEndpoint> endpoints) {
+            endpointUpdate.set(endpoints);
+            wakeup();
+        }
+
+        // Called from the poller thread when the delivery no longer exists
+        void stop() {
+            stopRequested = true;
+            wakeup();
+        }
+
+        private void wakeup() {
+            Reactor reactor = this.reactor;
+            if (reactor != null) {
+                reactor.wakeup();
+            }
+        }
+
+        @Override
+        public void onReactorInit(Event event) {
+            reactor = event.getReactor();
+            event.getReactor().schedule(1000, keepAlive);
+            if (spooled && !"pipelined".equals(MESSAGE_SEND_MODE)) {
+                // Messages are spooled while the connections are still being opened
+                start(event.getReactor());
+            }
+        }
+
+        @Override
+        public void onReactorQuiesced(Event event) {
+            List<DeliveryEndpoint> endpoints = endpointUpdate.getAndSet(null);
+            if (endpoints != null && !stopped) {
+                reconcile(event.getReactor(), endpoints);
+            }
+            if (stopRequested && !stopped) {
+                stopped = true;
+                reconcile(event.getReactor(), Collections.emptyList());
+            }
+        }
+
+        // Opens connections for new endpoints and closes the connections of removed endpoints
+        void reconcile(Reactor reactor, List<DeliveryEndpoint> endpoints) {
+            Set<String> keys = new HashSet<>();
+            for (DeliveryEndpoint endpoint : endpoints) {
+                String key = endpoint.key();
+                keys.add(key);
+                if (!handlers.containsKey(key)) {
+                    try {
+                        connect(reactor, key, endpoint);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Unable to connect to endpoint " + key, e);
+                    }
+                }
+            }
+            Iterator<Map.Entry<String, SenderHandler>> iterator = handlers.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, SenderHandler> entry = iterator.next();
+                if (!keys.contains(entry.getKey())) {
+                    logger.info("Endpoint removed, closing connection to " + entry.getKey());
+                    entry.getValue().close();
+                    rotation.remove(entry.getValue());
+                    iterator.remove();
+                }
+            }
+            next = rotation.isEmpty() ? 0 : next % rotation.size();
+            if (spooled && !rotation.isEmpty()) {
+                adoptOrphanedSpools();
+            }
+        }
+
+        // The messages left in the spools of endpoints of this delivery that are gone are handed to the current
+        // endpoints in turn, so they are still sent. A spool that is open in another process is left alone.
+        private void adoptOrphanedSpools() {
+            Set<Path> inUse = new HashSet<>();
+            for (SenderHandler handler : rotation) {
+                inUse.add(handler.sendPath().spoolDirectory());
+            }
+            try {
+                int index = 0;
+                for (Path orphan : OutboundSpool.others(spoolRoot, inUse)) {
+                    rotation.get(index++ % rotation.size()).sendPath().adoptSpool(orphan);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to adopt the spools of removed endpoints", e);
+            }
+        }
+
+        private void connect(Reactor reactor, String key, DeliveryEndpoint endpoint) throws IOException {
+            logger.info("Endpoint added, connecting to " + key);
+
+            // Create handler
+            SenderHandler handler = new SenderHandler(endpoint, this);
+            handler.setSslContext(sslContext);
+            handlers.put(key, handler);
+            rotation.add(handler);
+
+            // Connect to host with SSL and SASL configuration
+            String host = endpoint.getHost();
+            int port = endpoint.getPort();
+
+            // Use reactor's connection method with proper SSL/SASL setup
+            reactor.connectionToHost(host, port, handler);
+        }
+
+        // In "interval" mode the first link with credit starts the one message per second sequence
+        void start(Reactor reactor) {
+            if (!started) {
+                started = true;
+                if (!sendNext()) {
+                    scheduleNext(reactor);
+                }
+            }
+        }
+
+        void scheduleNext(Reactor reactor) {
+            if (!stopped) {
+                reactor.schedule(1000, this);
+            }
+        }
+
+        @Override
+        public void onTimerTask(Event event) {
+            if (!sendNext() || spooled) {
+                // No sender has credit right now, try again later. With a spool messages are produced every second
+                // regardless of the links, the spool holds them until they can be sent.
+                scheduleNext(event.getReactor());
+            }
+        }
+
+        // Sends one message on the next sender with credit, rotating over the endpoints
+        private boolean sendNext() {
+            for (int i = 0; i < rotation.size(); i++) {
+                SenderHandler handler = rotation.get(next);
+                next = (next + 1) % rotation.size();
+                if (handler.sendPath().hasCredit() || handler.sendPath().isSpooled()) {
+                    return handler.sendMessage();
+                }
+            }
+            return false;
+        }
+    }
+
+    // ======== SELECTORS ========
+    // Parser for JMS message selectors (see docs/amqp.md). A selector is compiled once into a tree of expressions
+    // that is evaluated against a property lookup. Evaluation follows the JMS three-valued logic: a truth value is
+    // Boolean.TRUE, Boolean.FALSE or null for unknown. A lookup returns null for an absent property, which makes a
+    // comparison unknown, or UNDETERMINED for a property that may have any value, which also makes IS NULL unknown.
+    private interface Expression {
+        Object evaluate(Function<String, Object> properties);
+    }
+
+    private static final Object UNDETERMINED = new Object();
+
+    // Conjunction of the top level of a selector, its operands are used to narrow down lookups in an index
+    private static final class Conjunction implements Expression {
+        final List<Expression> operands;
+
+        Conjunction(List<Expression> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            Object result = Boolean.TRUE;
+            for (Expression operand : operands) {
+                Object value = operand.evaluate(properties);
+                if (Boolean.FALSE.equals(value)) {
+                    return Boolean.FALSE;
+                }
+                if (!Boolean.TRUE.equals(value)) {
+                    result = null;
+                }
+            }
+            return result;
+        }
+    }
+
+    // Condition "identifier = 'value'" or "identifier IN ('value', ...)"
+    private static final class ValueTest implements Expression {
+        final String identifier;
+        final Set<String> values;
+
+        ValueTest(String identifier, Set<String> values) {
+            this.identifier = identifier;
+            this.values = values;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            Object value = properties.apply(identifier);
+            if (value == null || value == UNDETERMINED) {
+                return null;
+            }
+            return value instanceof String && values.contains(value);
+        }
+    }
+
+    // Condition "identifier LIKE 'pattern'", a quadtree prefix is set for patterns like '%,1004%'
+    private static final class LikeTest implements Expression {
+        final String identifier;
+        final Predicate<String> pattern;
+        final String quadTreePrefix;
+
+        LikeTest(String identifier, Predicate<String> pattern, String quadTreePrefix) {
+            this.identifier = identifier;
+            this.pattern = pattern;
+            this.quadTreePrefix = quadTreePrefix;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            Object value = properties.apply(identifier);
+            if (value instanceof QuadTreeTiles) {
+                return ((QuadTreeTiles) value).like(quadTreePrefix);
+            }
+            if (value == null || value == UNDETERMINED) {
+                return null;
+            }
+            return value instanceof String && pattern.test((String) value);
+        }
+    }
+
+    // Property value of quadtree tiles that are covered, such as the tiles of a capability
+    private static final class QuadTreeTiles {
+        private final List<String> tiles;
+
+        QuadTreeTiles(List<String> tiles) {
+            this.tiles = tiles;
+        }
+
+        // Overlaps when a tile lies within the prefix or the prefix lies within a tile
+        Boolean like(String prefix) {
+            if (prefix == null) {
+                return null;
+            }
+            for (String tile : tiles) {
+                if (tile.startsWith(prefix) || prefix.startsWith(tile)) {
+                    return Boolean.TRUE;
+                }
+            }
+            return Boolean.FALSE;
+        }
+    }
+
+    private static class SelectorParser {
+        private static final Pattern TOKEN = Pattern.compile(
+                "\\s*(?:('(?:[^']|'')*')|(\\d+(?:\\.\\d*)?(?:[eE][+-]?\\d+)?|\\.\\d+(?:[eE][+-]?\\d+)?)"
+                        + "|([\\p{javaJavaIdentifierStart}][\\p{javaJavaIdentifierPart}]*)|(<>|<=|>=|[=<>+\\-*/(),]))");
+        private static final Pattern QUADTREE_PATTERN = Pattern.compile("%,([0-3]+)%");
+
+        private final String selector;
+        private final List<String> tokens = new ArrayList<>();
+        private int position;
+
+        private SelectorParser(String selector) {
+            this.selector = selector;
+            Matcher matcher = TOKEN.matcher(selector);
+            int end = 0;
+            while (end < selector.length() && matcher.find(end) && matcher.start() == end) {
+                tokens.add(selector.substring(matcher.start(), matcher.end()).trim());
+                end = matcher.end();
+            }
+            if (!selector.substring(end).isBlank()) {
+                throw new IllegalArgumentException("Unexpected character at " + end + " in selector: " + selector);
+            }
+        }
+
+        // An empty selector selects everything
+        static Expression parse(String selector) {
+            SelectorParser parser = new SelectorParser(selector);
+            if (parser.tokens.isEmpty()) {
+                return properties -> Boolean.TRUE;
+            }
+            Expression expression = parser.parseOr();
+            if (parser.position < parser.tokens.size()) {
+                throw parser.error("Unexpected '" + parser.tokens.get(parser.position) + "'");
+            }
+            return expression;
+        }
+
+        private Expression parseOr() {
+            Expression left = parseAnd();
+            while (accept("OR")) {
+                Expression l = left;
+                Expression r = parseAnd();
+                left = properties -> or(l.evaluate(properties), r.evaluate(properties));
+            }
+            return left;
+        }
+
+        private Expression parseAnd() {
+            List<Expression> operands = new ArrayList<>();
+            operands.add(parseNot());
+            while (accept("AND")) {
+                operands.add(parseNot());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Conjunction(operands);
+        }
+
+        private Expression parseNot() {
+            if (accept("NOT")) {
+                Expression operand = parseNot();
+                return properties -> not(operand.evaluate(properties));
+            }
+            return parseComparison();
+        }
+
+        private Expression parseComparison() {
+            Expression left = parseAdditive();
+            boolean negated = accept("NOT");
+            if (accept("BETWEEN")) {
+                Expression low = parseAdditive();
+                expect("AND");
+                Expression high = parseAdditive();
+                Expression between = properties -> {
+                    Object value = left.evaluate(properties);
+                    return and(compare(value, low.evaluate(properties), Comparison.GREATER_EQUAL),
+                            compare(value, high.evaluate(properties), Comparison.LESS_EQUAL));
+                };
+                return negated ? properties -> not(between.evaluate(properties)) : between;
+            }
+            if (accept("IN")) {
+                String identifier = identifierOf(left);
+                expect("(");
+                Set<String> values = new HashSet<>();
+                do {
+                    values.add(parseString());
+                } while (accept(","));
+                expect(")");
+                ValueTest in = new ValueTest(identifier, values);
+                return negated ? properties -> not(in.evaluate(properties)) : in;
+            }
+            if (accept("LIKE")) {
+                String identifier = identifierOf(left);
+                String pattern = parseString();
+                Character escape = null;
+                if (accept("ESCAPE")) {
+                    String escapeText = parseString();
+                    if (escapeText.length() != 1) {
+                        throw error("ESCAPE must be a single character");
+                    }
+                    escape = escapeText.charAt(0);
+                }
+                Matcher quadTree = QUADTREE_PATTERN.matcher(pattern);
+                LikeTest like = new LikeTest(identifier, likePattern(pattern, escape),
+                        escape == null && quadTree.matches() ? quadTree.group(1) : null);
+                return negated ? properties -> not(like.evaluate(properties)) : like;
+            }
+            if (negated) {
+                throw error("Expected BETWEEN, IN or LIKE after NOT");
+            }
+            if (accept("IS")) {
+                boolean notNull = accept("NOT");
+                expect("NULL");
+                return properties -> {
+                    Object value = left.evaluate(properties);
+                    if (value == UNDETERMINED) {
+                        return null;
+                    }
+                    return notNull == (value != null);
+                };
+            }
+            for (Comparison comparison : Comparison.values()) {
+                if (accept(comparison.operator)) {
+                    Expression right = parseAdditive();
+                    if (comparison == Comparison.EQUAL) {
+                        ValueTest test = valueTest(left, right);
+                        if (test != null) {
+                            return test;
+                        }
+                    }
+                    if (right instanceof Literal) {
+                        Object constant = ((Literal) right).value;
+                        return properties -> compare(left.evaluate(properties), constant, comparison);
+                    }
+                    return properties -> compare(left.evaluate(properties), right.evaluate(properties), comparison);
+                }
+            }
+            return left;
+        }
+
+        private Expression parseAdditive() {
+            Expression left = parseMultiplicative();
+            while (true) {
+                char operator = accept("+") ? '+' : accept("-") ? '-' : 0;
+                if (operator == 0) {
+                    return left;
+                }
+                Expression l = left;
+                Expression r = parseMultiplicative();
+                left = properties -> arithmetic(l.evaluate(properties), r.evaluate(properties), operator);
+            }
+        }
+
+        private Expression parseMultiplicative() {
+            Expression left = parseUnary();
+            while (true) {
+                char operator = accept("*") ? '*' : accept("/") ? '/' : 0;
+                if (operator == 0) {
+                    return left;
+                }
+                Expression l = left;
+                Expression r = parseUnary();
+                left = properties -> arithmetic(l.evaluate(properties), r.evaluate(properties), operator);
+            }
+        }
+
+        private Expression parseUnary() {
+            if (accept("-")) {
+                Expression operand = parseUnary();
+                return properties -> arithmetic(0L, operand.evaluate(properties), '-');
+            }
+            if (accept("+")) {
+                return parseUnary();
+            }
+            return parsePrimary();
+        }
+
+        private Expression parsePrimary() {
+            if (accept("(")) {
+                Expression expression = parseOr();
+                expect(")");
+                return expression;
+            }
+            String token = next();
+            if (token.startsWith("'")) {
+                String value = unquote(token);
+                return new Literal(value);
+            }
+            if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+                Object value = token.matches("\\d+") ? (Object) Long.parseLong(token) : (Object) Double.parseDouble(token);
+                return new Literal(value);
+            }
+            if ("TRUE".equalsIgnoreCase(token) || "FALSE".equalsIgnoreCase(token)) {
+                return new Literal(Boolean.parseBoolean(token));
+            }
+            if (!Character.isJavaIdentifierStart(token.charAt(0)) || isKeyword(token)) {
+                throw error("Unexpected '" + token + "'");
+            }
+            return new Identifier(token);
+        }
+
+        private String parseString() {
+            String token = next();
+            if (!token.startsWith("'")) {
+                throw error("Expected a string instead of '" + token + "'");
+            }
+            return unquote(token);
+        }
+
+        private static ValueTest valueTest(Expression left, Expression right) {
+            if (left instanceof Identifier && right instanceof Literal && ((Literal) right).value instanceof String) {
+                return new ValueTest(((Identifier) left).name, Set.of((String) ((Literal) right).value));
+            }
+            if (right instanceof Identifier && left instanceof Literal && ((Literal) left).value instanceof String) {
+                return new ValueTest(((Identifier) right).name, Set.of((String) ((Literal) left).value));
+            }
+            return null;
+        }
+
+        private String identifierOf(Expression expression) {
+            if (!(expression instanceof Identifier)) {
+                throw error("Expected an identifier");
+            }
+            return ((Identifier) expression).name;
+        }
+
+        // Patterns with a single wildcard at the start or end are matched without a regular expression, as selectors
+        // like "quadTree LIKE '%,1004%'" or "publicationId LIKE 'NL%'" are by far the most common
+        private static Predicate<String> likePattern(String pattern, Character escape) {
+            if (escape == null && pattern.indexOf('_') < 0) {
+                int wildcards = pattern.length() - pattern.replace("%", "").length();
+                String text = pattern.replace("%", "");
+                boolean leading = pattern.startsWith("%");
+                boolean trailing = pattern.length() > 1 && pattern.endsWith("%");
+                if (wildcards == 0) {
+                    return text::equals;
+                }
+                if (wildcards == 1 && leading) {
+                    return value -> value.endsWith(text);
+                }
+                if (wildcards == 1 && trailing) {
+                    return value -> value.startsWith(text);
+                }
+                if (wildcards == 2 && leading && trailing) {
+                    return value -> value.contains(text);
+                }
+            }
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (escape != null && c == escape && i + 1 < pattern.length()) {
+                    regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                } else if (c == '%') {
+                    regex.append(".*");
+                } else if (c == '_') {
+                    regex.append('.');
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            Pattern compiled = Pattern.compile(regex.toString(), Pattern.DOTALL);
+            return value -> compiled.matcher(value).matches();
+        }
+
+        private static String unquote(String token) {
+            return token.substring(1, token.length() - 1).replace("''", "'");
+        }
+
+        private static boolean isKeyword(String token) {
+            switch (token.toUpperCase()) {
+                case "AND":
+                case "OR":
+                case "NOT":
+                case "BETWEEN":
+                case "IN":
+                case "LIKE":
+                case "ESCAPE":
+                case "IS":
+                case "NULL":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean accept(String expected) {
+            if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(expected)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String expected) {
+            if (!accept(expected)) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private String next() {
+            if (position >= tokens.size()) {
+                throw error("Unexpected end");
+            }
+            return tokens.get(position++);
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at token " + position + " in selector: " + selector);
+        }
+
+        private static Object not(Object value) {
+            return value instanceof Boolean ? !(Boolean) value : null;
+        }
+
+        private static Object and(Object left, Object right) {
+            if (Boolean.FALSE.equals(left) || Boolean.FALSE.equals(right)) {
+                return Boolean.FALSE;
+            }
+            return Boolean.TRUE.equals(left) && Boolean.TRUE.equals(right) ? Boolean.TRUE : null;
+        }
+
+        private static Object or(Object left, Object right) {
+            if (Boolean.TRUE.equals(left) || Boolean.TRUE.equals(right)) {
+                return Boolean.TRUE;
+            }
+            return Boolean.FALSE.equals(left) && Boolean.FALSE.equals(right) ? Boolean.FALSE : null;
+        }
+
+        // Values of different types are not equal, only numbers can be ordered
+        private static Object compare(Object left, Object right, Comparison comparison) {
+            if (left == null || right == null || left == UNDETERMINED || right == UNDETERMINED) {
+                return null;
+            }
+            if (left instanceof Number && right instanceof Number) {
+                int order = compareNumbers((Number) left, (Number) right);
+                switch (comparison) {
+                    case EQUAL:
+                        return order == 0;
+                    case NOT_EQUAL:
+                        return order != 0;
+                    case LESS:
+                        return order < 0;
+                    case GREATER:
+                        return order > 0;
+                    case LESS_EQUAL:
+                        return order <= 0;
+                    default:
+                        return order >= 0;
+                }
+            }
+            if (comparison == Comparison.EQUAL) {
+                return left.equals(right);
+            }
+            if (comparison == Comparison.NOT_EQUAL) {
+                return !left.equals(right);
+            }
+            return Boolean.FALSE;
+        }
+
+        private static int compareNumbers(Number left, Number right) {
+            if (isIntegral(left) && isIntegral(right)) {
+                return Long.compare(left.longValue(), right.longValue());
+            }
+            return Double.compare(left.doubleValue(), right.doubleValue());
+        }
+
+        private static boolean isIntegral(Number number) {
+            return number instanceof Long || number instanceof Integer || number instanceof Short
+                    || number instanceof Byte || number instanceof UnsignedInteger || number instanceof UnsignedShort
+                    || number instanceof UnsignedByte;
+        }
+
+        private static Object arithmetic(Object left, Object right, char operator) {
+            if (!(left instanceof Number) || !(right instanceof Number)) {
+                return null;
+            }
+            Number l = (Number) left;
+            Number r = (Number) right;
+            if (isIntegral(l) && isIntegral(r) && !(operator == '/' && r.longValue() == 0)) {
+                switch (operator) {
+                    case '+':
+                        return l.longValue() + r.longValue();
+                    case '-':
+                        return l.longValue() - r.longValue();
+                    case '*':
+                        return l.longValue() * r.longValue();
+                    default:
+                        return l.longValue() / r.longValue();
+                }
+            }
+            switch (operator) {
+                case '+':
+                    return l.doubleValue() + r.doubleValue();
+                case '-':
+                    return l.doubleValue() - r.doubleValue();
+                case '*':
+                    return l.doubleValue() * r.doubleValue();
+                default:
+                    return l.doubleValue() / r.doubleValue();
+            }
+        }
+    }
+
+    private enum Comparison {
+        EQUAL("="), NOT_EQUAL("<>"), LESS("<"), GREATER(">"), LESS_EQUAL("<="), GREATER_EQUAL(">=");
+
+        final String operator;
+
+        Comparison(String operator) {
+            this.operator = operator;
+        }
+    }
+
+    private static final class Literal implements Expression {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            return value;
+        }
+    }
+
+    private static final class Identifier implements Expression {
+        final String name;
+
+        Identifier(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            return properties.apply(name);
+        }
+    }
+
+    // Returns false only when the selector could be parsed and the application properties of the messages don't match
+    // it, as the interchange would not accept such messages on the delivery
+    private static boolean checkMessageSelector() {
+        try {
+            Expression selector = SelectorParser.parse(ACTOR_API_DELIVERY_SELECTOR);
+            Map<String, Object> properties = objectMapper.readValue(MESSAGE_APPLICATION_PROPERTIES_JSON,
+                    new TypeReference<Map<String, Object>>() {});
+            if (!Boolean.TRUE.equals(selector.evaluate(properties::get))) {
+                logger.severe("Message application properties " + MESSAGE_APPLICATION_PROPERTIES_JSON
+                        + " don't match delivery selector '" + ACTOR_API_DELIVERY_SELECTOR + "', not publishing");
+                return false;
+            }
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Unable to check the message application properties against the delivery selector", e);
+            return true;
+        }
+    }
+
+    // ======== SEND PATH SUPPORT ========
+    // Everything between producing a message and handing it to the sender link of one endpoint: the message template
+    // and its encoding, the rate limits, batching, the spool, the deliveries in flight and reconnecting after a lost
+    // connection. SenderHandler forwards the link events, all methods run on the reactor thread.
+    private static class SendPath {
+        private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+        private final DeliveryEndpoint endpoint;
+        private final SenderGroup group;
+        // Produces the messages, and connects again after a lost connection
+        private final SenderHandler handler;
+        private Reactor reactor;
+        private Sender sender;
+        // Deliveries sent but not yet settled, by delivery tag (only used in "pipelined" mode or with a spool)
+        private final InFlightTable unsettled = new InFlightTable();
+        private final DeliveryTags deliveryTags = new DeliveryTags();
+        private final boolean pipelined;
+        private final boolean tracked;
+        // Durable queue between producing and sending messages, null when MESSAGE_SPOOL_DIR is not set
+        private final OutboundSpool spool;
+
+        // Message template, parsed once and reused for every message
+        private final Message message = Message.Factory.create();
+        private final String sortedProperties;
+        // Creation time of the message, stamped into the reused properties and annotations before encoding
+        private final Date creationTime = new Date(0);
+        private final Map<Symbol, Object> creationAnnotation = new HashMap<>(2);
+        private byte[] bodyBytes = new byte[64];
+        private final GrowableWritableBuffer encodeBuffer = new GrowableWritableBuffer(1024);
+        private int remoteMaxFrameSize;
+        private long timeSecond = -1;
+        private String timeText;
+
+        // Rate shaping state, a message over the endpoint limits is held in the encode buffer until the shaper allows it
+        private final RateShaper shaper;
+        private final boolean rejectExcess;
+        private boolean holding;
+        private long heldTag;
+        private int heldSize;
+        private boolean resumeScheduled;
+        private boolean reporting;
+        private boolean closed;
+
+        // Batching state, null when MESSAGE_BATCH_DELAY_MICROS is 0 and every message is sent as soon as it is encoded
+        private final SendBatch batch;
+        private boolean flushScheduled;
+
+        // Counters, gauges and the settle latency of this endpoint, from encoding a message until it is settled
+        private final SenderMetrics metrics;
+        private final long[] reportedSettleLatency = new long[LatencyHistogram.BUCKETS];
+        // Time the "interval" message awaiting settlement was encoded
+        private long sentAt;
+
+        // Reconnect state. Deliveries left unsettled by a lost connection are sent again, oldest first, once the link
+        // is open again (only when tracked, an "interval" message that wasn't settled is simply not repeated). Spooled
+        // deliveries the interchange released are queued behind them.
+        private final ReconnectSupervisor reconnect;
+        private long[] resendTags = new long[0];
+        private int resendIndex;
+        private int resendCount;
+        private boolean awaitingSettlement;
+
+        // Connects again with the handler, which opens the session and the link again when the connection is open
+        private final BaseHandler reconnectTimer = new BaseHandler() {
+            @Override
+            public void onTimerTask(Event event) {
+                if (!closed) {
+                    event.getReactor().connectionToHost(endpoint.getHost(), endpoint.getPort(), handler);
+                }
+            }
+        };
+
+        // Sends the held message, or continues filling the credit, once the shaper has tokens again
+        private final BaseHandler resume = new BaseHandler() {
+            @Override
+            public void onTimerTask(Event event) {
+                resumeScheduled = false;
+                if (closed) {
+                    holding = false;
+                    return;
+                }
+                if (sender == null || sender.getLocalState() != EndpointState.ACTIVE) {
+                    // A held message waits for the link to be opened again
+                    return;
+                }
+                if (holding) {
+                    long waitNanos = shaper.acquire(heldSize);
+                    if (waitNanos > 0) {
+                        scheduleResume(waitNanos);
+                        return;
+                    }
+                    holding = false;
+                    dispatch(heldTag, heldSize);
+                }
+                if (pipelined) {
+                    fillCredit();
+                } else if (spool != null) {
+                    drainSpool();
+                }
+            }
+        };
+
+        // Flushes the batch once its first message has waited MESSAGE_BATCH_DELAY_MICROS, a batch that was flushed
+        // for its size in the meantime is replaced by a younger one that gets the remainder of its delay
+        private final BaseHandler batchFlush = new BaseHandler() {
+            @Override
+            public void onTimerTask(Event event) {
+                flushScheduled = false;
+                if (closed || batch.count() == 0) {
+                    return;
+                }
+                long remaining = TimeUnit.MICROSECONDS.toNanos(MESSAGE_BATCH_DELAY_MICROS) - (System.nanoTime() - batch.queuedAt(0));
+                if (remaining > 0) {
+                    flushScheduled = true;
+                    event.getReactor().schedule(millisUntil(remaining), this);
+                } else {
+                    flushBatch();
+                }
+            }
+        };
+
+        // Logs the actual send rate against the limits of the endpoint
+        private final BaseHandler rateReport = new BaseHandler() {
+            @Override
+            public void onTimerTask(Event event) {
+                if (!closed) {
+                    logger.info("Endpoint " + endpoint + " send rate: " + shaper.report()
+                            + (batch != null ? ", " + batch.report() : "")
+                            + ", settle latency " + metrics.settleLatency.reportSince(reportedSettleLatency)
+                            + ", " + reconnect.reconnects() + " reconnects, " + reconnect.downtimeMillis() + " ms downtime");
+                    event.getReactor().schedule(RateShaper.REPORT_INTERVAL_MILLIS, this);
+                }
+            }
+        };
+
+        SendPath(DeliveryEndpoint endpoint, SenderGroup group, SenderHandler handler) throws IOException {
+            this.endpoint = endpoint;
+            this.group = group;
+            this.handler = handler;
+            this.pipelined = "pipelined".equals(MESSAGE_SEND_MODE);
+            this.shaper = RateShaper.forEndpoint(endpoint);
+            this.rejectExcess = "reject".equals(MESSAGE_RATE_LIMIT_POLICY);
+            this.batch = MESSAGE_BATCH_DELAY_MICROS > 0 ? new SendBatch(MESSAGE_BATCH_MAX_BYTES) : null;
+            this.reconnect = new ReconnectSupervisor(endpoint.key());
+            this.metrics = MetricsRegistry.register(endpoint.key());
+            this.spool = MESSAGE_SPOOL_DIR.isEmpty() ? null : OutboundSpool.open(OutboundSpool.directoryFor(group.spoolRoot(), endpoint));
+            this.tracked = pipelined || spool != null;
+
+            // Parse the application properties once, they are the same for every message
+            Map<String, Object> properties = objectMapper.readValue(MESSAGE_APPLICATION_PROPERTIES_JSON,
+                    new TypeReference<Map<String, Object>>() {
+                    });
+            message.setApplicationProperties(new ApplicationProperties(Collections.unmodifiableMap(properties)));
+            this.sortedProperties = objectMapper.writeValueAsString(new TreeMap<>(properties));
+            Properties messageProperties = new Properties();
+            messageProperties.setCreationTime(creationTime);
+            message.setProperties(messageProperties);
+            message.setMessageAnnotations(new MessageAnnotations(creationAnnotation));
+        }
+
+        boolean isPipelined() {
+            return pipelined;
+        }
+
+        String sortedProperties() {
+            return sortedProperties;
+        }
+
+        int unsettledCount() {
+            return unsettled.size();
+        }
+
+        void setRemoteMaxFrameSize(int remoteMaxFrameSize) {
+            this.remoteMaxFrameSize = remoteMaxFrameSize;
+        }
+
+        void transportError() {
+            metrics.transportErrors.increment();
+        }
+
+        void linkOpened(Reactor reactor, Sender sender) {
+            this.reactor = reactor;
+            this.sender = sender;
+            long downtimeNanos = reconnect.connected();
+            if (downtimeNanos > 0) {
+                metrics.reconnects.increment();
+                metrics.downtimeNanos.add(downtimeNanos);
+            }
+            metrics.connected = true;
+            if (holding) {
+                scheduleResume(0);
+            }
+            if (batch != null && batch.count() > 0) {
+                flushBatch();
+            }
+            if (!reporting) {
+                reporting = true;
+                reactor.schedule(RateShaper.REPORT_INTERVAL_MILLIS, rateReport);
+            }
+            if (sender.getCredit() > 0) {
+                if (pipelined) {
+                    fillCredit();
+                } else {
+                    group.start(reactor);
+                    if (spool != null) {
+                        drainSpool();
+                    }
+                }
+            }
+            publishGauges();
+        }
+
+        // In pipelined mode every credit granted by the interchange is used immediately
+        void creditChanged() {
+            if (pipelined) {
+                fillCredit();
+            } else if (spool != null) {
+                drainSpool();
+            }
+            publishGauges();
+        }
+
+        void settled(Delivery delivery) {
+            if (tracked) {
+                byte[] tag = delivery.getTag();
+                long tagValue = DeliveryTags.value(tag);
+                DeliveryState outcome = delivery.getRemoteState();
+                // A released or modified spooled message is sent again, it stays in the in-flight table and in the
+                // spool until it is accepted, or rejected as it would only be rejected again
+                boolean resend = spool != null && !(outcome instanceof Accepted) && !(outcome instanceof Rejected);
+                if (!(outcome instanceof Accepted)) {
+                    metrics.messagesNotAccepted.increment();
+                    logger.warning("Message " + tagValue + " not accepted: " + outcome + (resend ? ", sending it again" : ""));
+                }
+                if (resend) {
+                    queueResend(tagValue);
+                } else {
+                    metrics.settleLatency.record(System.nanoTime() - unsettled.queuedAt(tagValue));
+                    unsettled.remove(tagValue);
+                    if (spool != null) {
+                        spool.acknowledge(tagValue);
+                    }
+                }
+                delivery.settle();
+                deliveryTags.release(tag);
+                if (pipelined) {
+                    fillCredit();
+                } else {
+                    drainSpool();
+                }
+            } else {
+                metrics.settleLatency.record(System.nanoTime() - sentAt);
+                if (!(delivery.getRemoteState() instanceof Accepted)) {
+                    metrics.messagesNotAccepted.increment();
+                }
+                delivery.settle();
+                awaitingSettlement = false;
+                // Schedule next message after 1 second
+                group.scheduleNext(reactor);
+            }
+            publishGauges();
+        }
+
+        // Keeps the deliveries of the lost connection for sending them again and schedules the reconnect
+        void connectionLost(Reactor reactor) {
+            this.reactor = reactor;
+            sender = null;
+            metrics.connected = false;
+            if (closed) {
+                return;
+            }
+            if (tracked && unsettled.size() > 0) {
+                resendTags = unsettled.tags();
+                Arrays.sort(resendTags);
+                resendIndex = 0;
+                resendCount = resendTags.length;
+                logger.warning(unsettled.size() + " unsettled messages will be sent again after reconnecting to " + endpoint);
+            }
+            if (awaitingSettlement) {
+                // The "interval" sequence continues with the next message, on this or another endpoint
+                awaitingSettlement = false;
+                group.scheduleNext(reactor);
+            }
+            publishGauges();
+            int delayMillis = reconnect.connectionLost();
+            logger.warning("Connection to " + endpoint + " lost, reconnecting in " + delayMillis + " ms");
+            reactor.schedule(delayMillis, reconnectTimer);
+        }
+
+        // The gauges are written on the reactor thread when the credit or the unsettled deliveries change
+        private void publishGauges() {
+            metrics.credit = sender != null ? sender.getCredit() : 0;
+            metrics.unsettled = tracked ? unsettled.size() : awaitingSettlement ? 1 : 0;
+        }
+
+        private void fillCredit() {
+            resendUnsettled();
+            if (spool != null) {
+                drainSpool();
+            }
+            while (sender != null && availableCredit() > 0 && !holding && (spool == null || !spool.hasUnsent())) {
+                if (!handler.sendMessage()) {
+                    break;
+                }
+            }
+        }
+
+        boolean hasCredit() {
+            return sender != null && availableCredit() > 0 && sender.getLocalState() == EndpointState.ACTIVE && !holding;
+        }
+
+        // Batched messages don't have a delivery yet, but they will use up credit once the batch is flushed
+        private int availableCredit() {
+            return batch != null ? sender.getCredit() - batch.count() : sender.getCredit();
+        }
+
+        // Stops sending for an endpoint that is no longer part of the delivery and releases its spool
+        void close() {
+            closed = true;
+            MetricsRegistry.unregister(metrics);
+            if (spool != null) {
+                try {
+                    spool.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Unable to close the spool of " + endpoint, e);
+                }
+            }
+        }
+
+        // Sends the messages of a lost connection that are left over from before the reconnect
+        private void resendUnsettled() {
+            while (sender != null && availableCredit() > 0 && resendIndex < resendCount) {
+                resend(resendTags[resendIndex++]);
+            }
+        }
+
+        // Queues a delivery to be sent again, its payload stays in the in-flight table until it is settled for good
+        private void queueResend(long tagValue) {
+            if (resendIndex > 0) {
+                System.arraycopy(resendTags, resendIndex, resendTags, 0, resendCount - resendIndex);
+                resendCount -= resendIndex;
+                resendIndex = 0;
+            }
+            if (resendCount == resendTags.length) {
+                resendTags = Arrays.copyOf(resendTags, Math.max(16, resendCount * 2));
+            }
+            resendTags[resendCount++] = tagValue;
+        }
+
+        // Sends spooled messages as far as the credit and the rate limits allow. A message the shaper holds back stays
+        // in the spool until the resume timer, so with a spool excess messages are always queued and never rejected.
+        private void drainSpool() {
+            resendUnsettled();
+            while (sender != null && sender.getLocalState() == EndpointState.ACTIVE && availableCredit() > 0
+                    && spool.hasUnsent()) {
+                int size = spool.peekLength();
+                long waitNanos = shaper.acquire(size);
+                if (waitNanos > 0) {
+                    if (!resumeScheduled) {
+                        shaper.delayed();
+                    }
+                    scheduleResume(waitNanos);
+                    return;
+                }
+                long sequence = spool.read(encodeBuffer);
+                dispatch(sequence, size);
+            }
+        }
+
+        // The spool keeps the messages produced while there is no link or no credit, "interval" mode keeps producing
+        boolean isSpooled() {
+            return spool != null;
+        }
+
+        Path spoolDirectory() {
+            return OutboundSpool.directoryFor(group.spoolRoot(), endpoint);
+        }
+
+        // Takes over the messages of a spool no endpoint uses any more, they are sent after the ones spooled already
+        void adoptSpool(Path directory) throws IOException {
+            long moved = spool.adopt(directory);
+            if (moved >= 0) {
+                logger.info("Spool " + directory + " adopted by " + endpoint + " with " + moved + " messages left to send");
+                drainSpool();
+            }
+        }
+
+        // Encodes the message with the given body and sends it, unless it exceeds the rate limits of the endpoint
+        boolean send(int count, CharSequence bodyText) throws IOException {
+            int bodyLength = asciiBytes(bodyText);
+            message.setBody(new Data(new Binary(bodyBytes, 0, bodyLength)));
+
+            stampCreationTime();
+            int encodedSize = encodeMessage();
+            if (spool != null) {
+                // The message is stored durably first, then the spool is drained as far as the link allows
+                spool.append(encodeBuffer.array(), 0, encodedSize);
+                drainSpool();
+                return true;
+            }
+
+            long waitNanos = shaper.acquire(encodedSize);
+            if (waitNanos > 0) {
+                scheduleResume(waitNanos);
+                if (rejectExcess) {
+                    shaper.rejected();
+                    if (!pipelined) {
+                        logger.warning("Message #" + count + " rejected, it exceeds the rate limits of " + endpoint);
+                    }
+                    return false;
+                }
+                // The message stays in the encode buffer, nothing else is encoded until it has been sent
+                shaper.delayed();
+                holding = true;
+                heldTag = count;
+                heldSize = encodedSize;
+                return true;
+            }
+            dispatch(count, encodedSize);
+            return true;
+        }
+
+        // Sends the encoded message now, or adds it to the batch when batching is enabled
+        private void dispatch(long tagValue, int encodedSize) {
+            long now = System.nanoTime();
+            if (batch == null) {
+                transmit(tagValue, encodeBuffer.array(), 0, encodedSize, now);
+                return;
+            }
+            batch.add(tagValue, encodeBuffer.array(), encodedSize, now);
+            if (batch.bytes() >= MESSAGE_BATCH_MAX_BYTES) {
+                flushBatch();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                reactor.schedule(millisUntil(TimeUnit.MICROSECONDS.toNanos(MESSAGE_BATCH_DELAY_MICROS)), batchFlush);
+            }
+        }
+
+        // All messages of the batch are sent in one reactor callback, so the transport writes their transfer frames
+        // in one output flush, packed into as few TLS records as possible
+        private void flushBatch() {
+            // Without an open link the batch is kept, it is flushed when the link has been opened again
+            if (sender != null && sender.getLocalState() == EndpointState.ACTIVE) {
+                for (int i = 0; i < batch.count(); i++) {
+                    transmit(batch.tag(i), batch.array(), batch.offset(i), batch.length(i), batch.queuedAt(i));
+                }
+                batch.flushed();
+                batch.clear();
+            }
+        }
+
+        private void transmit(long tagValue, byte[] encoded, int offset, int length, long queuedAt) {
+            Delivery delivery = sender.delivery(tracked ? deliveryTags.acquire(tagValue) : DeliveryTags.EMPTY);
+            // Proton splits the delivery into multiple transfer frames when it exceeds the negotiated max frame size
+            sender.send(encoded, offset, length);
+            sender.advance();
+            metrics.messagesSent.increment();
+            metrics.bytesSent.add(length);
+            if (tracked) {
+                unsettled.put(tagValue, delivery, queuedAt, encoded, offset, length);
+            } else {
+                awaitingSettlement = true;
+                sentAt = queuedAt;
+            }
+        }
+
+        // Sends a delivery of a lost connection again from the payload kept in the in-flight table
+        private void resend(long tagValue) {
+            Delivery delivery = sender.delivery(deliveryTags.acquire(tagValue));
+            int length = unsettled.payloadLength(tagValue);
+            sender.send(unsettled.payload(tagValue), 0, length);
+            sender.advance();
+            metrics.messagesSent.increment();
+            metrics.bytesSent.add(length);
+            unsettled.replace(tagValue, delivery);
+        }
+
+        // Reactor timers have millisecond resolution, shorter waits are rounded up to one millisecond
+        private static int millisUntil(long nanos) {
+            return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999_999));
+        }
+
+        // Timers are scheduled on the reactor, the reactor thread never sleeps while waiting for tokens
+        private void scheduleResume(long waitNanos) {
+            if (!resumeScheduled && !closed) {
+                resumeScheduled = true;
+                reactor.schedule(millisUntil(waitNanos), resume);
+            }
+        }
+
+        // The subscription measures the end-to-end latency from this time, so it is taken right before encoding. A
+        // spooled or held message keeps the time it was encoded at.
+        private void stampCreationTime() {
+            long nanos = CreationTime.nowNanos();
+            creationTime.setTime(TimeUnit.NANOSECONDS.toMillis(nanos));
+            creationAnnotation.put(CreationTime.ANNOTATION, nanos);
+        }
+
+        // Encodes into the reusable buffer, which grows while encoding and keeps its largest size
+        private int encodeMessage() {
+            int capacity = encodeBuffer.capacity();
+            encodeBuffer.clear();
+            message.encode(encodeBuffer);
+            int encodedSize = encodeBuffer.position();
+            if (encodeBuffer.capacity() != capacity) {
+                logger.fine("Encode buffer grown to " + encodeBuffer.capacity() + " bytes");
+            }
+            // Sampled like the other per message log lines, a publisher of large messages hits this for every message
+            if (remoteMaxFrameSize > 0 && encodedSize > remoteMaxFrameSize && sampleMessageLog()) {
+                logger.fine("Message of " + encodedSize + " bytes is sent in multiple transfer frames (max frame size " + remoteMaxFrameSize + ")");
+            }
+            return encodedSize;
+        }
+
+        // The formatted time only changes once per second, so it is cached between messages
+        String currentTime() {
+            long now = System.currentTimeMillis();
+            if (now / 1000 != timeSecond) {
+                timeSecond = now / 1000;
+                timeText = TIME_FORMAT.format(Instant.ofEpochMilli(now));
+            }
+            return timeText;
+        }
+
+        // The message body is plain ASCII, so it is copied into the reusable byte array without a charset encoder
+        private int asciiBytes(CharSequence text) {
+            int length = text.length();
+            if (bodyBytes.length < length) {
+                bodyBytes = new byte[Math.max(length, bodyBytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                bodyBytes[i] = (byte) text.charAt(i);
+            }
+            return length;
+        }
+    }
+
+    // Creation time of a message for measuring the end-to-end latency. It is stamped both as the standard
+    // creation-time property in milliseconds and as a message annotation in nanoseconds since the epoch, which
+    // receivers that know the annotation use instead.
+    static class CreationTime {
+        static final Symbol ANNOTATION = Symbol.valueOf("x-opt-creation-time-nanos");
+
+        // Instant.now() reads the system clock with microsecond resolution, unlike System.currentTimeMillis()
+        static long nowNanos() {
+            Instant now = Instant.now();
+            return TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+        }
+    }
+
+    // Delivery tags derived from the message counter. Tags of settled deliveries are returned to a pool and reused.
+    private static class DeliveryTags {
+        static final byte[] EMPTY = new byte[0];
+
+        private final ArrayDeque<byte[]> pool = new ArrayDeque<>();
+
+        byte[] acquire(long value) {
+            byte[] tag = pool.poll();
+            if (tag == null) {
+                tag = new byte[8];
+            }
+            for (int i = 7; i >= 0; i--) {
+                tag[i] = (byte) value;
+                value >>>= 8;
+            }
+            return tag;
+        }
+
+        void release(byte[] tag) {
+            if (tag.length == 8) {
+                pool.push(tag);
+            }
+        }
+
+        static long value(byte[] tag) {
+            long value = 0;
+            for (byte b : tag) {
+                value = (value << 8) | (b & 0xff);
+            }
+            return value;
+        }
+    }
+
+    // WritableBuffer for the proton encoder that grows instead of overflowing. The backing array is kept between
+    // messages, so after the largest message has been seen no further allocations happen.
+    static class GrowableWritableBuffer implements WritableBuffer {
+        private ByteBuffer buffer;
+
+        GrowableWritableBuffer(int initialCapacity) {
+            buffer = ByteBuffer.allocate(initialCapacity);
+        }
+
+        void clear() {
+            buffer.clear();
+        }
+
+        byte[] array() {
+            return buffer.array();
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.position() + bytes, buffer.capacity() * 2));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+
+        @Override
+        public void ensureRemaining(int requiredRemaining) {
+            ensure(requiredRemaining);
+        }
+
+        @Override
+        public void put(byte b) {
+            ensure(1);
+            buffer.put(b);
+        }
+
+        @Override
+        public void putFloat(float f) {
+            ensure(4);
+            buffer.putFloat(f);
+        }
+
+        @Override
+        public void putDouble(double d) {
+            ensure(8);
+            buffer.putDouble(d);
+        }
+
+        @Override
+        public void put(byte[] src, int offset, int length) {
+            ensure(length);
+            buffer.put(src, offset, length);
+        }
+
+        @Override
+        public void putShort(short s) {
+            ensure(2);
+            buffer.putShort(s);
+        }
+
+        @Override
+        public void putInt(int i) {
+            ensure(4);
+            buffer.putInt(i);
+        }
+
+        @Override
+        public void putLong(long l) {
+            ensure(8);
+            buffer.putLong(l);
+        }
+
+        @Override
+        public void put(ByteBuffer src) {
+            ensure(src.remaining());
+            buffer.put(src);
+        }
+
+        @Override
+        public void put(ReadableBuffer src) {
+            ensure(src.remaining());
+            src.get(new WritableBuffer.ByteBufferWrapper(buffer));
+        }
+
+        @Override
+        public boolean hasRemaining() {
+            return true;
+        }
+
+        @Override
+        public int remaining() {
+            return Integer.MAX_VALUE - buffer.position();
+        }
+
+        @Override
+        public int position() {
+            return buffer.position();
+        }
+
+        @Override
+        public void position(int position) {
+            if (position > buffer.capacity()) {
+                ensure(position - buffer.position());
+            }
+            buffer.position(position);
+        }
+
+        @Override
+        public int limit() {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    // Unsettled deliveries by tag. Tags are increasing counter values, so a power of two ring indexed by the low
+    // bits of the tag is enough. The ring doubles when the span of unsettled tags outgrows it.
+    private static class InFlightTable {
+        private long[] tags = new long[64];
+        private Delivery[] deliveries = new Delivery[64];
+        private long[] queuedAt = new long[64];
+        // Encoded messages, kept to send them again after a reconnect. The array of a slot is reused by later
+        // deliveries in the same slot, so they are only allocated while the table grows or messages grow.
+        private byte[][] payloads = new byte[64][];
+        private int[] payloadLengths = new int[64];
+        private int size;
+
+        void put(long tag, Delivery delivery, long queuedNanos, byte[] encoded, int offset, int length) {
+            while (deliveries[(int) tag & (deliveries.length - 1)] != null) {
+                grow();
+            }
+            int slot = (int) tag & (deliveries.length - 1);
+            tags[slot] = tag;
+            deliveries[slot] = delivery;
+            queuedAt[slot] = queuedNanos;
+            if (payloads[slot] == null || payloads[slot].length < length) {
+                payloads[slot] = new byte[Math.max(length, 256)];
+            }
+            System.arraycopy(encoded, offset, payloads[slot], 0, length);
+            payloadLengths[slot] = length;
+            size++;
+        }
+
+        // Replaces the delivery of a message that has been sent again
+        void replace(long tag, Delivery delivery) {
+            int slot = (int) tag & (deliveries.length - 1);
+            if (deliveries[slot] != null && tags[slot] == tag) {
+                deliveries[slot] = delivery;
+            }
+        }
+
+        byte[] payload(long tag) {
+            return payloads[(int) tag & (deliveries.length - 1)];
+        }
+
+        int payloadLength(long tag) {
+            return payloadLengths[(int) tag & (deliveries.length - 1)];
+        }
+
+        long[] tags() {
+            long[] result = new long[size];
+            int index = 0;
+            for (int slot = 0; slot < deliveries.length; slot++) {
+                if (deliveries[slot] != null) {
+                    result[index++] = tags[slot];
+                }
+            }
+            return result;
+        }
+
+        // System.nanoTime() at which the message of the delivery was encoded
+        long queuedAt(long tag) {
+            return queuedAt[(int) tag & (deliveries.length - 1)];
+        }
+
+        Delivery remove(long tag) {
+            int slot = (int) tag & (deliveries.length - 1);
+            Delivery delivery = deliveries[slot];
+            if (delivery == null || tags[slot] != tag) {
+                return null;
+            }
+            deliveries[slot] = null;
+            size--;
+            return delivery;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] oldTags = tags;
+            Delivery[] oldDeliveries = deliveries;
+            long[] oldQueuedAt = queuedAt;
+            byte[][] oldPayloads = payloads;
+            int[] oldPayloadLengths = payloadLengths;
+            int capacity = oldDeliveries.length * 2;
+            boolean collision;
+            do {
+                tags = new long[capacity];
+                deliveries = new Delivery[capacity];
+                queuedAt = new long[capacity];
+                payloads = new byte[capacity][];
+                payloadLengths = new int[capacity];
+                collision = false;
+                for (int i = 0; i < oldDeliveries.length && !collision; i++) {
+                    if (oldDeliveries[i] != null) {
+                        int slot = (int) oldTags[i] & (capacity - 1);
+                        collision = deliveries[slot] != null;
+                        tags[slot] = oldTags[i];
+                        deliveries[slot] = oldDeliveries[i];
+                        queuedAt[slot] = oldQueuedAt[i];
+                        payloads[slot] = oldPayloads[i];
+                        payloadLengths[slot] = oldPayloadLengths[i];
+                    }
+                }
+                capacity *= 2;
+            } while (collision);
+        }
+    }
+
+    // Durable queue of the encoded messages for one endpoint, an append-only log of memory-mapped segment files. A
+    // record is acknowledged in place once the interchange has accepted it, a segment whose records are all
+    // acknowledged is recycled as the next segment. After a restart the records that were not acknowledged are sent
+    // again. The mapped pages survive a crash of the process, they are forced to disk when a segment is full and when
+    // the spool is closed. The spools of a delivery are kept in a directory of the delivery, one per endpoint. A spool
+    // is locked while it is open, the spool of an endpoint that was removed from the delivery is not locked and is
+    // adopted by the spool of a current endpoint. Only used by the reactor thread.
+    private static class OutboundSpool {
+        private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+        // Record header: int payload length, int CRC32 of the payload, long sequence, byte acknowledged
+        private static final int HEADER_BYTES = 17;
+        private static final int ACKNOWLEDGED_OFFSET = 16;
+        private static final String SUFFIX = ".spool";
+        private static final String LOCK_FILE = "lock";
+        // Segment files are named after the sequence of their first record, zero padded to 20 digits, so every name
+        // that matches parses as a long and files with other names are never read or deleted
+        private static final Pattern SEGMENT_NAME = Pattern.compile("0\\d{19}\\.spool");
+
+        private final Path directory;
+        private FileChannel lockChannel;
+        private FileLock lock;
+        // Oldest first, the last segment is the one appended to
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        // Files of fully acknowledged segments, reused for new segments so the file system doesn't allocate again
+        private final ArrayDeque<Path> recycled = new ArrayDeque<>();
+        private final CRC32 crc = new CRC32();
+        private long nextSequence;
+        // Read position: the next record that hasn't been sent
+        private Segment readSegment;
+        private int readIndex;
+        private long unsent;
+
+        private OutboundSpool(Path directory) {
+            this.directory = directory;
+        }
+
+        static Path rootFor(String deliveryId) {
+            return Paths.get(MESSAGE_SPOOL_DIR, fileName(deliveryId));
+        }
+
+        static Path directoryFor(Path root, DeliveryEndpoint endpoint) {
+            return root.resolve(fileName(endpoint.key()));
+        }
+
+        private static String fileName(String name) {
+            return name.replaceAll("[^A-Za-z0-9.-]", "_");
+        }
+
+        private static boolean isSegment(Path file) {
+            return SEGMENT_NAME.matcher(file.getFileName().toString()).matches();
+        }
+
+        // Opens the spool in the directory, recovering the records that were not acknowledged yet
+        static OutboundSpool open(Path directory) throws IOException {
+            OutboundSpool spool = tryOpen(directory);
+            if (spool == null) {
+                throw new IOException("Spool " + directory + " is in use by another process");
+            }
+            return spool;
+        }
+
+        // Opens the spool in the directory, or returns null when it is locked by another spool
+        private static OutboundSpool tryOpen(Path directory) throws IOException {
+            Files.createDirectories(directory);
+            OutboundSpool spool = new OutboundSpool(directory);
+            spool.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                spool.lock = spool.lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Locked by a spool of this process
+            }
+            if (spool.lock == null) {
+                spool.lockChannel.close();
+                return null;
+            }
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, OutboundSpool::isSegment)) {
+                stream.forEach(files::add);
+            }
+            Collections.sort(files);
+            for (Path file : files) {
+                long firstSequence = Long.parseLong(file.getFileName().toString().replace(SUFFIX, ""));
+                if (firstSequence < spool.nextSequence) {
+                    // Left over from a segment that was being recycled when the process stopped
+                    Files.delete(file);
+                    continue;
+                }
+                Segment segment = new Segment(file, firstSequence);
+                spool.recover(segment);
+                spool.segments.add(segment);
+                spool.nextSequence = firstSequence + segment.count;
+            }
+            while (spool.segments.size() > 1 && spool.segments.peekFirst().isAcknowledged()) {
+                spool.recycle(spool.segments.pollFirst());
+            }
+            if (spool.segments.isEmpty()) {
+                spool.segments.add(spool.newSegment());
+            }
+            spool.readSegment = spool.segments.peekFirst();
+            spool.skipAcknowledged();
+            if (spool.unsent > 0) {
+                logger.info("Spool " + directory + " has " + spool.unsent + " messages left to send");
+            }
+            return spool;
+        }
+
+        // Reads the records of a segment up to the first one that is incomplete or out of sequence
+        private void recover(Segment segment) {
+            MappedByteBuffer map = segment.map;
+            int position = 0;
+            while (position + HEADER_BYTES <= SEGMENT_BYTES) {
+                int length = map.getInt(position);
+                if (length <= 0 || length > SEGMENT_BYTES - position - HEADER_BYTES
+                        || map.getLong(position + 8) != segment.firstSequence + segment.count) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                map.position(position + HEADER_BYTES);
+                map.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != map.getInt(position + 4)) {
+                    break;
+                }
+                segment.add(position);
+                if (map.get(position + ACKNOWLEDGED_OFFSET) != 0) {
+                    segment.acknowledged++;
+                } else {
+                    unsent++;
+                }
+                position += HEADER_BYTES + length;
+            }
+            segment.writePosition = position;
+        }
+
+        // Appends a record and returns its sequence, which is also the delivery tag it is sent with
+        long append(byte[] data, int offset, int length) throws IOException {
+            if (length > SEGMENT_BYTES - HEADER_BYTES) {
+                throw new IOException("Message of " + length + " bytes doesn't fit in a spool segment");
+            }
+            Segment segment = segments.peekLast();
+            if (segment.writePosition + HEADER_BYTES + length > SEGMENT_BYTES) {
+                segment.map.force();
+                segment = newSegment();
+                segments.add(segment);
+            }
+            MappedByteBuffer map = segment.map;
+            int position = segment.writePosition;
+            long sequence = nextSequence++;
+            crc.reset();
+            crc.update(data, offset, length);
+            map.position(position + HEADER_BYTES);
+            map.put(data, offset, length);
+            map.putInt(position + 4, (int) crc.getValue());
+            map.putLong(position + 8, sequence);
+            map.put(position + ACKNOWLEDGED_OFFSET, (byte) 0);
+            // The length is written last, a record without it is not recovered
+            map.putInt(position, length);
+            segment.writePosition = position + HEADER_BYTES + length;
+            // Ends the log here, a recycled file may still hold old records after this position
+            if (segment.writePosition + 4 <= SEGMENT_BYTES) {
+                map.putInt(segment.writePosition, 0);
+            }
+            segment.add(position);
+            unsent++;
+            return sequence;
+        }
+
+        boolean hasUnsent() {
+            return unsent > 0;
+        }
+
+        // Payload length of the next record to send
+        int peekLength() {
+            return readSegment.map.getInt(readSegment.positions[readIndex]);
+        }
+
+        // Copies the payload of the next record to send into the buffer and returns its sequence
+        long read(GrowableWritableBuffer target) {
+            MappedByteBuffer map = readSegment.map;
+            int position = readSegment.positions[readIndex];
+            int length = map.getInt(position);
+            long sequence = map.getLong(position + 8);
+            target.clear();
+            target.ensureRemaining(length);
+            map.position(position + HEADER_BYTES);
+            map.get(target.array(), 0, length);
+            target.position(length);
+            readIndex++;
+            unsent--;
+            skipAcknowledged();
+            return sequence;
+        }
+
+        // Moves the read position past acknowledged records, only recovered records can be acknowledged before being read
+        private void skipAcknowledged() {
+            while (true) {
+                if (readIndex == readSegment.count) {
+                    Segment next = nextSegment(readSegment);
+                    if (next == null) {
+                        return;
+                    }
+                    readSegment = next;
+                    readIndex = 0;
+                } else if (readSegment.map.get(readSegment.positions[readIndex] + ACKNOWLEDGED_OFFSET) != 0) {
+                    readIndex++;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private Segment nextSegment(Segment segment) {
+            Iterator<Segment> iterator = segments.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() == segment) {
+                    return iterator.hasNext() ? iterator.next() : null;
+                }
+            }
+            return null;
+        }
+
+        void acknowledge(long sequence) {
+            for (Segment segment : segments) {
+                long index = sequence - segment.firstSequence;
+                if (index >= 0 && index < segment.count) {
+                    int position = segment.positions[(int) index];
+                    if (segment.map.get(position + ACKNOWLEDGED_OFFSET) == 0) {
+                        segment.map.put(position + ACKNOWLEDGED_OFFSET, (byte) 1);
+                        segment.acknowledged++;
+                    }
+                    break;
+                }
+            }
+            // Segments are recycled oldest first, the segment appended to and the one being read are kept
+            while (segments.size() > 1 && segments.peekFirst().isAcknowledged() && segments.peekFirst() != readSegment) {
+                Segment segment = segments.pollFirst();
+                try {
+                    recycle(segment);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Unable to recycle spool segment " + segment.file, e);
+                }
+            }
+        }
+
+        private Segment newSegment() throws IOException {
+            Path file = directory.resolve(String.format("%020d%s", nextSequence, SUFFIX));
+            Path reused = recycled.poll();
+            if (reused != null) {
+                Files.move(reused, file);
+            }
+            Segment segment = new Segment(file, nextSequence);
+            segment.map.putInt(0, 0);
+            return segment;
+        }
+
+        private void recycle(Segment segment) throws IOException {
+            segment.channel.close();
+            if (recycled.size() < 2) {
+                recycled.add(segment.file);
+            } else {
+                Files.delete(segment.file);
+            }
+        }
+
+        void close() throws IOException {
+            for (Segment segment : segments) {
+                segment.map.force();
+                segment.channel.close();
+            }
+            segments.clear();
+            lock.release();
+            lockChannel.close();
+        }
+
+        // Spools in the root other than the given ones, which may have been left behind by endpoints that are gone.
+        // Only directories holding nothing but a lock and segment files are spools, anything else is left alone.
+        static List<Path> others(Path root, Set<Path> directories) throws IOException {
+            List<Path> others = new ArrayList<>();
+            if (!Files.isDirectory(root)) {
+                return others;
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path directory : stream) {
+                    if (!directories.contains(directory) && isSpool(directory)) {
+                        others.add(directory);
+                    }
+                }
+            }
+            Collections.sort(others);
+            return others;
+        }
+
+        private static boolean isSpool(Path directory) throws IOException {
+            boolean locked = false;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path file : stream) {
+                    if (file.getFileName().toString().equals(LOCK_FILE)) {
+                        locked = true;
+                    } else if (!isSegment(file) || !Files.isRegularFile(file)) {
+                        return false;
+                    }
+                }
+            }
+            return locked;
+        }
+
+        // Moves the records that were not acknowledged from the spool in the other directory into this spool, behind
+        // the records already in it, and deletes the other spool. Returns the number of records moved, or -1 when
+        // the other spool is still in use. The records are on disk here before they are deleted there, so a crash in
+        // between sends them twice rather than not at all, just like records that were sent but not acknowledged.
+        long adopt(Path other) throws IOException {
+            OutboundSpool orphan = tryOpen(other);
+            if (orphan == null) {
+                return -1;
+            }
+            GrowableWritableBuffer record = new GrowableWritableBuffer(1024);
+            long moved = 0;
+            while (orphan.hasUnsent()) {
+                orphan.read(record);
+                append(record.array(), 0, record.position());
+                moved++;
+            }
+            for (Segment segment : segments) {
+                segment.map.force();
+            }
+            orphan.close();
+            // Only the files of the spool are deleted, the directory is kept when anything else was put into it
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(other)) {
+                for (Path file : stream) {
+                    if (isSegment(file) || file.getFileName().toString().equals(LOCK_FILE)) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            try {
+                Files.delete(other);
+            } catch (DirectoryNotEmptyException e) {
+                logger.warning("Spool " + other + " adopted, but the directory is kept as it holds other files");
+            }
+            return moved;
+        }
+
+        private static class Segment {
+            final Path file;
+            final long firstSequence;
+            final FileChannel channel;
+            final MappedByteBuffer map;
+            // Position of every record in the segment, by sequence relative to the first sequence
+            int[] positions = new int[1024];
+            int count;
+            int acknowledged;
+            int writePosition;
+
+            Segment(Path file, long firstSequence) throws IOException {
+                this.file = file;
+                this.firstSequence = firstSequence;
+                this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+            }
+
+            void add(int position) {
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count * 2);
+                }
+                positions[count++] = position;
+            }
+
+            boolean isAcknowledged() {
+                return acknowledged == count;
+            }
+        }
+    }
+
+    // Encoded messages waiting to be sent together. The messages are copied back to back into one buffer that keeps
+    // its largest size, so a steady stream of batches doesn't allocate.
+    private static class SendBatch {
+        private final GrowableWritableBuffer buffer;
+        private long[] tags = new long[16];
+        private int[] ends = new int[16];
+        private long[] queuedAt = new long[16];
+        private int count;
+        // Counted since the last report
+        private long flushes;
+        private long flushedMessages;
+        private long flushedBytes;
+
+        SendBatch(int maxBytes) {
+            buffer = new GrowableWritableBuffer(Math.max(1024, maxBytes));
+        }
+
+        void add(long tag, byte[] encoded, int length, long queuedNanos) {
+            if (count == tags.length) {
+                tags = Arrays.copyOf(tags, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                queuedAt = Arrays.copyOf(queuedAt, count * 2);
+            }
+            buffer.put(encoded, 0, length);
+            tags[count] = tag;
+            ends[count] = buffer.position();
+            queuedAt[count] = queuedNanos;
+            count++;
+        }
+
+        int count() {
+            return count;
+        }
+
+        int bytes() {
+            return count == 0 ? 0 : ends[count - 1];
+        }
+
+        byte[] array() {
+            return buffer.array();
+        }
+
+        long tag(int index) {
+            return tags[index];
+        }
+
+        int offset(int index) {
+            return index == 0 ? 0 : ends[index - 1];
+        }
+
+        int length(int index) {
+            return ends[index] - offset(index);
+        }
+
+        long queuedAt(int index) {
+            return queuedAt[index];
+        }
+
+        void flushed() {
+            flushes++;
+            flushedMessages += count;
+            flushedBytes += bytes();
+        }
+
+        void clear() {
+            buffer.clear();
+            count = 0;
+        }
+
+        // Describes the batches since the previous report
+        String report() {
+            String report = flushes == 0 ? "no batches" : String.format("%d batches of %.1f messages and %.0f bytes on average",
+                    flushes, (double) flushedMessages / flushes, (double) flushedBytes / flushes);
+            flushes = 0;
+            flushedMessages = 0;
+            flushedBytes = 0;
+            return report;
+        }
+    }
+
+    // Shapes the messages sent to one endpoint to its maxMessageRate (messages per second) and maxBandwidth (bytes
+    // per second). Both limits are token buckets, a message is sent when both have enough tokens. Otherwise the
+    // caller gets the time until they do and schedules a reactor timer, so the reactor thread never sleeps.
+    private static class RateShaper {
+        static final int REPORT_INTERVAL_MILLIS = 10_000;
+
+        private final Integer maxMessageRate;
+        private final Integer maxBandwidth;
+        private final TokenBucket messages;
+        private final TokenBucket bytes;
+        // Counted since the last report
+        private long windowStart = System.nanoTime();
+        private long sentMessages;
+        private long sentBytes;
+        private long delayed;
+        private long rejected;
+
+        private RateShaper(Integer maxMessageRate, Integer maxBandwidth) {
+            long now = System.nanoTime();
+            this.maxMessageRate = maxMessageRate;
+            this.maxBandwidth = maxBandwidth;
+            this.messages = maxMessageRate != null && maxMessageRate > 0 ? new TokenBucket(maxMessageRate, now) : null;
+            this.bytes = maxBandwidth != null && maxBandwidth > 0 ? new TokenBucket(maxBandwidth, now) : null;
+        }
+
+        static RateShaper forEndpoint(DeliveryEndpoint endpoint) {
+            return new RateShaper(endpoint.getMaxMessageRate(), endpoint.getMaxBandwidth());
+        }
+
+        // Takes the tokens for a message of the given size and returns zero, or returns the nanoseconds until the
+        // tokens are available without taking any
+        long acquire(int size) {
+            long now = System.nanoTime();
+            long waitNanos = 0;
+            if (messages != null) {
+                waitNanos = messages.waitNanos(1, now);
+            }
+            if (bytes != null) {
+                waitNanos = Math.max(waitNanos, bytes.waitNanos(size, now));
+            }
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+            if (messages != null) {
+                messages.take(1);
+            }
+            if (bytes != null) {
+                bytes.take(size);
+            }
+            sentMessages++;
+            sentBytes += size;
+            return 0;
+        }
+
+        void delayed() {
+            delayed++;
+        }
+
+        void rejected() {
+            rejected++;
+        }
+
+        // Describes the rates since the previous report and starts a new window
+        String report() {
+            long now = System.nanoTime();
+            double seconds = Math.max(1e-9, (now - windowStart) / 1e9);
+            String report = String.format("%.1f msg/s (allowed %s), %.0f B/s (allowed %s), %d delayed, %d rejected",
+                    sentMessages / seconds, maxMessageRate != null ? maxMessageRate : "unlimited",
+                    sentBytes / seconds, maxBandwidth != null ? maxBandwidth : "unlimited", delayed, rejected);
+            windowStart = now;
+            sentMessages = 0;
+            sentBytes = 0;
+            delayed = 0;
+            rejected = 0;
+            return report;
+        }
+    }
+
+    // Token bucket refilled at a fixed rate. It holds at most a tenth of a second of tokens, so a burst is spread
+    // over the second instead of sent at once. A cost above the capacity is allowed once the bucket is full and
+    // leaves it in debt, so a message larger than the burst size is still sent at the average rate.
+    private static class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilled;
+
+        TokenBucket(long tokensPerSecond, long now) {
+            this.tokensPerNano = tokensPerSecond / 1e9;
+            this.capacity = Math.max(1, tokensPerSecond / 10.0);
+            this.tokens = capacity;
+            this.refilled = now;
+        }
+
+        long waitNanos(long cost, long now) {
+            tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerNano);
+            refilled = now;
+            double needed = Math.min(cost, capacity);
+            return tokens >= needed ? 0 : (long) Math.ceil((needed - tokens) / tokensPerNano);
+        }
+
+        void take(long cost) {
+            tokens -= cost;
+        }
+    }
+
+    // ======== METRICS ========
+    // Counters, gauges and latency histograms of the delivery endpoints. The senders record into them on the reactor
+    // thread without locks or allocations. They are served in the Prometheus text format on /metrics of METRICS_PORT,
+    // and registered with the platform MBean server for JMX clients.
+    public interface SenderMetricsMBean {
+        long getMessagesSent();
+
+        long getBytesSent();
+
+        long getMessagesNotAccepted();
+
+        int getCredit();
+
+        int getUnsettled();
+
+        boolean isConnected();
+
+        long getReconnects();
+
+        double getDowntimeSeconds();
+
+        long getTransportErrors();
+
+        long getSettleLatencyCount();
+
+        long getSettleLatencyP50Micros();
+
+        long getSettleLatencyP99Micros();
+
+        long getSettleLatencyP999Micros();
+    }
+
+    private static class SenderMetrics implements SenderMetricsMBean {
+        final String endpoint;
+        final LongAdder messagesSent = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder messagesNotAccepted = new LongAdder();
+        final LongAdder reconnects = new LongAdder();
+        final LongAdder downtimeNanos = new LongAdder();
+        final LongAdder transportErrors = new LongAdder();
+        final LatencyHistogram settleLatency = new LatencyHistogram();
+        volatile int credit;
+        volatile int unsettled;
+        volatile boolean connected;
+
+        SenderMetrics(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public long getMessagesSent() {
+            return messagesSent.sum();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        @Override
+        public long getMessagesNotAccepted() {
+            return messagesNotAccepted.sum();
+        }
+
+        @Override
+        public int getCredit() {
+            return credit;
+        }
+
+        @Override
+        public int getUnsettled() {
+            return unsettled;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public long getReconnects() {
+            return reconnects.sum();
+        }
+
+        @Override
+        public double getDowntimeSeconds() {
+            return downtimeNanos.sum() / 1e9;
+        }
+
+        @Override
+        public long getTransportErrors() {
+            return transportErrors.sum();
+        }
+
+        @Override
+        public long getSettleLatencyCount() {
+            return settleLatency.count();
+        }
+
+        @Override
+        public long getSettleLatencyP50Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(settleLatency.valueAt(0.50));
+        }
+
+        @Override
+        public long getSettleLatencyP99Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(settleLatency.valueAt(0.99));
+        }
+
+        @Override
+        public long getSettleLatencyP999Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(settleLatency.valueAt(0.999));
+        }
+    }
+
+    // The metrics of the current endpoints. Endpoints are registered by the senders on the reactor thread and read by
+    // the HTTP server and JMX threads.
+    private static class MetricsRegistry {
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final Map<String, SenderMetrics> endpoints = new ConcurrentHashMap<>();
+        private static HttpServer server;
+
+        static SenderMetrics register(String endpoint) {
+            SenderMetrics metrics = new SenderMetrics(endpoint);
+            endpoints.put(endpoint, metrics);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(metrics, SenderMetricsMBean.class), objectName(endpoint));
+            } catch (JMException e) {
+                logger.log(Level.WARNING, "Unable to register the metrics of " + endpoint + " with JMX", e);
+            }
+            return metrics;
+        }
+
+        static void unregister(SenderMetrics metrics) {
+            endpoints.remove(metrics.endpoint, metrics);
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(metrics.endpoint));
+            } catch (JMException e) {
+                logger.fine("Metrics of " + metrics.endpoint + " were not registered with JMX: " + e.getMessage());
+            }
+        }
+
+        private static ObjectName objectName(String endpoint) throws MalformedObjectNameException {
+            return new ObjectName("local-actor-api:type=DeliveryEndpoint,endpoint=" + ObjectName.quote(endpoint));
+        }
+
+        // Serves /metrics on METRICS_PORT, nothing is served when the port is 0
+        static void startHttpServer() throws IOException {
+            if (METRICS_PORT <= 0) {
+                return;
+            }
+            server = HttpServer.create(new InetSocketAddress(METRICS_PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            logger.info("Serving metrics on port " + METRICS_PORT + " at /metrics");
+        }
+
+        static void stopHttpServer() {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+
+        static String scrape() {
+            StringBuilder out = new StringBuilder(4096);
+            metric(out, "amqp_sender_messages_sent_total", "counter", "Messages sent to the endpoint, including messages sent again after a reconnect", SenderMetrics::getMessagesSent);
+            metric(out, "amqp_sender_bytes_sent_total", "counter", "Encoded message bytes sent to the endpoint", SenderMetrics::getBytesSent);
+            metric(out, "amqp_sender_messages_not_accepted_total", "counter", "Messages settled with another outcome than accepted", SenderMetrics::getMessagesNotAccepted);
+            metric(out, "amqp_sender_credit", "gauge", "Link credit granted by the endpoint", SenderMetrics::getCredit);
+            metric(out, "amqp_sender_unsettled", "gauge", "Messages sent but not yet settled", SenderMetrics::getUnsettled);
+            metric(out, "amqp_sender_connected", "gauge", "1 while the link to the endpoint is open", m -> m.isConnected() ? 1 : 0);
+            metric(out, "amqp_sender_reconnects_total", "counter", "Connections to the endpoint restored after a loss", SenderMetrics::getReconnects);
+            metric(out, "amqp_sender_downtime_seconds_total", "counter", "Time from losing the connection until the link was open again", SenderMetrics::getDowntimeSeconds);
+            metric(out, "amqp_sender_transport_errors_total", "counter", "Transport errors of the connection to the endpoint", SenderMetrics::getTransportErrors);
+            summary(out, "amqp_sender_settle_latency_seconds", "Time from encoding a message until the endpoint settled it", m -> m.settleLatency);
+            return out.toString();
+        }
+
+        private static void metric(StringBuilder out, String name, String type, String help, ToDoubleFunction<SenderMetrics> value) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (SenderMetrics metrics : endpoints.values()) {
+                sample(out, name, metrics.endpoint, null, value.applyAsDouble(metrics));
+            }
+        }
+
+        private static void summary(StringBuilder out, String name, String help, Function<SenderMetrics, LatencyHistogram> histogram) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" summary\n");
+            for (SenderMetrics metrics : endpoints.values()) {
+                LatencyHistogram latency = histogram.apply(metrics);
+                long[] counts = latency.snapshot();
+                for (double quantile : QUANTILES) {
+                    sample(out, name, metrics.endpoint, quantile, LatencyHistogram.valueAt(counts, quantile) / 1e9);
+                }
+                sample(out, name + "_sum", metrics.endpoint, null, latency.sum() / 1e9);
+                sample(out, name + "_count", metrics.endpoint, null, latency.count());
+            }
+        }
+
+        private static void sample(StringBuilder out, String name, String endpoint, Double quantile, double value) {
+            out.append(name).append("{endpoint=\"").append(endpoint).append('"');
+            if (quantile != null) {
+                out.append(",quantile=\"").append(quantile).append('"');
+            }
+            out.append("} ");
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            out.append('\n');
+        }
+    }
+
+    // Latency histogram in the style of HdrHistogram: values below 128 ns have a bucket each, above that every power of
+    // two range is split into 64 buckets, which keeps the error under 1.6%. Recording is an atomic increment without
+    // allocation, so any thread may record while others read.
+    private static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 64;
+        private static final int BUCKETS = 2 * SUB_BUCKETS + 40 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        // Describes the values recorded since the earlier snapshot, which is updated to the current counts
+        String reportSince(long[] previous) {
+            long[] window = new long[BUCKETS];
+            long total = 0;
+            int last = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long current = counts.get(i);
+                window[i] = current - previous[i];
+                previous[i] = current;
+                if (window[i] > 0) {
+                    total += window[i];
+                    last = i;
+                }
+            }
+            if (total == 0) {
+                return "n/a";
+            }
+            return String.format("p50 %d us, p90 %d us, p99 %d us, max %d us",
+                    TimeUnit.NANOSECONDS.toMicros(valueAt(window, 0.50)), TimeUnit.NANOSECONDS.toMicros(valueAt(window, 0.90)),
+                    TimeUnit.NANOSECONDS.toMicros(valueAt(window, 0.99)), TimeUnit.NANOSECONDS.toMicros(upperBoundOf(last)));
+        }
+
+        long valueAt(double quantile) {
+            return valueAt(snapshot(), quantile);
+        }
+
+        // Upper bound of the bucket holding the quantile of the counts, which may also be the difference of snapshots
+        static long valueAt(long[] counts, double quantile) {
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBoundOf(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            // Shifts the value into [64, 128), the shift selects the range and the shifted value the bucket within it
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+            int bucket = 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            long subBucket = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    // ======== LOGGING ========
+    // Formats "yyyy-MM-dd HH:mm:ss.SSS LEVEL message" lines. The date and time only change once per second, so the
+    // formatted second is cached and only the milliseconds are appended per line. Unlike SimpleFormatter it has no
+    // synchronized methods, any number of threads may format at the same time.
+    private static class LineFormatter extends Formatter {
+        private static final DateTimeFormatter SECOND_FORMAT =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+        // Parsed message patterns, per thread as a MessageFormat can't be shared
+        private static final ThreadLocal<Map<String, MessageFormat>> MESSAGE_FORMATS = ThreadLocal.withInitial(HashMap::new);
+
+        private volatile FormattedSecond formattedSecond = new FormattedSecond(Long.MIN_VALUE, "");
+
+        @Override
+        public String format(LogRecord record) {
+            long millis = record.getMillis();
+            long second = Math.floorDiv(millis, 1000);
+            FormattedSecond formatted = formattedSecond;
+            if (formatted.second != second) {
+                formatted = new FormattedSecond(second, SECOND_FORMAT.format(Instant.ofEpochSecond(second)));
+                formattedSecond = formatted;
+            }
+            int milli = Math.floorMod(millis, 1000);
+            String message = message(record);
+            StringBuilder line = new StringBuilder(formatted.text.length() + message.length() + 16);
+            line.append(formatted.text).append('.');
+            if (milli < 100) {
+                line.append('0');
+            }
+            if (milli < 10) {
+                line.append('0');
+            }
+            line.append(milli).append(' ').append(record.getLevel().getName()).append(' ').append(message)
+                    .append(System.lineSeparator());
+            return line.toString();
+        }
+
+        // Records with parameters are formatted here, so the logging thread doesn't pay for it when logging is
+        // asynchronous. Formatter.formatMessage isn't used, it is synchronized.
+        private static String message(LogRecord record) {
+            Object[] parameters = record.getParameters();
+            if (parameters == null || parameters.length == 0) {
+                return record.getMessage();
+            }
+            return MESSAGE_FORMATS.get().computeIfAbsent(record.getMessage(), MessageFormat::new).format(parameters);
+        }
+
+        private static final class FormattedSecond {
+            final long second;
+            final String text;
+
+            FormattedSecond(long second, String text) {
+                this.second = second;
+                this.text = text;
+            }
+        }
+    }
+
+    // Hands log records to a background writer through a lock-free ring, so logging threads never wait for the
+    // console or for each other. The writer formats the records and writes them in batches. A record that doesn't fit
+    // in the ring is dropped instead of blocking, the writer reports how many were dropped.
+    private static class AsyncLogHandler extends Handler {
+        private final RingBuffer<LogRecord> records = new RingBuffer<>(65536);
+        private final AtomicLong dropped = new AtomicLong();
+        private final Thread writer;
+        private volatile boolean idle;
+        private volatile boolean closed;
+
+        AsyncLogHandler() {
+            writer = new Thread(this::write, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            if (closed || !isLoggable(record)) {
+                return;
+            }
+            if (!records.offer(record)) {
+                dropped.incrementAndGet();
+            } else if (idle) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        private void write() {
+            PrintStream out = System.err;
+            StringBuilder batch = new StringBuilder(8192);
+            while (true) {
+                LogRecord record;
+                while (batch.length() < 65536 && (record = records.poll()) != null) {
+                    try {
+                        batch.append(getFormatter().format(record));
+                    } catch (RuntimeException e) {
+                        batch.append("Unable to format log record: ").append(e).append(System.lineSeparator());
+                    }
+                }
+                long droppedRecords = dropped.getAndSet(0);
+                if (droppedRecords > 0) {
+                    batch.append(getFormatter().format(new LogRecord(Level.WARNING,
+                            droppedRecords + " log records dropped, the log writer can't keep up")));
+                }
+                if (batch.length() > 0) {
+                    out.print(batch);
+                    out.flush();
+                    batch.setLength(0);
+                    continue;
+                }
+                if (closed) {
+                    return;
+                }
+                // Checks the ring once more after announcing the wait, a record offered in between unparks the writer
+                idle = true;
+                if ((record = records.poll()) != null) {
+                    idle = false;
+                    batch.append(getFormatter().format(record));
+                    continue;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                idle = false;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        // Called at shutdown by the LogManager, waits for the writer to write what is left in the ring
+        @Override
+        public void close() {
+            closed = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Per message log lines are only logged for one in LOG_MESSAGE_SAMPLE_RATE messages, picked at random so threads
+    // don't share a counter, and only when INFO is enabled. Callers check this before formatting anything.
+    private static boolean sampleMessageLog() {
+        return logger.isLoggable(Level.INFO)
+                && (LOG_MESSAGE_SAMPLE_RATE <= 1 || ThreadLocalRandom.current().nextInt(LOG_MESSAGE_SAMPLE_RATE) == 0);
+    }
+
+    // Bounded lock-free queue for any number of producer and consumer threads. Every slot carries a sequence number
+    // telling producers and consumers whose turn it is (D. Vyukov's bounded MPMC queue).
+    private static class RingBuffer<T> {
+        private final AtomicReferenceArray<T> elements;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+        private final int mask;
+
+        RingBuffer(int minimumCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, minimumCapacity - 1)) << 1;
+            elements = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        boolean offer(T element) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        elements.lazySet(index, element);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        T poll() {
+            long position = head.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        T element = elements.get(index);
+                        elements.lazySet(index, null);
+                        sequences.set(index, position + mask + 1);
+                        return element;
+                    }
+                    position = head.get();
+                } else if (difference < 0) {
+                    return null;
+                } else {
+                    position = head.get();
+                }
+            }
+        }
+    }
+
+    // ======== STARTUP AND RUN LOOP ========
+    private static void dumpConfig() {
+        logger.info("ACTOR_API_HOST: '" + ACTOR_API_HOST + "'");
+        logger.info("ACTOR_API_PORT: '" + ACTOR_API_PORT + "'");
+        logger.info("ACTOR_API_DELIVERY_SELECTOR: '" + ACTOR_API_DELIVERY_SELECTOR + "'");
+        logger.info("ACTOR_COMMON_NAME: '" + ACTOR_COMMON_NAME + "'");
+        logger.info("ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM: '" + ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM + "'");
+        logger.info("CA_CERTIFICATE_PEM: '" + CA_CERTIFICATE_PEM + "'");
+        logger.info("MESSAGE_APPLICATION_PROPERTIES_JSON: '" + MESSAGE_APPLICATION_PROPERTIES_JSON + "'");
+        logger.info("MESSAGE_SEND_MODE: '" + MESSAGE_SEND_MODE + "'");
+        logger.info("MESSAGE_RATE_LIMIT_POLICY: '" + MESSAGE_RATE_LIMIT_POLICY + "'");
+        logger.info("MESSAGE_BATCH_DELAY_MICROS: '" + MESSAGE_BATCH_DELAY_MICROS + "'");
+        logger.info("MESSAGE_BATCH_MAX_BYTES: '" + MESSAGE_BATCH_MAX_BYTES + "'");
+        logger.info("MESSAGE_SPOOL_DIR: '" + MESSAGE_SPOOL_DIR + "'");
+        logger.info("METRICS_PORT: '" + METRICS_PORT + "'");
+        logger.info("LOG_MODE: '" + LOG_MODE + "'");
+        logger.info("LOG_MESSAGE_SAMPLE_RATE: '" + LOG_MESSAGE_SAMPLE_RATE + "'");
+        logger.info("ACTOR_API_POLL_INTERVAL: '" + ACTOR_API_POLL_INTERVAL + "'");
+    }
+
+    private static void configureLogging() {
+        // Configure console handler, or a background writer when LOG_MODE is "async"
+        Handler handler = "async".equals(LOG_MODE) ? new AsyncLogHandler() : new ConsoleHandler();
+        handler.setLevel(Level.ALL);
+        handler.setFormatter(new LineFormatter());
+
+        // Configure logger
+        logger.setLevel(Level.ALL);
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+
+        // Set Proton library logging to INFO
+        Logger protonLogger = Logger.getLogger("org.apache.qpid.proton");
+        protonLogger.setLevel(Level.INFO);
+    }
+
+    public static void main(String[] args) {
+        configureLogging();
+        logger.info("Starting application");
+        dumpConfig();
+
+        try {
+            MetricsRegistry.startHttpServer();
+            initializeHttpClient();
+            if (checkMessageSelector()) {
+                createAndPublish();
+            }
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Application error", e);
             e.printStackTrace();
+        } finally {
+            MetricsRegistry.stopHttpServer();
         }
 
         logger.info("Application stopped");
@@ -7,6 +7,15 @@ export ACTOR_COMMON_NAME="example.actor"
 export ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM="/home/user/Downloads/bundle/key_and_certificate.pem"
 export CA_CERTIFICATE_PEM="/home/user/Downloads/bundle/ca.pem"
 export MESSAGE_APPLICATION_PROPERTIES_JSON='{"messageType": "TEST", "publisherId": "XX99999", "publicationId": "XX99999:TEST", "originatingCountry": "XX", "protocolVersion": "TEST:0.0.0", "quadTree": ",1004,"}'
+export MESSAGE_SEND_MODE="interval"
+export ACTOR_API_POLL_INTERVAL="10"
+export MESSAGE_RATE_LIMIT_POLICY="queue"
+export MESSAGE_BATCH_DELAY_MICROS="0"
+export MESSAGE_BATCH_MAX_BYTES="16384"
+export MESSAGE_SPOOL_DIR=""
+export METRICS_PORT="0"
+export LOG_MODE="sync"
+export LOG_MESSAGE_SAMPLE_RATE="1"
 
 # Copy certificate files with expected names
 cp "$ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM" chain_and_key.pem
@@ -23,6 +32,15 @@ docker run --rm -it \
   -e ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM="chain_and_key.pem" \
   -e CA_CERTIFICATE_PEM="ca.pem" \
   -e MESSAGE_APPLICATION_PROPERTIES_JSON="$MESSAGE_APPLICATION_PROPERTIES_JSON" \
+  -e MESSAGE_SEND_MODE="$MESSAGE_SEND_MODE" \
+  -e ACTOR_API_POLL_INTERVAL="$ACTOR_API_POLL_INTERVAL" \
+  -e MESSAGE_RATE_LIMIT_POLICY="$MESSAGE_RATE_LIMIT_POLICY" \
+  -e MESSAGE_BATCH_DELAY_MICROS="$MESSAGE_BATCH_DELAY_MICROS" \
+  -e MESSAGE_BATCH_MAX_BYTES="$MESSAGE_BATCH_MAX_BYTES" \
+  -e MESSAGE_SPOOL_DIR="$MESSAGE_SPOOL_DIR" \
+  -e METRICS_PORT="$METRICS_PORT" \
+  -e LOG_MODE="$LOG_MODE" \
+  -e LOG_MESSAGE_SAMPLE_RATE="$LOG_MESSAGE_SAMPLE_RATE" \
   delivery-example-java
 
 # Clean up
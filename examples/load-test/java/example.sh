@@ -0,0 +1,25 @@
+#!/bin/bash
+
+export LOAD_TEST_DELIVERIES="1"
+export LOAD_TEST_SUBSCRIPTIONS="1"
+export LOAD_TEST_SHARD_COUNT="1"
+export LOAD_TEST_MESSAGE_RATE="1000"
+export LOAD_TEST_WARMUP_SECONDS="10"
+export LOAD_TEST_DURATION_SECONDS="60"
+export LOAD_TEST_REPORT_INTERVAL_SECONDS="5"
+export LOAD_TEST_REQUESTED_SECONDS="3"
+export LOAD_TEST_QUEUE_LIMIT="10000"
+export LOAD_TEST_METRICS_PORT="9400"
+export LOAD_TEST_LOG_DIR="load-test-logs"
+export LOAD_TEST_CLIENT_JAVA_OPTIONS="-Xmx512m"
+
+# Settings of the examples apply to the client processes as well
+export MESSAGE_SEND_MODE="pipelined"
+export MESSAGE_BATCH_DELAY_MICROS="0"
+export MESSAGE_CONSUMER_THREADS="0"
+export LOG_MODE="async"
+export LOG_MESSAGE_SAMPLE_RATE="10000"
+
+# Build and run the load test
+mvn -B -q clean package
+java -jar target/load-test.jar
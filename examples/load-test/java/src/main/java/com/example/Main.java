@@ -0,0 +1,1219 @@
+package com.example;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsExchange;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.transport.AmqpError;
+import org.apache.qpid.proton.amqp.transport.ErrorCondition;
+import org.apache.qpid.proton.engine.BaseHandler;
+import org.apache.qpid.proton.engine.Connection;
+import org.apache.qpid.proton.engine.Delivery;
+import org.apache.qpid.proton.engine.EndpointState;
+import org.apache.qpid.proton.engine.Event;
+import org.apache.qpid.proton.engine.Link;
+import org.apache.qpid.proton.engine.Receiver;
+import org.apache.qpid.proton.engine.Sasl;
+import org.apache.qpid.proton.engine.SaslListener;
+import org.apache.qpid.proton.engine.Sender;
+import org.apache.qpid.proton.engine.SslDomain;
+import org.apache.qpid.proton.engine.Transport;
+import org.apache.qpid.proton.reactor.Reactor;
+import org.apache.qpid.proton.reactor.ReactorOptions;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequest;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class Main {
+    private static final Logger logger = Logger.getLogger(Main.class.getName());
+
+    // Configuration by environment variables
+    private static final int LOAD_TEST_DELIVERIES = Integer.parseInt(getEnv("LOAD_TEST_DELIVERIES", "1"));
+    private static final int LOAD_TEST_SUBSCRIPTIONS = Integer.parseInt(getEnv("LOAD_TEST_SUBSCRIPTIONS", "1"));
+    private static final int LOAD_TEST_SHARD_COUNT = Integer.parseInt(getEnv("LOAD_TEST_SHARD_COUNT", "1"));
+    private static final int LOAD_TEST_MESSAGE_RATE = Integer.parseInt(getEnv("LOAD_TEST_MESSAGE_RATE", "1000"));
+    private static final int LOAD_TEST_WARMUP_SECONDS = Integer.parseInt(getEnv("LOAD_TEST_WARMUP_SECONDS", "10"));
+    private static final int LOAD_TEST_DURATION_SECONDS = Integer.parseInt(getEnv("LOAD_TEST_DURATION_SECONDS", "60"));
+    private static final int LOAD_TEST_REPORT_INTERVAL_SECONDS = Integer.parseInt(getEnv("LOAD_TEST_REPORT_INTERVAL_SECONDS", "5"));
+    private static final int LOAD_TEST_REQUESTED_SECONDS = Integer.parseInt(getEnv("LOAD_TEST_REQUESTED_SECONDS", "3"));
+    private static final int LOAD_TEST_QUEUE_LIMIT = Integer.parseInt(getEnv("LOAD_TEST_QUEUE_LIMIT", "10000"));
+    private static final int LOAD_TEST_API_PORT = Integer.parseInt(getEnv("LOAD_TEST_API_PORT", "0"));
+    private static final int LOAD_TEST_AMQP_PORT = Integer.parseInt(getEnv("LOAD_TEST_AMQP_PORT", "0"));
+    private static final int LOAD_TEST_METRICS_PORT = Integer.parseInt(getEnv("LOAD_TEST_METRICS_PORT", "9400"));
+    private static final String LOAD_TEST_LOG_DIR = getEnv("LOAD_TEST_LOG_DIR", "load-test-logs");
+    private static final String LOAD_TEST_CLIENT_JAVA_OPTIONS = getEnv("LOAD_TEST_CLIENT_JAVA_OPTIONS", "");
+    private static final String ACTOR_COMMON_NAME = getEnv("ACTOR_COMMON_NAME", "load-test.actor");
+    private static final String MESSAGE_APPLICATION_PROPERTIES_JSON = getEnv("MESSAGE_APPLICATION_PROPERTIES_JSON",
+            "{\"messageType\": \"TEST\", \"publisherId\": \"XX99999\", \"publicationId\": \"XX99999:TEST\", "
+                    + "\"originatingCountry\": \"XX\", \"protocolVersion\": \"TEST:0.0.0\", \"quadTree\": \",1004,\"}");
+
+    // Settings of the client processes that differ from the defaults of the examples, unless set in the environment
+    private static final Map<String, String> CLIENT_DEFAULTS = Map.of(
+            "ACTOR_API_DELIVERY_SELECTOR", "publicationId = 'XX99999:TEST'",
+            "ACTOR_API_SUBSCRIPTION_SELECTOR", "messageType = 'TEST'",
+            "MESSAGE_SEND_MODE", "pipelined",
+            "LOG_MODE", "async",
+            "LOG_MESSAGE_SAMPLE_RATE", "10000");
+
+    // The mock Actor API and the broker only listen on the loopback interface
+    private static final String HOST = "localhost";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static String getEnv(String key, String defaultValue) {
+        String value = System.getenv(key);
+        return value != null ? value : defaultValue;
+    }
+
+    // ======== TEST CERTIFICATES ========
+    // A throwaway CA, created for every run, that issues the server certificate of the mock Actor API and the broker
+    // and the client certificate of the actor. The client certificate chain with its key and the CA certificate are
+    // written as PEM files in the form the examples read them.
+    private static class TestCertificates {
+        private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        private final X500Name caName = new X500Name("CN=Load Test CA");
+        private final KeyPair caKeys;
+        private final X509Certificate caCertificate;
+        private final KeyPair serverKeys;
+        private final X509Certificate serverCertificate;
+        final Path caPem;
+        final Path clientPem;
+
+        TestCertificates(Path directory, String commonName) throws Exception {
+            caKeys = generateKeyPair();
+            caCertificate = issue(caName, caKeys.getPublic(), true, null, null);
+
+            serverKeys = generateKeyPair();
+            GeneralNames serverNames = new GeneralNames(new GeneralName[] {
+                    new GeneralName(GeneralName.dNSName, HOST),
+                    new GeneralName(GeneralName.iPAddress, "127.0.0.1")});
+            serverCertificate = issue(new X500Name("CN=" + HOST), serverKeys.getPublic(), false, serverNames,
+                    KeyPurposeId.id_kp_serverAuth);
+
+            KeyPair clientKeys = generateKeyPair();
+            X509Certificate clientCertificate = issue(new X500Name("CN=" + commonName), clientKeys.getPublic(), false,
+                    null, KeyPurposeId.id_kp_clientAuth);
+
+            caPem = directory.resolve("ca.pem");
+            Files.writeString(caPem, pem(caCertificate));
+            // A key pair is written in the traditional format, which the examples read as a PEMKeyPair
+            clientPem = directory.resolve("chain_and_key.pem");
+            Files.writeString(clientPem, pem(clientCertificate, caCertificate, clientKeys));
+        }
+
+        // The server side of both the mock Actor API and the broker, which only trusts client certificates of the CA
+        SSLContext serverContext() throws Exception {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null);
+            keyStore.setKeyEntry("server", serverKeys.getPrivate(), new char[0],
+                    new Certificate[] {serverCertificate, caCertificate});
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, new char[0]);
+
+            KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            trustStore.load(null);
+            trustStore.setCertificateEntry("ca", caCertificate);
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trustStore);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
+            return sslContext;
+        }
+
+        // Signs a PEM certificate signing request, returns the client certificate followed by the CA certificate
+        List<X509Certificate> sign(String csrPem) throws Exception {
+            Object parsed;
+            try (PEMParser parser = new PEMParser(new StringReader(csrPem))) {
+                parsed = parser.readObject();
+            }
+            if (!(parsed instanceof PKCS10CertificationRequest)) {
+                throw new IllegalArgumentException("Not a certificate signing request");
+            }
+            JcaPKCS10CertificationRequest request = new JcaPKCS10CertificationRequest((PKCS10CertificationRequest) parsed)
+                    .setProvider("BC");
+            if (!request.isSignatureValid(new JcaContentVerifierProviderBuilder().setProvider("BC")
+                    .build(request.getSubjectPublicKeyInfo()))) {
+                throw new IllegalArgumentException("Invalid signature on the certificate signing request");
+            }
+            X509Certificate certificate = issue(request.getSubject(), request.getPublicKey(), false, null,
+                    KeyPurposeId.id_kp_clientAuth);
+            return List.of(certificate, caCertificate);
+        }
+
+        private X509Certificate issue(X500Name subject, PublicKey key, boolean ca, GeneralNames names,
+                                      KeyPurposeId purpose) throws Exception {
+            Instant now = Instant.now();
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(caName, new BigInteger(63, RANDOM),
+                    Date.from(now.minus(1, ChronoUnit.HOURS)), Date.from(now.plus(7, ChronoUnit.DAYS)), subject, key);
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(ca
+                    ? KeyUsage.keyCertSign | KeyUsage.cRLSign
+                    : KeyUsage.digitalSignature | KeyUsage.keyAgreement));
+            if (names != null) {
+                builder.addExtension(Extension.subjectAlternativeName, false, names);
+            }
+            if (purpose != null) {
+                builder.addExtension(Extension.extendedKeyUsage, false, new ExtendedKeyUsage(purpose));
+            }
+            return new JcaX509CertificateConverter().setProvider("BC").getCertificate(
+                    builder.build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).setProvider("BC").build(caKeys.getPrivate())));
+        }
+
+        private static KeyPair generateKeyPair() throws Exception {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC", "BC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"), RANDOM);
+            return generator.generateKeyPair();
+        }
+
+        static String pem(Object... objects) throws IOException {
+            StringWriter out = new StringWriter();
+            try (JcaPEMWriter writer = new JcaPEMWriter(out)) {
+                for (Object object : objects) {
+                    writer.writeObject(object);
+                }
+            }
+            return out.toString();
+        }
+    }
+
+    // ======== MOCK ACTOR API ========
+    // Serves the paths of docs/openapi.yml for the actor of the client certificate: deliveries, subscriptions, their
+    // capabilities, the onboarded capabilities and x509/csr. A new delivery or subscription is REQUESTED for
+    // LOAD_TEST_REQUESTED_SECONDS and CREATED after that, with LOAD_TEST_SHARD_COUNT endpoints on the broker. A
+    // resource without a selector is NOT_VALID. The status follows from the age of the resource whenever it is read.
+    private static class MockActorApi {
+        private final TestCertificates certificates;
+        private final int amqpPort;
+        private final Map<String, ApiResource> deliveries = new ConcurrentHashMap<>();
+        private final Map<String, ApiResource> subscriptions = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, Object>> onboardedCapabilities = new ConcurrentHashMap<>();
+        private final Map<String, Object> offeredCapability;
+        private final AtomicLong nextId = new AtomicLong();
+        private final LongAdder requests = new LongAdder();
+        private HttpsServer server;
+
+        MockActorApi(TestCertificates certificates, int amqpPort) throws IOException {
+            this.certificates = certificates;
+            this.amqpPort = amqpPort;
+            this.offeredCapability = capabilityOf(objectMapper.readValue(MESSAGE_APPLICATION_PROPERTIES_JSON,
+                    new TypeReference<Map<String, Object>>() {}));
+        }
+
+        // Returns the port the API listens on
+        int start(SSLContext sslContext, int port) throws IOException {
+            server = HttpsServer.create(new InetSocketAddress(HOST, port), 64);
+            server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+                @Override
+                public void configure(HttpsParameters params) {
+                    SSLParameters parameters = getSSLContext().getDefaultSSLParameters();
+                    parameters.setNeedClientAuth(true);
+                    params.setSSLParameters(parameters);
+                }
+            });
+            server.setExecutor(Executors.newFixedThreadPool(4, runnable -> {
+                Thread thread = new Thread(runnable, "mock-actor-api");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.createContext("/", this::handle);
+            server.start();
+            return server.getAddress().getPort();
+        }
+
+        long requests() {
+            return requests.sum();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            requests.increment();
+            try {
+                // Paths are /{actorCommonName}/{collection}[/{id}]
+                String[] path = exchange.getRequestURI().getPath().split("/");
+                String method = exchange.getRequestMethod();
+                if (path.length < 3 || path.length > 4) {
+                    respond(exchange, 404, error("Unknown path"));
+                } else if (!path[1].equals(peerCommonName(exchange))) {
+                    respond(exchange, 403, error("Certificate is not issued to " + path[1]));
+                } else if ("deliveries".equals(path[2]) || "subscriptions".equals(path[2])) {
+                    Map<String, ApiResource> resources = "deliveries".equals(path[2]) ? deliveries : subscriptions;
+                    handleResources(exchange, method, path[2], resources, path.length > 3 ? path[3] : null);
+                } else if ("capabilities".equals(path[2])) {
+                    handleCapabilities(exchange, method, path.length > 3 ? path[3] : null);
+                } else if ("x509".equals(path[2]) && path.length > 3 && "csr".equals(path[3]) && "POST".equals(method)) {
+                    Map<String, Object> request = readJson(exchange);
+                    String csr = new String(Base64.getDecoder().decode((String) request.get("csr")), StandardCharsets.US_ASCII);
+                    List<String> encoded = new ArrayList<>();
+                    for (X509Certificate certificate : certificates.sign(csr)) {
+                        encoded.add(Base64.getEncoder().encodeToString(
+                                TestCertificates.pem(certificate).getBytes(StandardCharsets.US_ASCII)));
+                    }
+                    respond(exchange, 200, Map.of("certificates", encoded));
+                } else {
+                    respond(exchange, 404, error("Unknown path"));
+                }
+            } catch (IllegalArgumentException | ClassCastException | NullPointerException e) {
+                respond(exchange, 400, error("Bad request: " + e.getMessage()));
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error handling " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+                respond(exchange, 500, error(String.valueOf(e.getMessage())));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void handleResources(HttpExchange exchange, String method, String kind, Map<String, ApiResource> resources,
+                                     String id) throws IOException {
+            if (id == null && "POST".equals(method)) {
+                Object selector = readJson(exchange).get("selector");
+                ApiResource resource = new ApiResource(kind.substring(0, 1) + nextId.incrementAndGet(), kind,
+                        selector instanceof String ? (String) selector : null);
+                resources.put(resource.id, resource);
+                logger.info("Created " + resource.id + " in " + kind + " with selector '" + resource.selector + "'");
+                respond(exchange, 200, resource.toJson(amqpPort));
+            } else if (id == null && "GET".equals(method)) {
+                List<Map<String, Object>> list = new ArrayList<>();
+                for (ApiResource resource : resources.values()) {
+                    list.add(resource.toJson(amqpPort));
+                }
+                respond(exchange, 200, list);
+            } else if ("capabilities".equals(id) && "GET".equals(method)) {
+                List<Map<String, Object>> list = new ArrayList<>();
+                list.add(offeredCapability);
+                for (Map<String, Object> capability : onboardedCapabilities.values()) {
+                    Map<String, Object> withoutId = new LinkedHashMap<>(capability);
+                    withoutId.remove("id");
+                    list.add(withoutId);
+                }
+                respond(exchange, 200, list);
+            } else if (id != null && "GET".equals(method)) {
+                ApiResource resource = resources.get(id);
+                respond(exchange, resource != null ? 200 : 404, resource != null ? resource.toJson(amqpPort) : error("Not found"));
+            } else if (id != null && "DELETE".equals(method)) {
+                boolean removed = resources.remove(id) != null;
+                if (removed) {
+                    logger.info("Deleted " + id + " from " + kind);
+                }
+                respond(exchange, removed ? 204 : 404, removed ? null : error("Not found"));
+            } else {
+                respond(exchange, 405, error("Method not allowed"));
+            }
+        }
+
+        private void handleCapabilities(HttpExchange exchange, String method, String id) throws IOException {
+            if (id == null && "POST".equals(method)) {
+                Map<String, Object> capability = new LinkedHashMap<>();
+                capability.put("id", "c" + nextId.incrementAndGet());
+                capability.putAll(readJson(exchange));
+                onboardedCapabilities.put((String) capability.get("id"), capability);
+                respond(exchange, 200, capability);
+            } else if (id == null && "GET".equals(method)) {
+                respond(exchange, 200, new ArrayList<>(onboardedCapabilities.values()));
+            } else if (id != null && "GET".equals(method)) {
+                Map<String, Object> capability = onboardedCapabilities.get(id);
+                respond(exchange, capability != null ? 200 : 404, capability != null ? capability : error("Not found"));
+            } else if (id != null && "DELETE".equals(method)) {
+                boolean removed = onboardedCapabilities.remove(id) != null;
+                respond(exchange, removed ? 204 : 404, removed ? null : error("Not found"));
+            } else {
+                respond(exchange, 405, error("Method not allowed"));
+            }
+        }
+
+        // The capability the messages of the delivery clients match, published with the configured message rate
+        private static Map<String, Object> capabilityOf(Map<String, Object> properties) {
+            Map<String, Object> application = new LinkedHashMap<>();
+            for (String field : List.of("messageType", "protocolVersion", "publisherId", "publicationId", "originatingCountry")) {
+                if (properties.get(field) != null) {
+                    application.put(field, String.valueOf(properties.get(field)));
+                }
+            }
+            List<String> tiles = new ArrayList<>();
+            for (String tile : String.valueOf(properties.getOrDefault("quadTree", "")).split(",")) {
+                if (!tile.isEmpty()) {
+                    tiles.add(tile);
+                }
+            }
+            application.put("quadTree", tiles);
+            Map<String, Object> metadata = new LinkedHashMap<>();
+            metadata.put("shardCount", LOAD_TEST_SHARD_COUNT);
+            if (LOAD_TEST_MESSAGE_RATE > 0) {
+                metadata.put("maxMessageRate", LOAD_TEST_MESSAGE_RATE);
+            }
+            Map<String, Object> capability = new LinkedHashMap<>();
+            capability.put("application", application);
+            capability.put("metadata", metadata);
+            return capability;
+        }
+
+        // The actor name in the path must be the common name of the client certificate
+        private static String peerCommonName(HttpExchange exchange) {
+            try {
+                String subject = ((HttpsExchange) exchange).getSSLSession().getPeerPrincipal().getName();
+                return subject.startsWith("CN=") ? subject.substring(3).split(",")[0] : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private static Map<String, Object> readJson(HttpExchange exchange) throws IOException {
+            return objectMapper.readValue(exchange.getRequestBody(), new TypeReference<Map<String, Object>>() {});
+        }
+
+        private static Map<String, Object> error(String message) {
+            return Map.of("message", message);
+        }
+
+        private static void respond(HttpExchange exchange, int status, Object body) throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] json = objectMapper.writeValueAsBytes(body);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, json.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(json);
+            }
+        }
+    }
+
+    // A delivery or subscription of the mock Actor API
+    private static final class ApiResource {
+        final String id;
+        final String kind;
+        final String selector;
+        final long requestedAt = System.currentTimeMillis();
+        final long createdAt = requestedAt + TimeUnit.SECONDS.toMillis(LOAD_TEST_REQUESTED_SECONDS);
+
+        ApiResource(String id, String kind, String selector) {
+            this.id = id;
+            this.kind = kind;
+            this.selector = selector;
+        }
+
+        Map<String, Object> toJson(int amqpPort) {
+            boolean valid = selector != null && !selector.isBlank();
+            boolean created = valid && System.currentTimeMillis() >= createdAt;
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("id", id);
+            json.put("selector", selector);
+            json.put("status", !valid ? "NOT_VALID" : created ? "CREATED" : "REQUESTED");
+            List<Map<String, Object>> endpoints = new ArrayList<>();
+            for (int shard = 1; created && shard <= LOAD_TEST_SHARD_COUNT; shard++) {
+                Map<String, Object> endpoint = new LinkedHashMap<>();
+                endpoint.put("host", HOST);
+                endpoint.put("port", amqpPort);
+                if ("deliveries".equals(kind)) {
+                    endpoint.put("target", Broker.DELIVERY_PREFIX + id + "/" + shard);
+                    endpoint.put("selector", selector);
+                    // The message rate of a delivery is spread over its endpoints
+                    if (LOAD_TEST_MESSAGE_RATE > 0) {
+                        endpoint.put("maxMessageRate", (LOAD_TEST_MESSAGE_RATE + LOAD_TEST_SHARD_COUNT - 1) / LOAD_TEST_SHARD_COUNT);
+                    }
+                } else {
+                    endpoint.put("source", Broker.SUBSCRIPTION_PREFIX + id + "/" + shard);
+                }
+                endpoints.add(endpoint);
+            }
+            json.put("endpoints", endpoints);
+            json.put("lastUpdatedTimestamp", created ? createdAt : requestedAt);
+            return json;
+        }
+    }
+
+    // ======== AMQP 1.0 BROKER ========
+    // Stand-in for the AMQP endpoints of the interchange. Connections need TLS with a client certificate of the test
+    // CA and SASL EXTERNAL. Every message received on a delivery target is accepted and queued for every subscription
+    // with a link attached to one of its sources, the links of a subscription take turns as their credit allows.
+    // Selectors are not evaluated, every subscription receives every message. While a subscription queue holds
+    // LOAD_TEST_QUEUE_LIMIT messages, credit for the delivery links is withheld until all queues are down to half of
+    // that. Links and queues are only touched by the reactor thread, the counters are read by the load generator.
+    private static class Broker extends BaseHandler {
+        static final String DELIVERY_PREFIX = "load-test/deliveries/";
+        static final String SUBSCRIPTION_PREFIX = "load-test/subscriptions/";
+        private static final int DELIVERY_CREDIT = 1000;
+
+        private final SSLContext sslContext;
+        private final Map<String, SubscriptionQueue> queues = new HashMap<>();
+        private final List<Receiver> deliveryLinks = new ArrayList<>();
+        // Credit not yet given back to the delivery links because the queues are full
+        private final Map<Receiver, Integer> withheldCredit = new HashMap<>();
+        private long nextTag;
+
+        final LongAdder messagesIn = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder messagesOut = new LongAdder();
+        final LongAdder messagesNotAccepted = new LongAdder();
+        // From receiving a message until the subscription client settled it
+        final LatencyHistogram forwardLatency = new LatencyHistogram();
+        volatile int deliveryLinkCount;
+        volatile int subscriptionLinkCount;
+        volatile int queuedMessages;
+        // Set when the clients are stopped, their connections are reset then
+        volatile boolean stopping;
+
+        // Accepts SASL EXTERNAL only, the client is authenticated by its certificate during the TLS handshake
+        private static final SaslListener EXTERNAL_ONLY = new SaslListener() {
+            @Override
+            public void onSaslInit(Sasl sasl, Transport transport) {
+                String[] mechanisms = sasl.getRemoteMechanisms();
+                boolean external = mechanisms.length > 0 && "EXTERNAL".equals(mechanisms[0]);
+                sasl.done(external ? Sasl.SaslOutcome.PN_SASL_OK : Sasl.SaslOutcome.PN_SASL_AUTH);
+            }
+
+            @Override
+            public void onSaslMechanisms(Sasl sasl, Transport transport) {
+            }
+
+            @Override
+            public void onSaslChallenge(Sasl sasl, Transport transport) {
+            }
+
+            @Override
+            public void onSaslResponse(Sasl sasl, Transport transport) {
+            }
+
+            @Override
+            public void onSaslOutcome(Sasl sasl, Transport transport) {
+            }
+        };
+
+        Broker(SSLContext sslContext) {
+            this.sslContext = sslContext;
+        }
+
+        // Runs the broker on a daemon thread and returns the port it listens on
+        int start(int port) throws IOException {
+            if (port == 0) {
+                // The acceptor doesn't report the port it was bound to, so a free port is picked up front
+                try (ServerSocket socket = new ServerSocket(0, 1, new InetSocketAddress(HOST, 0).getAddress())) {
+                    port = socket.getLocalPort();
+                }
+            }
+            // SASL is set up per connection, the default would offer ANONYMOUS
+            ReactorOptions options = new ReactorOptions();
+            options.setEnableSaslByDefault(false);
+            Reactor reactor = Proton.reactor(options);
+            reactor.acceptor(HOST, port, this);
+            Thread thread = new Thread(reactor::run, "broker");
+            thread.setDaemon(true);
+            thread.start();
+            return port;
+        }
+
+        @Override
+        public void onConnectionBound(Event event) {
+            Transport transport = event.getTransport();
+            Sasl sasl = transport.sasl();
+            sasl.server();
+            sasl.setMechanisms("EXTERNAL");
+            sasl.setListener(EXTERNAL_ONLY);
+
+            SslDomain sslDomain = Proton.sslDomain();
+            sslDomain.init(SslDomain.Mode.SERVER);
+            sslDomain.setPeerAuthentication(SslDomain.VerifyMode.VERIFY_PEER);
+            sslDomain.setSslContext(sslContext);
+            transport.ssl(sslDomain);
+        }
+
+        @Override
+        public void onConnectionRemoteOpen(Event event) {
+            Connection connection = event.getConnection();
+            connection.setContainer("load-test-broker");
+            connection.open();
+        }
+
+        @Override
+        public void onSessionRemoteOpen(Event event) {
+            event.getSession().open();
+        }
+
+        @Override
+        public void onLinkRemoteOpen(Event event) {
+            Link link = event.getLink();
+            if (link.getLocalState() != EndpointState.UNINITIALIZED) {
+                return;
+            }
+            link.setSource(link.getRemoteSource());
+            link.setTarget(link.getRemoteTarget());
+            if (link instanceof Receiver) {
+                // The client sends, into a delivery target
+                String address = link.getRemoteTarget() != null ? link.getRemoteTarget().getAddress() : null;
+                if (address == null || !address.startsWith(DELIVERY_PREFIX)) {
+                    refuse(link, "Unknown target " + address);
+                    return;
+                }
+                link.open();
+                ((Receiver) link).flow(DELIVERY_CREDIT);
+                deliveryLinks.add((Receiver) link);
+                deliveryLinkCount = deliveryLinks.size();
+            } else {
+                // The client receives, from a subscription source
+                String address = link.getRemoteSource() != null ? link.getRemoteSource().getAddress() : null;
+                if (address == null || !address.startsWith(SUBSCRIPTION_PREFIX) || address.indexOf('/', SUBSCRIPTION_PREFIX.length()) < 0) {
+                    refuse(link, "Unknown source " + address);
+                    return;
+                }
+                String subscriptionId = address.substring(SUBSCRIPTION_PREFIX.length(), address.lastIndexOf('/'));
+                SubscriptionQueue queue = queues.computeIfAbsent(subscriptionId, id -> new SubscriptionQueue());
+                queue.links.add((Sender) link);
+                link.setContext(queue);
+                link.open();
+                subscriptionLinkCount++;
+            }
+        }
+
+        private static void refuse(Link link, String reason) {
+            logger.warning("Refusing link: " + reason);
+            link.setCondition(new ErrorCondition(AmqpError.NOT_FOUND, reason));
+            link.open();
+            link.close();
+        }
+
+        @Override
+        public void onLinkRemoteClose(Event event) {
+            Link link = event.getLink();
+            link.close();
+            detach(link);
+        }
+
+        @Override
+        public void onTransportClosed(Event event) {
+            Connection connection = event.getConnection();
+            if (connection != null) {
+                for (Link link = connection.linkHead(EnumSet.allOf(EndpointState.class), EnumSet.allOf(EndpointState.class));
+                     link != null; link = link.next(EnumSet.allOf(EndpointState.class), EnumSet.allOf(EndpointState.class))) {
+                    detach(link);
+                }
+            }
+        }
+
+        @Override
+        public void onTransportError(Event event) {
+            if (stopping) {
+                return;
+            }
+            logger.warning("Transport error: " + event.getTransport().getCondition());
+        }
+
+        private void detach(Link link) {
+            if (link instanceof Receiver) {
+                if (deliveryLinks.remove(link)) {
+                    withheldCredit.remove(link);
+                    deliveryLinkCount = deliveryLinks.size();
+                }
+            } else if (link.getContext() instanceof SubscriptionQueue) {
+                if (((SubscriptionQueue) link.getContext()).links.remove(link)) {
+                    subscriptionLinkCount--;
+                }
+            }
+        }
+
+        @Override
+        public void onLinkFlow(Event event) {
+            Link link = event.getLink();
+            if (link instanceof Sender && link.getContext() instanceof SubscriptionQueue) {
+                pump((SubscriptionQueue) link.getContext());
+                releaseCredit();
+            }
+        }
+
+        @Override
+        public void onDelivery(Event event) {
+            Delivery delivery = event.getDelivery();
+            if (delivery.getLink() instanceof Receiver) {
+                if (delivery.isReadable() && !delivery.isPartial()) {
+                    receive((Receiver) delivery.getLink(), delivery);
+                }
+            } else if (!delivery.isSettled() && (delivery.remotelySettled() || delivery.getRemoteState() != null)) {
+                Queued message = (Queued) delivery.getContext();
+                forwardLatency.record(System.nanoTime() - message.receivedAt);
+                if (delivery.getRemoteState() instanceof Accepted) {
+                    messagesOut.increment();
+                } else {
+                    messagesNotAccepted.increment();
+                }
+                delivery.settle();
+            }
+        }
+
+        private void receive(Receiver receiver, Delivery delivery) {
+            int size = delivery.pending();
+            byte[] data = new byte[size];
+            int read = receiver.recv(data, 0, size);
+            receiver.advance();
+            delivery.disposition(Accepted.getInstance());
+            delivery.settle();
+            messagesIn.increment();
+            bytesIn.add(read);
+
+            // The same encoded message is queued for every subscription
+            Queued message = new Queued(data, read, System.nanoTime());
+            boolean full = false;
+            for (SubscriptionQueue queue : queues.values()) {
+                queue.messages.add(message);
+                queuedMessages++;
+                pump(queue);
+                full |= queue.messages.size() >= LOAD_TEST_QUEUE_LIMIT;
+            }
+            if (full) {
+                withheldCredit.merge(receiver, 1, Integer::sum);
+            } else {
+                receiver.flow(1);
+            }
+        }
+
+        // Sends queued messages for as long as the links of the subscription have credit
+        private void pump(SubscriptionQueue queue) {
+            while (!queue.messages.isEmpty()) {
+                Sender sender = queue.nextWithCredit();
+                if (sender == null) {
+                    return;
+                }
+                Queued message = queue.messages.poll();
+                queuedMessages--;
+                Delivery delivery = sender.delivery(tag());
+                delivery.setContext(message);
+                sender.send(message.data, 0, message.length);
+                sender.advance();
+            }
+        }
+
+        // Gives the withheld credit back once every queue is down to half of the limit
+        private void releaseCredit() {
+            if (withheldCredit.isEmpty()) {
+                return;
+            }
+            for (SubscriptionQueue queue : queues.values()) {
+                if (queue.messages.size() > LOAD_TEST_QUEUE_LIMIT / 2) {
+                    return;
+                }
+            }
+            for (Map.Entry<Receiver, Integer> entry : withheldCredit.entrySet()) {
+                entry.getKey().flow(entry.getValue());
+            }
+            withheldCredit.clear();
+        }
+
+        private byte[] tag() {
+            long value = nextTag++;
+            byte[] tag = new byte[8];
+            for (int i = 7; i >= 0; i--) {
+                tag[i] = (byte) value;
+                value >>>= 8;
+            }
+            return tag;
+        }
+    }
+
+    private static class SubscriptionQueue {
+        final ArrayDeque<Queued> messages = new ArrayDeque<>();
+        final List<Sender> links = new ArrayList<>();
+        private int next;
+
+        // The next link with credit, in turn
+        Sender nextWithCredit() {
+            for (int i = 0; i < links.size(); i++) {
+                int index = (next + i) % links.size();
+                Sender sender = links.get(index);
+                if (sender.getCredit() > 0 && sender.getLocalState() == EndpointState.ACTIVE) {
+                    next = index + 1;
+                    return sender;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Queued {
+        final byte[] data;
+        final int length;
+        final long receivedAt;
+
+        Queued(byte[] data, int length, long receivedAt) {
+            this.data = data;
+            this.length = length;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    // ======== LOAD GENERATOR ========
+    // The examples run as client processes started from this jar, pointed at the mock Actor API with the test
+    // certificates. The environment of the load test is passed on, so every setting of the examples, such as
+    // MESSAGE_BATCH_DELAY_MICROS or MESSAGE_CONSUMER_THREADS, applies to the clients too. Each client serves its
+    // metrics on its own port, counting up from LOAD_TEST_METRICS_PORT, from which its latencies are read.
+    private static class ClientProcess {
+        final String name;
+        final Process process;
+        final int metricsPort;
+        // The latency summary reported for the client
+        final String latencyMetric;
+
+        private ClientProcess(String name, Process process, int metricsPort, String latencyMetric) {
+            this.name = name;
+            this.process = process;
+            this.metricsPort = metricsPort;
+            this.latencyMetric = latencyMetric;
+        }
+
+        static ClientProcess start(String name, String mainClass, int metricsPort, String latencyMetric,
+                                   Map<String, String> environment) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            if (!LOAD_TEST_CLIENT_JAVA_OPTIONS.isBlank()) {
+                command.addAll(Arrays.asList(LOAD_TEST_CLIENT_JAVA_OPTIONS.trim().split("\\s+")));
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(mainClass);
+
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.environment().putAll(environment);
+            builder.environment().put("METRICS_PORT", String.valueOf(metricsPort));
+            File log = new File(LOAD_TEST_LOG_DIR, name + ".log");
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(log);
+            logger.info("Starting " + name + ", logging to " + log);
+            return new ClientProcess(name, builder.start(), metricsPort, latencyMetric);
+        }
+
+        void stop() {
+            process.destroy();
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Reads the latency summary from the Prometheus endpoint of the client, null when it doesn't answer
+        LatencySummary scrape() {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://" + HOST + ":" + metricsPort + "/metrics").openConnection();
+                connection.setConnectTimeout(2000);
+                connection.setReadTimeout(2000);
+                LatencySummary summary = new LatencySummary();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        summary.parse(latencyMetric, line);
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+                return summary;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    // A latency summary of one client, the quantiles are those of its slowest endpoint since the client started
+    private static final class LatencySummary {
+        final Map<String, Double> quantiles = new TreeMap<>();
+        double sumSeconds;
+        long count;
+
+        void parse(String metric, String line) {
+            int value = line.lastIndexOf(' ');
+            if (value < 0 || line.startsWith("#")) {
+                return;
+            }
+            double sample = Double.parseDouble(line.substring(value + 1));
+            if (line.startsWith(metric + "{")) {
+                int quantile = line.indexOf("quantile=\"");
+                if (quantile >= 0) {
+                    String key = line.substring(quantile + 10, line.indexOf('"', quantile + 10));
+                    quantiles.merge(key, sample, Math::max);
+                }
+            } else if (line.startsWith(metric + "_sum{")) {
+                sumSeconds += sample;
+            } else if (line.startsWith(metric + "_count{")) {
+                count += (long) sample;
+            }
+        }
+
+        // The mean latency of the samples taken since the earlier summary
+        String meanSince(LatencySummary earlier) {
+            long samples = count - (earlier != null ? earlier.count : 0);
+            double seconds = sumSeconds - (earlier != null ? earlier.sumSeconds : 0);
+            return samples > 0 ? Math.round(seconds / samples * 1e6) + " us" : "n/a";
+        }
+
+        String describeQuantiles() {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, Double> entry : quantiles.entrySet()) {
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append('p').append(trimQuantile(entry.getKey()));
+                text.append(' ').append(Math.round(entry.getValue() * 1e6)).append(" us");
+            }
+            return text.length() > 0 ? text.toString() : "n/a";
+        }
+
+        // "0.99" becomes "99", "0.999" becomes "99.9"
+        private static String trimQuantile(String quantile) {
+            String percent = String.valueOf(Double.parseDouble(quantile) * 100);
+            return percent.endsWith(".0") ? percent.substring(0, percent.length() - 2) : percent;
+        }
+    }
+
+    // Counters of the broker at one moment, the difference of two snapshots gives the rates in between
+    private static final class BrokerSnapshot {
+        final long at = System.nanoTime();
+        final long in;
+        final long bytesIn;
+        final long out;
+        final long notAccepted;
+
+        BrokerSnapshot(Broker broker) {
+            in = broker.messagesIn.sum();
+            bytesIn = broker.bytesIn.sum();
+            out = broker.messagesOut.sum();
+            notAccepted = broker.messagesNotAccepted.sum();
+        }
+
+        String ratesSince(BrokerSnapshot earlier) {
+            double seconds = (at - earlier.at) / 1e9;
+            return String.format("in %.0f msg/s (%.2f MB/s), out %.0f msg/s, %d not accepted",
+                    (in - earlier.in) / seconds, (bytesIn - earlier.bytesIn) / seconds / 1e6,
+                    (out - earlier.out) / seconds, notAccepted - earlier.notAccepted);
+        }
+    }
+
+    private static Map<String, String> clientEnvironment(int apiPort, TestCertificates certificates) {
+        Map<String, String> environment = new HashMap<>();
+        CLIENT_DEFAULTS.forEach((key, value) -> {
+            if (System.getenv(key) == null) {
+                environment.put(key, value);
+            }
+        });
+        environment.put("ACTOR_API_HOST", HOST);
+        environment.put("ACTOR_API_PORT", String.valueOf(apiPort));
+        environment.put("ACTOR_COMMON_NAME", ACTOR_COMMON_NAME);
+        environment.put("ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM", certificates.clientPem.toString());
+        environment.put("CA_CERTIFICATE_PEM", certificates.caPem.toString());
+        environment.put("MESSAGE_APPLICATION_PROPERTIES_JSON", MESSAGE_APPLICATION_PROPERTIES_JSON);
+        return environment;
+    }
+
+    // Waits until the broker has the expected number of links, the clients first have to get their resources CREATED
+    private static void awaitLinks(String kind, IntSupplier links, int expected, List<ClientProcess> clients) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(LOAD_TEST_REQUESTED_SECONDS + 120);
+        while (links.getAsInt() < expected) {
+            for (ClientProcess client : clients) {
+                if (!client.process.isAlive()) {
+                    throw new IllegalStateException(client.name + " exited with status " + client.process.exitValue()
+                            + ", see " + new File(LOAD_TEST_LOG_DIR, client.name + ".log"));
+                }
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Only " + links.getAsInt() + " of " + expected + " " + kind + " links attached");
+            }
+            Thread.sleep(200);
+        }
+        logger.info("All " + expected + " " + kind + " links attached");
+    }
+
+    // Reports the broker rates every LOAD_TEST_REPORT_INTERVAL_SECONDS until the phase is over
+    private static void runPhase(String phase, int seconds, Broker broker, long[] reportedLatency) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        BrokerSnapshot previous = new BrokerSnapshot(broker);
+        while (System.nanoTime() < end) {
+            long remaining = end - System.nanoTime();
+            Thread.sleep(Math.max(1, Math.min(TimeUnit.SECONDS.toMillis(LOAD_TEST_REPORT_INTERVAL_SECONDS), TimeUnit.NANOSECONDS.toMillis(remaining))));
+            BrokerSnapshot current = new BrokerSnapshot(broker);
+            logger.info(phase + ": " + current.ratesSince(previous) + ", " + broker.queuedMessages + " queued, forward latency "
+                    + broker.forwardLatency.reportSince(reportedLatency));
+            previous = current;
+        }
+    }
+
+    private static void runLoadTest(Broker broker, MockActorApi api, int apiPort, TestCertificates certificates,
+                                    List<ClientProcess> clients) throws Exception {
+        Map<String, String> environment = clientEnvironment(apiPort, certificates);
+        int metricsPort = LOAD_TEST_METRICS_PORT;
+
+        // Step 1: start the subscription clients and wait until all their links are attached to the broker
+        List<ClientProcess> subscriptionClients = new ArrayList<>();
+        for (int i = 1; i <= LOAD_TEST_SUBSCRIPTIONS; i++) {
+            subscriptionClients.add(ClientProcess.start("subscription-" + i, "com.example.subscription.Main", metricsPort++,
+                    "amqp_receiver_end_to_end_latency_seconds", environment));
+        }
+        clients.addAll(subscriptionClients);
+        awaitLinks("subscription", () -> broker.subscriptionLinkCount, LOAD_TEST_SUBSCRIPTIONS * LOAD_TEST_SHARD_COUNT, clients);
+
+        // Step 2: start the delivery clients and wait until all their links are attached, they start sending at once
+        List<ClientProcess> deliveryClients = new ArrayList<>();
+        for (int i = 1; i <= LOAD_TEST_DELIVERIES; i++) {
+            deliveryClients.add(ClientProcess.start("delivery-" + i, "com.example.delivery.Main", metricsPort++,
+                    "amqp_sender_settle_latency_seconds", environment));
+        }
+        clients.addAll(deliveryClients);
+        awaitLinks("delivery", () -> broker.deliveryLinkCount, LOAD_TEST_DELIVERIES * LOAD_TEST_SHARD_COUNT, clients);
+
+        // Step 3: warm up, the JIT compilers of the clients and the broker settle in this phase
+        long[] reportedLatency = broker.forwardLatency.snapshot();
+        runPhase("Warmup", LOAD_TEST_WARMUP_SECONDS, broker, reportedLatency);
+
+        // Step 4: measure the sustained throughput
+        BrokerSnapshot start = new BrokerSnapshot(broker);
+        long[] measuredLatency = broker.forwardLatency.snapshot();
+        Map<ClientProcess, LatencySummary> startLatencies = new HashMap<>();
+        for (ClientProcess client : clients) {
+            startLatencies.put(client, client.scrape());
+        }
+        runPhase("Measurement", LOAD_TEST_DURATION_SECONDS, broker, reportedLatency);
+        BrokerSnapshot end = new BrokerSnapshot(broker);
+
+        // Step 5: report the throughput and latencies of the measurement
+        String offered = LOAD_TEST_MESSAGE_RATE > 0 ? LOAD_TEST_MESSAGE_RATE + " msg/s per delivery" : "unlimited";
+        logger.info("Sustained over " + LOAD_TEST_DURATION_SECONDS + " s with " + LOAD_TEST_DELIVERIES + " deliveries ("
+                + offered + "), " + LOAD_TEST_SUBSCRIPTIONS + " subscriptions and " + LOAD_TEST_SHARD_COUNT
+                + " shards: " + end.ratesSince(start));
+        logger.info("Broker forward latency, receiving until settled by the subscription: "
+                + broker.forwardLatency.reportSince(measuredLatency));
+        for (ClientProcess client : clients) {
+            LatencySummary summary = client.scrape();
+            if (summary == null) {
+                logger.warning(client.name + " metrics are not available on port " + client.metricsPort);
+                continue;
+            }
+            String what = client.latencyMetric.contains("end_to_end") ? "end-to-end latency" : "settle latency";
+            logger.info(client.name + " " + what + ": mean " + summary.meanSince(startLatencies.get(client))
+                    + " during the measurement, since start " + summary.describeQuantiles());
+        }
+        logger.info("Mock Actor API requests: " + api.requests());
+        broker.stopping = true;
+    }
+
+    // ======== METRICS ========
+    // Latency histogram in the style of HdrHistogram: values below 128 ns have a bucket each, above that every power of
+    // two range is split into 64 buckets, which keeps the error under 1.6%. Recording is an atomic increment without
+    // allocation, so any thread may record while others read.
+    private static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 64;
+        private static final int BUCKETS = 2 * SUB_BUCKETS + 40 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucketOf(Math.max(0, nanos)));
+        }
+
+        long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        // Describes the values recorded since the earlier snapshot, which is updated to the current counts
+        String reportSince(long[] previous) {
+            long[] window = new long[BUCKETS];
+            long total = 0;
+            int last = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                long current = counts.get(i);
+                window[i] = current - previous[i];
+                previous[i] = current;
+                if (window[i] > 0) {
+                    total += window[i];
+                    last = i;
+                }
+            }
+            if (total == 0) {
+                return "n/a";
+            }
+            return String.format("p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us",
+                    TimeUnit.NANOSECONDS.toMicros(valueAt(window, 0.50)), TimeUnit.NANOSECONDS.toMicros(valueAt(window, 0.90)),
+                    TimeUnit.NANOSECONDS.toMicros(valueAt(window, 0.99)), TimeUnit.NANOSECONDS.toMicros(valueAt(window, 0.999)),
+                    TimeUnit.NANOSECONDS.toMicros(upperBoundOf(last)));
+        }
+
+        // Upper bound of the bucket holding the quantile of the counts
+        static long valueAt(long[] counts, double quantile) {
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBoundOf(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            // Shifts the value into [64, 128), the shift selects the range and the shifted value the bucket within it
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+            int bucket = 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            long subBucket = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    // ======== STARTUP AND RUN LOOP ========
+    private static void dumpConfig() {
+        logger.info("LOAD_TEST_DELIVERIES: '" + LOAD_TEST_DELIVERIES + "'");
+        logger.info("LOAD_TEST_SUBSCRIPTIONS: '" + LOAD_TEST_SUBSCRIPTIONS + "'");
+        logger.info("LOAD_TEST_SHARD_COUNT: '" + LOAD_TEST_SHARD_COUNT + "'");
+        logger.info("LOAD_TEST_MESSAGE_RATE: '" + LOAD_TEST_MESSAGE_RATE + "'");
+        logger.info("LOAD_TEST_WARMUP_SECONDS: '" + LOAD_TEST_WARMUP_SECONDS + "'");
+        logger.info("LOAD_TEST_DURATION_SECONDS: '" + LOAD_TEST_DURATION_SECONDS + "'");
+        logger.info("LOAD_TEST_REPORT_INTERVAL_SECONDS: '" + LOAD_TEST_REPORT_INTERVAL_SECONDS + "'");
+        logger.info("LOAD_TEST_REQUESTED_SECONDS: '" + LOAD_TEST_REQUESTED_SECONDS + "'");
+        logger.info("LOAD_TEST_QUEUE_LIMIT: '" + LOAD_TEST_QUEUE_LIMIT + "'");
+        logger.info("LOAD_TEST_API_PORT: '" + LOAD_TEST_API_PORT + "'");
+        logger.info("LOAD_TEST_AMQP_PORT: '" + LOAD_TEST_AMQP_PORT + "'");
+        logger.info("LOAD_TEST_METRICS_PORT: '" + LOAD_TEST_METRICS_PORT + "'");
+        logger.info("LOAD_TEST_LOG_DIR: '" + LOAD_TEST_LOG_DIR + "'");
+        logger.info("LOAD_TEST_CLIENT_JAVA_OPTIONS: '" + LOAD_TEST_CLIENT_JAVA_OPTIONS + "'");
+        logger.info("ACTOR_COMMON_NAME: '" + ACTOR_COMMON_NAME + "'");
+        logger.info("MESSAGE_APPLICATION_PROPERTIES_JSON: '" + MESSAGE_APPLICATION_PROPERTIES_JSON + "'");
+    }
+
+    private static void configureLogging() {
+        // One line per record
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT.%1$tL %4$s %5$s%6$s%n");
+        ConsoleHandler handler = new ConsoleHandler();
+        handler.setLevel(Level.ALL);
+
+        logger.setLevel(Level.ALL);
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+
+        Logger protonLogger = Logger.getLogger("org.apache.qpid.proton");
+        protonLogger.setLevel(Level.INFO);
+    }
+
+    public static void main(String[] args) {
+        configureLogging();
+        logger.info("Starting load test");
+        dumpConfig();
+
+        // The client processes are stopped on every exit, also when the load test is interrupted
+        List<ClientProcess> clients = new CopyOnWriteArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> clients.forEach(ClientProcess::stop)));
+
+        int status = 0;
+        try {
+            Security.addProvider(new BouncyCastleProvider());
+            Files.createDirectories(Paths.get(LOAD_TEST_LOG_DIR));
+            TestCertificates certificates = new TestCertificates(Files.createTempDirectory("load-test"), ACTOR_COMMON_NAME);
+            SSLContext sslContext = certificates.serverContext();
+
+            Broker broker = new Broker(sslContext);
+            int amqpPort = broker.start(LOAD_TEST_AMQP_PORT);
+            logger.info("Broker listening on " + HOST + ":" + amqpPort);
+            MockActorApi api = new MockActorApi(certificates, amqpPort);
+            int apiPort = api.start(sslContext, LOAD_TEST_API_PORT);
+            logger.info("Mock Actor API listening on https://" + HOST + ":" + apiPort + "/" + ACTOR_COMMON_NAME);
+
+            runLoadTest(broker, api, apiPort, certificates, clients);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Load test failed", e);
+            status = 1;
+        } finally {
+            clients.forEach(ClientProcess::stop);
+        }
+
+        logger.info("Load test stopped");
+        System.exit(status);
+    }
+}
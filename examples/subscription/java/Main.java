@@ -1,16 +1,37 @@
 package com.example;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.sun.net.httpserver.HttpServer;
 import okhttp3.*;
 import org.apache.qpid.proton.Proton;
+import org.apache.qpid.proton.amqp.Symbol;
+import org.apache.qpid.proton.amqp.UnsignedByte;
+import org.apache.qpid.proton.amqp.UnsignedInteger;
+import org.apache.qpid.proton.amqp.UnsignedShort;
 import org.apache.qpid.proton.amqp.messaging.Accepted;
+import org.apache.qpid.proton.amqp.messaging.ApplicationProperties;
+import org.apache.qpid.proton.amqp.messaging.MessageAnnotations;
+import org.apache.qpid.proton.amqp.messaging.Rejected;
+import org.apache.qpid.proton.amqp.messaging.Released;
 import org.apache.qpid.proton.amqp.messaging.Source;
 import org.apache.qpid.proton.amqp.messaging.Target;
 import org.apache.qpid.proton.amqp.transport.DeliveryState;
+import org.apache.qpid.proton.codec.AMQPDefinedTypes;
+import org.apache.qpid.proton.codec.DecoderImpl;
+import org.apache.qpid.proton.codec.EncoderImpl;
+import org.apache.qpid.proton.codec.WritableBuffer;
 import org.apache.qpid.proton.engine.BaseHandler;
 import org.apache.qpid.proton.engine.Connection;
 import org.apache.qpid.proton.engine.Delivery;
+import org.apache.qpid.proton.engine.EndpointState;
 import org.apache.qpid.proton.engine.Event;
 import org.apache.qpid.proton.engine.Link;
 import org.apache.qpid.proton.engine.Receiver;
@@ -27,6 +48,10 @@ import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
@@ -34,23 +59,64 @@ import javax.net.ssl.X509TrustManager;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.cert.CertificateFactory;
-import java.text.SimpleDateFormat;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 import java.util.logging.ConsoleHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 public class Main {
-    private static final Logger logger = Logger.getLogger(Main.class.getName());
+    static final Logger logger = Logger.getLogger(Main.class.getName());
 
     // Configuration by environment variables
     private static final String ACTOR_API_HOST = getEnv("ACTOR_API_HOST", "hostname_of_the_actor_api");
@@ -59,9 +125,27 @@ public class Main {
     private static final String ACTOR_COMMON_NAME = getEnv("ACTOR_COMMON_NAME", "cn_of_the_actor_client_certificate");
     private static final String ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM = getEnv("ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM", "pem_with_x509_certificate_chain_and_private_key");
     private static final String CA_CERTIFICATE_PEM = getEnv("CA_CERTIFICATE_PEM", "pem_with_x509_certificate");
+    private static final int RECEIVER_MAX_CREDIT = Integer.parseInt(getEnv("RECEIVER_MAX_CREDIT", "1000"));
+    private static final String MESSAGE_RECEIVE_MODE = getEnv("MESSAGE_RECEIVE_MODE", "decode");
+    private static final int MESSAGE_CONSUMER_THREADS = Integer.parseInt(getEnv("MESSAGE_CONSUMER_THREADS", "0"));
+    private static final int ACTOR_API_POLL_INTERVAL = Integer.parseInt(getEnv("ACTOR_API_POLL_INTERVAL", "10"));
+    private static final boolean ACTOR_API_CAPABILITY_CHECK = Boolean.parseBoolean(getEnv("ACTOR_API_CAPABILITY_CHECK", "true"));
+    private static final String MESSAGE_CONSUMER_SELECTORS_JSON = getEnv("MESSAGE_CONSUMER_SELECTORS_JSON", "{}");
+    private static final String MESSAGE_CONSUMER_QUADTREES_JSON = getEnv("MESSAGE_CONSUMER_QUADTREES_JSON", "{}");
+    private static final String MESSAGE_LOG_DIR = getEnv("MESSAGE_LOG_DIR", "");
+    private static final int MESSAGE_LOG_RETENTION_MINUTES = Integer.parseInt(getEnv("MESSAGE_LOG_RETENTION_MINUTES", "60"));
+    private static final int MESSAGE_LOG_REPLAY_MINUTES = Integer.parseInt(getEnv("MESSAGE_LOG_REPLAY_MINUTES", "0"));
+    private static final int METRICS_PORT = Integer.parseInt(getEnv("METRICS_PORT", "0"));
+    private static final long MESSAGE_LATENCY_CLOCK_OFFSET_MICROS = Long.parseLong(getEnv("MESSAGE_LATENCY_CLOCK_OFFSET_MICROS", "0"));
+    private static final String LOG_MODE = getEnv("LOG_MODE", "sync");
+    private static final int LOG_MESSAGE_SAMPLE_RATE = Integer.parseInt(getEnv("LOG_MESSAGE_SAMPLE_RATE", "1"));
 
-    private static final ObjectMapper objectMapper = new ObjectMapper();
+    static final ObjectMapper objectMapper = new ObjectMapper();
     private static OkHttpClient httpClient;
+    private static final UsagePolicyInterceptor usagePolicy = new UsagePolicyInterceptor();
+    private static MessageRouter messageRouter = new MessageRouter();
+    // Received messages are only accepted once they are in this log, null when MESSAGE_LOG_DIR is not set
+    private static InboundLog inboundLog;
 
     private static String getEnv(String key, String defaultValue) {
         String value = System.getenv(key);
@@ -73,43 +157,42 @@ public class Main {
         return String.format("https://%s:%s/%s/%s", ACTOR_API_HOST, ACTOR_API_PORT, ACTOR_COMMON_NAME, endpoint);
     }
 
-    private static Response apiGet(String endpoint) throws IOException {
-        Request request = new Request.Builder()
-                .url(apiUrl(endpoint))
-                .build();
-        return httpClient.newCall(request).execute();
-    }
-
-    private static Response apiPost(String endpoint, String jsonData) throws IOException {
-        RequestBody body = RequestBody.create(jsonData, MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(apiUrl(endpoint))
-                .post(body)
-                .build();
-        return httpClient.newCall(request).execute();
+    // Completes with the subscription, or with null when it doesn't exist
+    private static CompletableFuture<Subscription> apiGetSubscriptionAsync(String id) {
+        return apiGetAsync("subscriptions/" + id, SUBSCRIPTION_READER);
     }
 
-    private static Response apiDelete(String endpoint) throws IOException {
+    // Completes with the HTTP status code of the response
+    private static CompletableFuture<Integer> apiDeleteSubscriptionAsync(String id) {
         Request request = new Request.Builder()
-                .url(apiUrl(endpoint))
+                .url(apiUrl("subscriptions/" + id))
                 .delete()
                 .build();
-        return httpClient.newCall(request).execute();
-    }
-
-    private static Response apiGetSubscription(String id) throws IOException {
-        return apiGet("subscriptions/" + id);
+        return apiCallAsync(request, Response::code);
     }
 
-    private static Response apiDeleteSubscription(String id) throws IOException {
-        return apiDelete("subscriptions/" + id);
-    }
-
-    private static Response apiCreateSubscription() throws IOException {
+    // Completes with the created subscription
+    private static CompletableFuture<Subscription> apiCreateSubscriptionAsync() {
         Map<String, Object> jsonData = new HashMap<>();
         jsonData.put("selector", ACTOR_API_SUBSCRIPTION_SELECTOR);
-        String json = objectMapper.writeValueAsString(jsonData);
-        return apiPost("subscriptions", json);
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(jsonData);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        RequestBody body = RequestBody.create(json, MediaType.parse("application/json"));
+        Request request = new Request.Builder()
+                .url(apiUrl("subscriptions"))
+                .post(body)
+                .build();
+        return apiCallAsync(request, response -> {
+            if (!response.isSuccessful()) {
+                throw new IOException("Creating the subscription failed with HTTP status " + response.code() + ": "
+                        + response.body().string());
+            }
+            return SUBSCRIPTION_READER.readValue(response.body().byteStream());
+        });
     }
 
     // ======== SSL Configuration for HTTP Client ========
@@ -175,27 +258,509 @@ public class Main {
                 .sslSocketFactory(sslContext.getSocketFactory(), (X509TrustManager) tmf.getTrustManagers()[0])
                 .connectTimeout(30, TimeUnit.SECONDS)
                 .readTimeout(30, TimeUnit.SECONDS)
+                .addInterceptor(usagePolicy)
+                .build();
+    }
+
+    // ======== USAGE POLICY ========
+    // Keeps the Actor API calls within the usage policy: GET and DELETE at most once per 5 seconds per path, POST at
+    // most once per 30 seconds per path. A call that comes too early waits for its turn. Concurrent GET calls for the
+    // same path share a single request, every caller gets its own copy of the response. Asynchronous calls reserve
+    // their turn before they are enqueued, see reserveTurn, and pass the interceptor untouched.
+    private static class UsagePolicyInterceptor implements Interceptor {
+        private static final long GET_DELETE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+        private static final long POST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+        // Earliest time the next call may be made, by method and path
+        private final Map<String, AtomicLong> nextAllowed = new ConcurrentHashMap<>();
+        private final Map<String, CompletableFuture<BufferedResponse>> inFlight = new ConcurrentHashMap<>();
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            if (request.tag(UsagePolicyInterceptor.class) == this) {
+                return chain.proceed(request);
+            }
+            String key = keyOf(request);
+            if (!"GET".equals(request.method())) {
+                awaitTurn(key, intervalOf(request));
+                return chain.proceed(request);
+            }
+
+            CompletableFuture<BufferedResponse> call = new CompletableFuture<>();
+            CompletableFuture<BufferedResponse> existing = inFlight.putIfAbsent(key, call);
+            if (existing != null) {
+                return join(existing).copyFor(request);
+            }
+            try {
+                awaitTurn(key, intervalOf(request));
+                // Buffer the body so the response can be handed to every caller waiting for it
+                BufferedResponse response = new BufferedResponse(chain.proceed(request));
+                call.complete(response);
+                return response.copyFor(request);
+            } catch (IOException | RuntimeException e) {
+                call.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, call);
+            }
+        }
+
+        // Reserves the next slot for an asynchronous request and returns the number of nanoseconds until it has been
+        // reached. The request must then be sent as returned by reserved, so the interceptor doesn't wait again.
+        long reserveTurn(Request request) {
+            return reserveSlot(keyOf(request), intervalOf(request));
+        }
+
+        Request reserved(Request request) {
+            return request.newBuilder().tag(UsagePolicyInterceptor.class, this).build();
+        }
+
+        // Reserves the next slot for the method and path and sleeps until it has been reached
+        private void awaitTurn(String key, long intervalNanos) throws IOException {
+            long waitNanos = reserveSlot(key, intervalNanos);
+            if (waitNanos > 0) {
+                logger.fine("Delaying " + key + " by " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms (usage policy)");
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for usage policy");
+                }
+            }
+        }
+
+        // Returns the number of nanoseconds until the reserved slot
+        private long reserveSlot(String key, long intervalNanos) {
+            AtomicLong next = nextAllowed.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+            long now = System.nanoTime();
+            long current;
+            long slot;
+            do {
+                current = next.get();
+                slot = Math.max(now, current);
+            } while (!next.compareAndSet(current, slot + intervalNanos));
+            return slot - now;
+        }
+
+        private static String keyOf(Request request) {
+            return request.method() + " " + request.url().encodedPath();
+        }
+
+        private static long intervalOf(Request request) {
+            return "POST".equals(request.method()) ? POST_INTERVAL_NANOS : GET_DELETE_INTERVAL_NANOS;
+        }
+
+        private static BufferedResponse join(CompletableFuture<BufferedResponse> call) throws IOException {
+            try {
+                return call.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for shared request");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+    }
+
+    private static class BufferedResponse {
+        private final Response response;
+        private final byte[] body;
+        private final MediaType contentType;
+
+        BufferedResponse(Response response) throws IOException {
+            try (ResponseBody responseBody = response.body()) {
+                this.response = response;
+                this.body = responseBody != null ? responseBody.bytes() : new byte[0];
+                this.contentType = responseBody != null ? responseBody.contentType() : null;
+            }
+        }
+
+        Response copyFor(Request request) {
+            return response.newBuilder()
+                    .request(request)
+                    .body(ResponseBody.create(body, contentType))
+                    .build();
+        }
+    }
+
+    // ======== ASYNC ACTOR API ========
+    // The Actor API functions don't block. Calls are enqueued on the dispatcher and connection pool of the shared
+    // HTTP client, so an outstanding call doesn't hold a thread. A call that comes
+    // too early for the usage policy is enqueued after a delay instead of sleeping, and concurrent GET calls for the
+    // same path share a single request and its parsed response.
+    private static final Map<String, CompletableFuture<?>> asyncGetsInFlight = new ConcurrentHashMap<>();
+
+    private interface ResponseParser<T> {
+        T parse(Response response) throws IOException;
+    }
+
+    private static <T> CompletableFuture<T> apiCallAsync(Request request, ResponseParser<T> parser) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Call call = httpClient.newCall(usagePolicy.reserved(request));
+        Callback callback = new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    result.complete(parser.parse(response));
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+        long waitNanos = usagePolicy.reserveTurn(request);
+        if (waitNanos > 0) {
+            logger.fine("Delaying " + request.method() + " " + request.url().encodedPath() + " by "
+                    + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms (usage policy)");
+            CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS).execute(() -> call.enqueue(callback));
+        } else {
+            call.enqueue(callback);
+        }
+        return result;
+    }
+
+    // Completes with the parsed response, or with null when the resource doesn't exist
+    @SuppressWarnings("unchecked")
+    private static <T> CompletableFuture<T> apiGetAsync(String endpoint, ObjectReader reader) {
+        CompletableFuture<T> call = new CompletableFuture<>();
+        CompletableFuture<T> existing = (CompletableFuture<T>) asyncGetsInFlight.putIfAbsent(endpoint, call);
+        if (existing != null) {
+            return existing;
+        }
+        Request request = new Request.Builder()
+                .url(apiUrl(endpoint))
                 .build();
+        apiCallAsync(request, response -> {
+            if (response.code() == 404) {
+                return null;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("GET " + endpoint + " failed with HTTP status " + response.code());
+            }
+            return reader.<T>readValue(response.body().byteStream());
+        }).whenComplete((value, e) -> {
+            asyncGetsInFlight.remove(endpoint, call);
+            if (e != null) {
+                call.completeExceptionally(e);
+            } else {
+                call.complete(value);
+            }
+        });
+        return call;
+    }
+
+    // Gets the resource again every interval while its status is "REQUESTED". Completes with the first response with
+    // another status, or with null when the resource doesn't exist. The gets are scheduled on the executor, no thread
+    // sleeps in between.
+    private static <T extends ApiResource> CompletableFuture<T> apiGetWhileRequestedAsync(
+            Supplier<CompletableFuture<T>> get, long intervalMillis, ScheduledExecutorService executor) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        getWhileRequested(get, intervalMillis, executor, result);
+        return result;
+    }
+
+    private static <T extends ApiResource> void getWhileRequested(Supplier<CompletableFuture<T>> get,
+            long intervalMillis, ScheduledExecutorService executor, CompletableFuture<T> result) {
+        get.get().whenComplete((resource, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else if (resource != null && "REQUESTED".equals(resource.getStatus())) {
+                executor.schedule(() -> getWhileRequested(get, intervalMillis, executor, result),
+                        intervalMillis, TimeUnit.MILLISECONDS);
+            } else {
+                result.complete(resource);
+            }
+        });
+    }
+
+    // ======== ACTOR API MODELS ========
+    // Immutable views of the Actor API resources, see docs/openapi.yml. The readers are built once and parse straight
+    // from the response stream. Properties that are not used by the example are ignored.
+    private static final ObjectReader SUBSCRIPTION_READER = objectMapper.readerFor(Subscription.class);
+    private static final ObjectReader SUBSCRIPTION_LIST_READER =
+            objectMapper.readerFor(new TypeReference<List<Subscription>>() {});
+    private static final ObjectReader CAPABILITY_READER = objectMapper.readerFor(Capability.class);
+
+    private interface ApiResource {
+        String getId();
+
+        String getStatus();
+
+        // Null when the API didn't report it
+        Long getLastUpdatedTimestamp();
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private static final class Subscription implements ApiResource {
+        private final String id;
+        private final String selector;
+        private final String status;
+        private final List<SubscriptionEndpoint> endpoints;
+        private final Long lastUpdatedTimestamp;
+
+        @JsonCreator
+        Subscription(@JsonProperty("id") String id,
+                     @JsonProperty("selector") String selector,
+                     @JsonProperty("status") String status,
+                     @JsonProperty("endpoints") List<SubscriptionEndpoint> endpoints,
+                     @JsonProperty("lastUpdatedTimestamp") Long lastUpdatedTimestamp) {
+            this.id = id;
+            this.selector = selector;
+            this.status = status;
+            this.endpoints = endpoints != null ? List.copyOf(endpoints) : Collections.emptyList();
+            this.lastUpdatedTimestamp = lastUpdatedTimestamp;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        public String getSelector() {
+            return selector;
+        }
+
+        @Override
+        public String getStatus() {
+            return status;
+        }
+
+        public List<SubscriptionEndpoint> getEndpoints() {
+            return endpoints;
+        }
+
+        @Override
+        public Long getLastUpdatedTimestamp() {
+            return lastUpdatedTimestamp;
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private static final class SubscriptionEndpoint {
+        private final String host;
+        private final int port;
+        private final String source;
+        private final Integer maxBandwidth;
+        private final Integer maxMessageRate;
+
+        @JsonCreator
+        SubscriptionEndpoint(@JsonProperty("host") String host,
+                             @JsonProperty("port") int port,
+                             @JsonProperty("source") String source,
+                             @JsonProperty("maxBandwidth") Integer maxBandwidth,
+                             @JsonProperty("maxMessageRate") Integer maxMessageRate) {
+            this.host = host;
+            this.port = port;
+            this.source = source;
+            this.maxBandwidth = maxBandwidth;
+            this.maxMessageRate = maxMessageRate;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        // Null when the endpoint has no limit
+        public Integer getMaxBandwidth() {
+            return maxBandwidth;
+        }
+
+        // Null when the endpoint has no limit
+        public Integer getMaxMessageRate() {
+            return maxMessageRate;
+        }
+
+        // Identifies the endpoint across status responses
+        String key() {
+            return host + ":" + port + "/" + source;
+        }
+
+        @Override
+        public String toString() {
+            return key();
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private static final class Capability {
+        private final Application application;
+        private final Metadata metadata;
+
+        @JsonCreator
+        Capability(@JsonProperty("application") Application application,
+                   @JsonProperty("metadata") Metadata metadata) {
+            this.application = application;
+            this.metadata = metadata;
+        }
+
+        public Application getApplication() {
+            return application;
+        }
+
+        public Metadata getMetadata() {
+            return metadata;
+        }
+
+        @JsonIgnoreProperties(ignoreUnknown = true)
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private static final class Application {
+            private final String messageType;
+            private final String protocolVersion;
+            private final String publisherId;
+            private final String publicationId;
+            private final String originatingCountry;
+            private final List<String> quadTree;
+
+            @JsonCreator
+            Application(@JsonProperty("messageType") String messageType,
+                        @JsonProperty("protocolVersion") String protocolVersion,
+                        @JsonProperty("publisherId") String publisherId,
+                        @JsonProperty("publicationId") String publicationId,
+                        @JsonProperty("originatingCountry") String originatingCountry,
+                        @JsonProperty("quadTree") List<String> quadTree) {
+                this.messageType = messageType;
+                this.protocolVersion = protocolVersion;
+                this.publisherId = publisherId;
+                this.publicationId = publicationId;
+                this.originatingCountry = originatingCountry;
+                this.quadTree = quadTree != null ? List.copyOf(quadTree) : Collections.emptyList();
+            }
+
+            public String getMessageType() {
+                return messageType;
+            }
+
+            public String getProtocolVersion() {
+                return protocolVersion;
+            }
+
+            public String getPublisherId() {
+                return publisherId;
+            }
+
+            public String getPublicationId() {
+                return publicationId;
+            }
+
+            public String getOriginatingCountry() {
+                return originatingCountry;
+            }
+
+            public List<String> getQuadTree() {
+                return quadTree;
+            }
+        }
+
+        @JsonIgnoreProperties(ignoreUnknown = true)
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private static final class Metadata {
+            private final int shardCount;
+            private final String infoURL;
+            private final String redirectPolicy;
+            private final Integer maxBandwidth;
+            private final Integer maxMessageRate;
+            private final Integer repetitionInterval;
+
+            @JsonCreator
+            Metadata(@JsonProperty("shardCount") Integer shardCount,
+                     @JsonProperty("infoURL") String infoURL,
+                     @JsonProperty("redirectPolicy") String redirectPolicy,
+                     @JsonProperty("maxBandwidth") Integer maxBandwidth,
+                     @JsonProperty("maxMessageRate") Integer maxMessageRate,
+                     @JsonProperty("repetitionInterval") Integer repetitionInterval) {
+                this.shardCount = shardCount != null ? shardCount : 1;
+                this.infoURL = infoURL;
+                this.redirectPolicy = redirectPolicy;
+                this.maxBandwidth = maxBandwidth;
+                this.maxMessageRate = maxMessageRate;
+                this.repetitionInterval = repetitionInterval;
+            }
+
+            public int getShardCount() {
+                return shardCount;
+            }
+
+            public String getInfoURL() {
+                return infoURL;
+            }
+
+            public String getRedirectPolicy() {
+                return redirectPolicy;
+            }
+
+            public Integer getMaxBandwidth() {
+                return maxBandwidth;
+            }
+
+            public Integer getMaxMessageRate() {
+                return maxMessageRate;
+            }
+
+            public Integer getRepetitionInterval() {
+                return repetitionInterval;
+            }
+        }
     }
 
     // ======== AMQP 1.0 CLIENT ========
     private static class ReceiverHandler extends BaseHandler {
-        private final Map<String, Object> endpoint;
+        private final SubscriptionEndpoint endpoint;
+        // Credit, the consumer pipeline, the inbound log and reconnects, see ReceivePath
+        private final ReceivePath receivePath;
         private SSLContext sslContext;
+        private Connection connection;
+        private Receiver receiver;
+        private boolean closed;
 
-        public ReceiverHandler(Map<String, Object> endpoint) {
+        public ReceiverHandler(SubscriptionEndpoint endpoint, ConsumerPipeline pipeline) {
             this.endpoint = endpoint;
+            this.receivePath = new ReceivePath(endpoint, pipeline, this);
         }
 
         public void setSslContext(SSLContext sslContext) {
             this.sslContext = sslContext;
         }
 
+        ReceivePath receivePath() {
+            return receivePath;
+        }
+
+        // Closes the connection of an endpoint that is no longer part of the subscription. The receiver is closed
+        // locally as well, so the slots of its messages still in the consumer pipeline go to the other endpoints.
+        void close() {
+            closed = true;
+            receivePath.close();
+            if (receiver != null) {
+                receivePath.release(receiver);
+                receiver.close();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+
         @Override
         public void onConnectionInit(Event event) {
             logger.fine("Connection initialized");
-            Connection connection = event.getConnection();
-            connection.setHostname((String) endpoint.get("host"));
+            connection = event.getConnection();
+            connection.setHostname(endpoint.getHost());
             connection.setContainer("java-subscription-example");
             connection.open();
         }
@@ -232,7 +797,7 @@ public class Main {
         public void onSessionRemoteOpen(Event event) {
             logger.fine("Session opened");
             Session session = event.getSession();
-            String sourceAddress = (String) endpoint.get("source");
+            String sourceAddress = endpoint.getSource();
             Receiver receiver = session.receiver(sourceAddress);
             Source source = new Source();
             source.setAddress(sourceAddress);
@@ -250,14 +815,21 @@ public class Main {
                 logger.severe("Condition: " + link.getRemoteCondition().getCondition());
                 logger.severe("Description: " + link.getRemoteCondition().getDescription());
             }
+            receivePath.linkClosed();
+            // The link can't be attached again on this connection, closing it makes the receive path reconnect
+            if (!closed) {
+                link.close();
+                event.getConnection().close();
+            }
         }
 
         @Override
         public void onLinkRemoteOpen(Event event) {
             logger.fine("Receiver link opened, ready to receive messages");
             if (event.getLink() instanceof Receiver) {
-                Receiver receiver = (Receiver) event.getLink();
-                receiver.flow(10); // Initial credit
+                receiver = (Receiver) event.getLink();
+                // Initial credit
+                receivePath.linkOpened(receiver);
             }
         }
 
@@ -266,60 +838,108 @@ public class Main {
             Delivery delivery = event.getDelivery();
             if (delivery.isReadable() && !delivery.isPartial()) {
                 Receiver receiver = (Receiver) delivery.getLink();
-                
+                long receivedAt = System.nanoTime();
+
+                // The consumer pipeline and "zero-copy" mode take the message from here
+                if (receivePath.handOff(receiver, delivery, receivedAt)) {
+                    return;
+                }
+
                 // Read the message
                 int size = delivery.pending();
                 byte[] buffer = new byte[size];
                 int read = receiver.recv(buffer, 0, buffer.length);
                 receiver.advance();
-                
-                // Decode the message
-                Message message = Proton.message();
-                message.decode(buffer, 0, read);
-                
-                // Extract body
-                String bodyText = "";
-                if (message.getBody() != null) {
-                    Object body = message.getBody();
-                    if (body instanceof org.apache.qpid.proton.amqp.messaging.Data) {
-                        org.apache.qpid.proton.amqp.messaging.Data data = (org.apache.qpid.proton.amqp.messaging.Data) body;
-                        if (data.getValue() != null) {
-                            bodyText = new String(data.getValue().getArray(), StandardCharsets.UTF_8);
-                        }
-                    } else {
-                        bodyText = body.toString();
-                    }
-                }
-                
-                // Extract and format application properties
-                Map<String, Object> appProps = new HashMap<>();
-                if (message.getApplicationProperties() != null && message.getApplicationProperties().getValue() != null) {
-                    appProps = message.getApplicationProperties().getValue();
-                }
-                
-                try {
-                    // Format properties in sorted order
-                    String sortedPropsJson = objectMapper.writeValueAsString(new TreeMap<>(appProps));
-                    logger.info(String.format("Message received: body='%s', properties=%s", bodyText, sortedPropsJson));
-                } catch (Exception e) {
-                    logger.warning("Error formatting properties: " + e.getMessage());
-                }
-                
-                // Accept the message
-                delivery.disposition(Accepted.getInstance());
-                delivery.settle();
-                
-                // Flow more credit if needed
-                if (receiver.getCredit() < 5) {
-                    receiver.flow(10);
-                }
+
+                // Decode and log the message
+                processMessage(buffer, read, receivePath.metrics());
+
+                // Accept the message and flow more credit if needed
+                receivePath.accept(receiver, delivery, buffer, read, receivedAt);
             }
         }
 
         @Override
         public void onTransportError(Event event) {
+            receivePath.transportError();
             logger.log(Level.SEVERE, "Transport error: " + event.getTransport().getCondition());
         }
+
+        // Follows every lost connection and every failed attempt to connect, but also a connection closed on purpose
+        @Override
+        public void onTransportClosed(Event event) {
+            if (receiver != null && !closed) {
+                // The messages of the link still in process free their slots once settled, the pipeline hands them to
+                // the link of the next connection
+                receivePath.release(receiver);
+                receiver.close();
+            }
+            receiver = null;
+            connection = null;
+            receivePath.connectionLost(event.getReactor());
+        }
+    }
+
+    // Decodes a received message and logs its body and application properties
+    static void processMessage(byte[] buffer, int read, ReceiverMetrics metrics) {
+        Message message = Proton.message();
+        message.decode(buffer, 0, read);
+
+        // Extract and format application properties
+        Map<String, Object> appProps = new HashMap<>();
+        if (message.getApplicationProperties() != null && message.getApplicationProperties().getValue() != null) {
+            appProps = message.getApplicationProperties().getValue();
+        }
+
+        // Measure the latency from the creation time stamped by the sender
+        if (metrics != null) {
+            Object messageType = appProps.get("messageType");
+            metrics.recordEndToEnd(messageType instanceof String ? (String) messageType : null, CreationTime.of(message));
+        }
+
+        // Per message lines are sampled, and the properties are only serialised when the line is formatted, which
+        // is done by the log writer when LOG_MODE is "async"
+        if (sampleMessageLog()) {
+            logger.log(Level.INFO, "Message received: body=''{0}'', properties={1}",
+                    new Object[] {bodyText(message), new SortedProperties(appProps)});
+        }
+
+        // Pass the message on to the consumers whose selector matches
+        messageRouter.route(appProps);
+    }
+
+    private static String bodyText(Message message) {
+        String bodyText = "";
+        if (message.getBody() != null) {
+            Object body = message.getBody();
+            if (body instanceof org.apache.qpid.proton.amqp.messaging.Data) {
+                org.apache.qpid.proton.amqp.messaging.Data data = (org.apache.qpid.proton.amqp.messaging.Data) body;
+                if (data.getValue() != null) {
+                    bodyText = new String(data.getValue().getArray(), StandardCharsets.UTF_8);
+                }
+            } else {
+                bodyText = body.toString();
+            }
+        }
+        return bodyText;
+    }
+
+    // Application properties as JSON in sorted order, serialised when the log line is formatted
+    static final class SortedProperties {
+        private final Map<String, Object> properties;
+
+        SortedProperties(Map<String, Object> properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return objectMapper.writeValueAsString(new TreeMap<>(properties));
+            } catch (Exception e) {
+                return "(error formatting properties: " + e.getMessage() + ")";
+            }
+        }
     }
 
     private static SSLContext createSSLContext() throws Exception {
@@ -382,32 +1002,47 @@ public class Main {
         return sslContext;
     }
 
-    private static void amqpConnectAndListen(Map<String, Object> endpoint) throws Exception {
+    private static void amqpConnectAndListen(String subscriptionId, List<SubscriptionEndpoint> endpoints,
+            ScheduledExecutorService poller) throws Exception {
         // Configure SSL
         SSLContext sslContext = createSSLContext();
 
-        // Create handler
-        ReceiverHandler handler = new ReceiverHandler(endpoint);
-        handler.setSslContext(sslContext);
+        // Create the consumer pipeline when enabled, the messages of all endpoints are merged into it
+        ConsumerPipeline pipeline = ConsumerPipeline.forEndpoints(endpoints);
 
-        // Create reactor
-        Reactor reactor = Proton.reactor(handler);
-
-        // Connect to host with SSL and SASL configuration
-        String host = (String) endpoint.get("host");
-        int port = ((Number) endpoint.get("port")).intValue();
+        // Create reactor, the receiver group manages the connections
+        ReceiverGroup group = new ReceiverGroup(sslContext, pipeline);
+        Reactor reactor = pipeline != null ? Proton.reactor(group, pipeline) : Proton.reactor(group);
+        if (!MESSAGE_LOG_DIR.isEmpty()) {
+            inboundLog = InboundLog.open(Paths.get(MESSAGE_LOG_DIR), TimeUnit.MINUTES.toMillis(MESSAGE_LOG_RETENTION_MINUTES));
+            inboundLog.setReactor(reactor);
+        }
+        group.reconcile(reactor, endpoints);
 
-        // Use reactor's connection method with proper SSL/SASL setup
-        reactor.connectionToHost(host, port, handler);
+        // Keep polling the subscription status and apply endpoint changes while the reactor runs
+        StatusCache<Subscription> statusCache =
+                new StatusCache<>("subscriptions", SUBSCRIPTION_LIST_READER, SUBSCRIPTION_READER, poller);
+        statusCache.addListener(subscriptionId,
+                new SubscriptionMonitor(subscriptionId, endpoints, group, statusCache, poller));
+        // A random offset spreads the polls of many resources over the interval instead of bursting
+        long intervalMillis = TimeUnit.SECONDS.toMillis(ACTOR_API_POLL_INTERVAL);
+        long offsetMillis = ThreadLocalRandom.current().nextLong(intervalMillis);
+        statusCache.start(intervalMillis + offsetMillis, intervalMillis);
 
         // Run reactor
-        reactor.run();
+        try {
+            reactor.run();
+        } finally {
+            if (inboundLog != null) {
+                inboundLog.close();
+            }
+        }
     }
 
     // ======== CREATE AND CONSUME A SUBSCRIPTION ========
-    private static void logJson(String message, Map<String, Object> jsonDict) {
+    private static void logJson(String message, Object json) {
         try {
-            String jsonString = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(jsonDict);
+            String jsonString = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(json);
             logger.info(message + ": " + jsonString);
         } catch (Exception e) {
             logger.warning("Error formatting JSON: " + e.getMessage());
@@ -415,92 +1050,3283 @@ public class Main {
     }
 
     private static void subscribeAndReceive() {
+        // Gets the subscription status, first until the subscription is created and then while the reactor runs. The
+        // poller thread only handles the responses, the calls themselves don't occupy it.
+        ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
         try {
-            // Step 1: create a subscription using the actor API
-            try (Response subscriptionCreateResponse = apiCreateSubscription()) {
-                String responseBody = subscriptionCreateResponse.body().string();
-                Map<String, Object> subscriptionCreateResponseJson = objectMapper.readValue(responseBody, 
-                    new TypeReference<Map<String, Object>>() {});
-                logJson("Subscription create response", subscriptionCreateResponseJson);
-
-                if (subscriptionCreateResponse.isSuccessful()) {
+            // The calls are chained, the main thread only waits for the outcome and runs the AMQP 1.0 client next
+            Subscription subscription = checkSelectorOverlapAsync().thenCompose(overlaps -> {
+                if (!overlaps) {
+                    return CompletableFuture.<Subscription>completedFuture(null);
+                }
+                // Step 1: create a subscription using the actor API
+                return apiCreateSubscriptionAsync().thenCompose(subscriptionCreateResponse -> {
+                    logJson("Subscription create response", subscriptionCreateResponse);
+
                     // Step 2: get the subscription status
-                    String subscriptionId = (String) subscriptionCreateResponseJson.get("id");
-                    Map<String, Object> subscriptionStatusResponseJson;
-                    String subscriptionStatus;
-                    
-                    try (Response subscriptionStatusResponse = apiGetSubscription(subscriptionId)) {
-                        subscriptionStatusResponseJson = objectMapper.readValue(subscriptionStatusResponse.body().string(),
-                            new TypeReference<Map<String, Object>>() {});
-                        logJson("Subscription " + subscriptionId + " status response", subscriptionStatusResponseJson);
-                        subscriptionStatus = (String) subscriptionStatusResponseJson.get("status");
-                    }
+                    String subscriptionId = subscriptionCreateResponse.getId();
 
                     // Step 3: while the subscription status is "REQUESTED", keep getting the status
-                    while ("REQUESTED".equals(subscriptionStatus)) {
-                        Thread.sleep(2000);
-                        try (Response subscriptionStatusResponse = apiGetSubscription(subscriptionId)) {
-                            subscriptionStatusResponseJson = objectMapper.readValue(subscriptionStatusResponse.body().string(),
-                                new TypeReference<Map<String, Object>>() {});
-                            subscriptionStatus = (String) subscriptionStatusResponseJson.get("status");
-                        }
-                    }
-
-                    logJson("Subscription " + subscriptionId + " status response", subscriptionStatusResponseJson);
+                    // every 2 seconds, the gets are scheduled on the poller and nothing waits in between
+                    return Main.<Subscription>apiGetWhileRequestedAsync(() -> apiGetSubscriptionAsync(subscriptionId), 2000, poller)
+                            .thenApply(status -> {
+                                if (status == null) {
+                                    logger.warning("Subscription " + subscriptionId + " no longer exists");
+                                }
+                                return status;
+                            });
+                });
+            }).get();
+            if (subscription == null) {
+                return;
+            }
+            String subscriptionId = subscription.getId();
+            logJson("Subscription " + subscriptionId + " status response", subscription);
 
-                    // Step 4a: if the status is "CREATED", connect to the endpoint and start the AMQP receiver
-                    if ("CREATED".equals(subscriptionStatus)) {
-                        // NOTE to keep things simple, this code assumes that this response contains exactly one endpoint!
-                        List<Map<String, Object>> endpoints = (List<Map<String, Object>>) subscriptionStatusResponseJson.get("endpoints");
-                        Map<String, Object> endpoint = endpoints.get(0);
-                        logger.info("Using endpoint " + endpoint);
-                        amqpConnectAndListen(endpoint);
-                    }
-                    // Step 4b: if the status is not "CREATED" warn log and do nothing
-                    else {
-                        logger.warning("Unable to use subscription " + subscriptionId);
-                    }
-                }
+            // Step 4a: if the status is "CREATED", connect to the endpoint and start the AMQP receiver
+            if ("CREATED".equals(subscription.getStatus())) {
+                // A subscription with a shard count above one has multiple endpoints, messages are received from all of them
+                List<SubscriptionEndpoint> endpoints = subscription.getEndpoints();
+                logger.info("Using endpoints " + endpoints);
+                amqpConnectAndListen(subscriptionId, endpoints, poller);
+            }
+            // Step 4b: if the status is not "CREATED" warn log and do nothing
+            else {
+                logger.warning("Unable to use subscription " + subscriptionId);
             }
         } catch (Exception e) {
             logger.log(Level.WARNING, "An exception occurred while running subscribeAndReceive", e);
             e.printStackTrace();
+        } finally {
+            poller.shutdownNow();
         }
     }
 
-    // ======== STARTUP AND RUN LOOP ========
-    private static void dumpConfig() {
-        logger.info("ACTOR_API_HOST: '" + ACTOR_API_HOST + "'");
-        logger.info("ACTOR_API_PORT: '" + ACTOR_API_PORT + "'");
-        logger.info("ACTOR_API_SUBSCRIPTION_SELECTOR: '" + ACTOR_API_SUBSCRIPTION_SELECTOR + "'");
-        logger.info("ACTOR_COMMON_NAME: '" + ACTOR_COMMON_NAME + "'");
-        logger.info("ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM: '" + ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM + "'");
-        logger.info("CA_CERTIFICATE_PEM: '" + CA_CERTIFICATE_PEM + "'");
-    }
+    // ======== CONNECTION MANAGEMENT ========
+    // Keeps the status of all resources of one kind up to date with a single list call per poll instead of one call
+    // per resource. Listeners are only notified of resources whose lastUpdatedTimestamp changed since the previous
+    // list, or that disappeared from it. A registered resource missing from the list is fetched by its id before it
+    // is reported as deleted, as a freshly created resource may not be listed yet.
+    private static class StatusCache<T extends ApiResource> {
+        private final String path;
+        private final ObjectReader listReader;
+        private final ObjectReader reader;
+        private final ScheduledExecutorService executor;
+        private final Map<String, Consumer<T>> listeners = new ConcurrentHashMap<>();
+        private final Map<String, Long> lastUpdated = new HashMap<>();
 
-    private static void configureLogging() {
-        // Configure console handler
-        ConsoleHandler consoleHandler = new ConsoleHandler();
-        consoleHandler.setLevel(Level.ALL);
-        consoleHandler.setFormatter(new SimpleFormatter() {
-            private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        // Listeners are notified on the given executor, which must be single threaded
+        StatusCache(String path, ObjectReader listReader, ObjectReader reader, ScheduledExecutorService executor) {
+            this.path = path;
+            this.listReader = listReader;
+            this.reader = reader;
+            this.executor = executor;
+        }
 
-            @Override
-            public synchronized String format(LogRecord record) {
-                return String.format("%s %s %s%n",
-                        dateFormat.format(new Date(record.getMillis())),
-                        record.getLevel().getName(),
-                        record.getMessage());
-            }
-        });
+        void addListener(String id, Consumer<T> listener) {
+            listeners.put(id, listener);
+        }
 
-        // Configure logger
-        logger.setLevel(Level.ALL);
-        logger.setUseParentHandlers(false);
-        logger.addHandler(consoleHandler);
+        void removeListener(String id) {
+            listeners.remove(id);
+        }
 
-        // Set Proton library logging to INFO
-        Logger protonLogger = Logger.getLogger("org.apache.qpid.proton");
+        // Refreshes the status every interval, the next refresh is only scheduled once the previous one completed
+        void start(long initialDelayMillis, long intervalMillis) {
+            executor.schedule(() -> refresh().whenComplete((ignored, e) -> {
+                if (e != null) {
+                    logger.log(Level.WARNING, "Error refreshing " + path, e);
+                }
+                if (!executor.isShutdown()) {
+                    start(intervalMillis, intervalMillis);
+                }
+            }), initialDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        CompletableFuture<Void> refresh() {
+            return Main.<List<T>>apiGetAsync(path, listReader).thenComposeAsync(this::update, executor);
+        }
+
+        private CompletableFuture<Void> update(List<T> resources) {
+            Set<String> listed = new HashSet<>();
+            for (T resource : resources) {
+                String id = resource.getId();
+                listed.add(id);
+                Long current = resource.getLastUpdatedTimestamp();
+                boolean known = lastUpdated.containsKey(id);
+                Long previous = lastUpdated.put(id, current);
+                // Without a timestamp a change cannot be ruled out
+                if (!known || current == null || !current.equals(previous)) {
+                    notifyListener(id, resource);
+                }
+            }
+            lastUpdated.keySet().retainAll(listed);
+
+            List<CompletableFuture<Void>> fetches = new ArrayList<>();
+            for (String id : listeners.keySet()) {
+                if (!listed.contains(id)) {
+                    fetches.add(Main.<T>apiGetAsync(path + "/" + id, reader)
+                            .thenAcceptAsync(resource -> notifyListener(id, resource), executor));
+                }
+            }
+            return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0]));
+        }
+
+        private void notifyListener(String id, T resource) {
+            Consumer<T> listener = listeners.get(id);
+            if (listener != null) {
+                listener.accept(resource);
+            }
+        }
+    }
+
+    // Applies status changes of the subscription as required by the connection management rules of the interchange
+    // and passes its endpoints to the receiver group, which connects to added and disconnects from removed endpoints.
+    // On RESUBSCRIBE a replacement subscription is created. Its endpoints are connected next to the current ones and
+    // the current subscription is only deleted once all replacement links are open, so no traffic is lost. A
+    // replacement that doesn't get CREATED, leaves CREATED or whose links don't all open within SWITCH_TIMEOUT_SECONDS
+    // is deleted again. Creating another one is retried with a growing delay, unless its status shows that one with
+    // the same selector can't be created.
+    private static class SubscriptionMonitor implements Consumer<Subscription> {
+        // A replacement with the same selector would end with the same status
+        private static final Set<String> TERMINAL_STATUSES = Set.of("ILLEGAL", "NOT_VALID", "NO_OVERLAP");
+        private static final long MAX_RETRY_DELAY_SECONDS = 600;
+        private static final long SWITCH_TIMEOUT_SECONDS = 120;
+
+        private final ReceiverGroup group;
+        private final StatusCache<Subscription> statusCache;
+        private final ScheduledExecutorService poller;
+        private String subscriptionId;
+        private List<SubscriptionEndpoint> endpoints;
+        private boolean replacing;
+        private String replacementId;
+        private List<SubscriptionEndpoint> replacementEndpoints;
+        private long switchDeadline;
+        private int replaceAttempts;
+        private boolean replacementAbandoned;
+        private String lastStatus = "CREATED";
+
+        // All methods run on the single poller thread, which also notifies the status cache listeners
+        SubscriptionMonitor(String subscriptionId, List<SubscriptionEndpoint> endpoints, ReceiverGroup group,
+                            StatusCache<Subscription> statusCache, ScheduledExecutorService poller) {
+            this.subscriptionId = subscriptionId;
+            this.endpoints = endpoints;
+            this.group = group;
+            this.statusCache = statusCache;
+            this.poller = poller;
+        }
+
+        @Override
+        public void accept(Subscription subscription) {
+            if (subscription == null && !replacing) {
+                logger.warning("Subscription " + subscriptionId + " no longer exists, stopping");
+                group.stop();
+                return;
+            }
+
+            String status = subscription != null ? subscription.getStatus() : "DELETED";
+            if (!status.equals(lastStatus)) {
+                logger.info("Subscription " + subscriptionId + " status changed to " + status);
+                lastStatus = status;
+            }
+
+            if (replacing) {
+                // Keep the current endpoints connected until the replacement is ready
+                return;
+            }
+            if ("CREATED".equals(status)) {
+                replacementAbandoned = false;
+                endpoints = subscription.getEndpoints();
+                group.updateEndpoints(endpoints);
+            } else if ("RESUBSCRIBE".equals(status)) {
+                // After giving up on a replacement the current endpoints stay connected for as long as they last
+                if (!replacementAbandoned) {
+                    replacing = true;
+                    replace();
+                }
+            } else {
+                endpoints = Collections.emptyList();
+                group.updateEndpoints(endpoints);
+            }
+        }
+
+        private void replace() {
+            replaceAttempts++;
+            apiCreateSubscriptionAsync().whenCompleteAsync((replacement, e) -> {
+                if (e != null) {
+                    long delay = retryDelaySeconds();
+                    logger.log(Level.WARNING, "Error replacing subscription " + subscriptionId + ", retrying in " + delay + " s", e);
+                    poller.schedule(this::replace, delay, TimeUnit.SECONDS);
+                    return;
+                }
+                replacementId = replacement.getId();
+                logger.info("Subscription " + subscriptionId + " is replaced by subscription " + replacementId);
+                statusCache.addListener(replacementId, this::onReplacement);
+            }, poller);
+        }
+
+        // Follows the replacement until the switch, its endpoints may still change while its links are being opened
+        private void onReplacement(Subscription replacement) {
+            String status = replacement != null ? replacement.getStatus() : "DELETED";
+            if ("REQUESTED".equals(status) && replacementEndpoints == null) {
+                return;
+            }
+            if (!"CREATED".equals(status)) {
+                replacementFailed("status " + status, TERMINAL_STATUSES.contains(status), replacement != null);
+                return;
+            }
+
+            boolean first = replacementEndpoints == null;
+            replacementEndpoints = replacement.getEndpoints();
+            List<SubscriptionEndpoint> combined = new ArrayList<>(endpoints);
+            combined.addAll(replacementEndpoints);
+            group.updateEndpoints(combined);
+            if (first) {
+                switchDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SWITCH_TIMEOUT_SECONDS);
+                switchWhenConnected(replacementId);
+            }
+        }
+
+        // Deletes the replacement and disconnects its endpoints. Another one is created after a growing delay, unless
+        // the reason shows that one with the same selector can't be created.
+        private void replacementFailed(String reason, boolean terminal, boolean exists) {
+            String failedId = replacementId;
+            statusCache.removeListener(failedId);
+            replacementId = null;
+            if (replacementEndpoints != null) {
+                replacementEndpoints = null;
+                group.updateEndpoints(endpoints);
+            }
+            if (exists) {
+                apiDeleteSubscriptionAsync(failedId).whenComplete((code, e) -> {
+                    if (e != null) {
+                        logger.log(Level.WARNING, "Error deleting replacement subscription " + failedId, e);
+                    } else {
+                        logger.info("Replacement subscription " + failedId + " delete response: " + code);
+                    }
+                });
+            }
+            if (terminal) {
+                logger.severe("Replacement subscription " + failedId + " has " + reason
+                        + ", not replacing subscription " + subscriptionId + " again");
+                replacing = false;
+                replacementAbandoned = true;
+                replaceAttempts = 0;
+                return;
+            }
+            long delay = retryDelaySeconds();
+            logger.warning("Replacement subscription " + failedId + " has " + reason + ", retrying in " + delay + " s");
+            poller.schedule(this::replace, delay, TimeUnit.SECONDS);
+        }
+
+        // Checks the local link state, not the API, so it can run more often than the status is polled. A check
+        // scheduled for a replacement that has failed in the meantime does nothing.
+        private void switchWhenConnected(String id) {
+            if (!id.equals(replacementId) || replacementEndpoints == null) {
+                return;
+            }
+            if (!group.isConnected(replacementEndpoints)) {
+                if (System.nanoTime() - switchDeadline > 0) {
+                    replacementFailed("links that didn't open within " + SWITCH_TIMEOUT_SECONDS + " s", false, true);
+                } else {
+                    poller.schedule(() -> switchWhenConnected(id), 1, TimeUnit.SECONDS);
+                }
+                return;
+            }
+
+            // All replacement links are open, switch over and remove the old subscription
+            logger.info("Switching from subscription " + subscriptionId + " to " + replacementId);
+            group.updateEndpoints(replacementEndpoints);
+            statusCache.removeListener(subscriptionId);
+            String oldId = subscriptionId;
+            apiDeleteSubscriptionAsync(oldId).whenComplete((code, e) -> {
+                if (e != null) {
+                    logger.log(Level.WARNING, "Error deleting subscription " + oldId, e);
+                } else {
+                    logger.info("Subscription " + oldId + " delete response: " + code);
+                }
+            });
+            statusCache.removeListener(replacementId);
+            subscriptionId = replacementId;
+            endpoints = replacementEndpoints;
+            replacing = false;
+            replacementId = null;
+            replacementEndpoints = null;
+            replaceAttempts = 0;
+            lastStatus = "CREATED";
+            statusCache.addListener(subscriptionId, this);
+        }
+
+        // The poll interval, doubled with every failed attempt
+        private long retryDelaySeconds() {
+            return Math.min(MAX_RETRY_DELAY_SECONDS, (long) ACTOR_API_POLL_INTERVAL << Math.min(replaceAttempts - 1, 10));
+        }
+    }
+
+    // Paces the reconnect attempts for one endpoint with exponential backoff. The delay is picked at random from the
+    // upper half of the backoff, so clients that lost their connections at the same moment don't all reconnect at the
+    // same moment too. Keeps the reconnect count and downtime of the endpoint. Only used by the reactor thread.
+    private static class ReconnectSupervisor {
+        private static final long INITIAL_BACKOFF_MILLIS = 500;
+        private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+        private final String name;
+        private int attempts;
+        private long lostAt = -1;
+        private long reconnects;
+        private long downtimeNanos;
+
+        ReconnectSupervisor(String name) {
+            this.name = name;
+        }
+
+        // Called when the connection is lost or an attempt to connect failed, returns the delay before the next attempt
+        int connectionLost() {
+            if (lostAt < 0) {
+                lostAt = System.nanoTime();
+            }
+            attempts++;
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempts - 1, 16));
+            return (int) (backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+        }
+
+        // Called when the link is open, which ends the downtime that started with the lost connection. Returns the
+        // downtime in nanoseconds, or 0 when the link was opened on the first connection.
+        long connected() {
+            if (lostAt < 0) {
+                return 0;
+            }
+            long downtime = System.nanoTime() - lostAt;
+            reconnects++;
+            downtimeNanos += downtime;
+            logger.info("Reconnected to " + name + " after " + attempts + " attempts, down for "
+                    + TimeUnit.NANOSECONDS.toMillis(downtime) + " ms (" + reconnects + " reconnects, "
+                    + TimeUnit.NANOSECONDS.toMillis(downtimeNanos) + " ms downtime in total)");
+            lostAt = -1;
+            attempts = 0;
+            return downtime;
+        }
+
+        long reconnects() {
+            return reconnects;
+        }
+
+        // Includes the current downtime when the endpoint is not connected
+        long downtimeMillis() {
+            long downtime = downtimeNanos + (lostAt >= 0 ? System.nanoTime() - lostAt : 0);
+            return TimeUnit.NANOSECONDS.toMillis(downtime);
+        }
+    }
+
+    // Keeps a receiver connection open for every endpoint of the subscription. The endpoints are reconciled with the
+    // latest subscription status: connections are opened for added endpoints and closed for removed ones, the others
+    // are left untouched. Endpoint updates may come from any thread, they are applied on the reactor thread.
+    private static class ReceiverGroup extends BaseHandler {
+        private final SSLContext sslContext;
+        private final ConsumerPipeline pipeline;
+        private final Map<String, ReceiverHandler> handlers = new ConcurrentHashMap<>();
+        private final AtomicReference<List<SubscriptionEndpoint>> endpointUpdate = new AtomicReference<>();
+        private volatile Reactor reactor;
+        private volatile boolean stopRequested;
+        private boolean stopped;
+
+        // Keeps the reactor running while the subscription temporarily has no endpoints
+        private final BaseHandler keepAlive = new BaseHandler() {
+            @Override
+            public void onTimerTask(Event event) {
+                if (!stopped) {
+                    event.getReactor().schedule(1000, this);
+                }
+            }
+        };
+
+        ReceiverGroup(SSLContext sslContext, ConsumerPipeline pipeline) {
+            this.sslContext = sslContext;
+            this.pipeline = pipeline;
+        }
+
+        static String endpointKey(SubscriptionEndpoint endpoint) {
+            return endpoint.key();
+        }
+
+        // Called from the poller thread with the endpoints that should be connected
+        void updateEndpoints(List<SubscriptionEndpoint> endpoints) {
+            endpointUpdate.set(endpoints);
+            wakeup();
+        }
+
+        // Called from the poller thread, true when the receiver links of all given endpoints are open
+        boolean isConnected(List<SubscriptionEndpoint> endpoints) {
+            for (SubscriptionEndpoint endpoint : endpoints) {
+                ReceiverHandler handler = handlers.get(endpointKey(endpoint));
+                if (handler == null || !handler.receivePath().isLinkOpen()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Called from the poller thread when the subscription no longer exists
+        void stop() {
+            stopRequested = true;
+            wakeup();
+        }
+
+        private void wakeup() {
+            Reactor reactor = this.reactor;
+            if (reactor != null) {
+                reactor.wakeup();
+            }
+        }
+
+        @Override
+        public void onReactorInit(Event event) {
+            reactor = event.getReactor();
+            event.getReactor().schedule(1000, keepAlive);
+        }
+
+        @Override
+        public void onReactorQuiesced(Event event) {
+            List<SubscriptionEndpoint> endpoints = endpointUpdate.getAndSet(null);
+            if (endpoints != null && !stopped) {
+                reconcile(event.getReactor(), endpoints);
+            }
+            if (stopRequested && !stopped) {
+                stopped = true;
+                reconcile(event.getReactor(), Collections.emptyList());
+            }
+            if (inboundLog != null) {
+                for (ReceiverHandler handler : handlers.values()) {
+                    handler.receivePath().acceptDurable();
+                }
+            }
+        }
+
+        // Opens connections for new endpoints and closes the connections of removed endpoints
+        void reconcile(Reactor reactor, List<SubscriptionEndpoint> endpoints) {
+            Set<String> keys = new HashSet<>();
+            for (SubscriptionEndpoint endpoint : endpoints) {
+                String key = endpointKey(endpoint);
+                keys.add(key);
+                if (!handlers.containsKey(key)) {
+                    connect(reactor, key, endpoint);
+                }
+            }
+            Iterator<Map.Entry<String, ReceiverHandler>> iterator = handlers.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, ReceiverHandler> entry = iterator.next();
+                if (!keys.contains(entry.getKey())) {
+                    logger.info("Endpoint removed, closing connection to " + entry.getKey());
+                    entry.getValue().close();
+                    iterator.remove();
+                }
+            }
+        }
+
+        private void connect(Reactor reactor, String key, SubscriptionEndpoint endpoint) {
+            logger.info("Endpoint added, connecting to " + key);
+
+            // Create handler
+            ReceiverHandler handler = new ReceiverHandler(endpoint, pipeline);
+            handler.setSslContext(sslContext);
+            handlers.put(key, handler);
+
+            // Connect to host with SSL and SASL configuration
+            String host = endpoint.getHost();
+            int port = endpoint.getPort();
+
+            // Use reactor's connection method with proper SSL/SASL setup
+            reactor.connectionToHost(host, port, handler);
+        }
+    }
+
+    // ======== SELECTORS ========
+    // Parser for JMS message selectors (see docs/amqp.md). A selector is compiled once into a tree of expressions
+    // that is evaluated against a property lookup. Evaluation follows the JMS three-valued logic: a truth value is
+    // Boolean.TRUE, Boolean.FALSE or null for unknown. A lookup returns null for an absent property, which makes a
+    // comparison unknown, or UNDETERMINED for a property that may have any value, which also makes IS NULL unknown.
+    interface Expression {
+        Object evaluate(Function<String, Object> properties);
+    }
+
+    private static final Object UNDETERMINED = new Object();
+
+    // Conjunction of the top level of a selector, its operands are used to narrow down lookups in an index
+    private static final class Conjunction implements Expression {
+        final List<Expression> operands;
+
+        Conjunction(List<Expression> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            Object result = Boolean.TRUE;
+            for (Expression operand : operands) {
+                Object value = operand.evaluate(properties);
+                if (Boolean.FALSE.equals(value)) {
+                    return Boolean.FALSE;
+                }
+                if (!Boolean.TRUE.equals(value)) {
+                    result = null;
+                }
+            }
+            return result;
+        }
+    }
+
+    // Condition "identifier = 'value'" or "identifier IN ('value', ...)"
+    private static final class ValueTest implements Expression {
+        final String identifier;
+        final Set<String> values;
+
+        ValueTest(String identifier, Set<String> values) {
+            this.identifier = identifier;
+            this.values = values;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            Object value = properties.apply(identifier);
+            if (value == null || value == UNDETERMINED) {
+                return null;
+            }
+            return value instanceof String && values.contains(value);
+        }
+    }
+
+    // Condition "identifier LIKE 'pattern'", a quadtree prefix is set for patterns like '%,1004%'
+    private static final class LikeTest implements Expression {
+        final String identifier;
+        final Predicate<String> pattern;
+        final String quadTreePrefix;
+
+        LikeTest(String identifier, Predicate<String> pattern, String quadTreePrefix) {
+            this.identifier = identifier;
+            this.pattern = pattern;
+            this.quadTreePrefix = quadTreePrefix;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            Object value = properties.apply(identifier);
+            if (value instanceof QuadTreeTiles) {
+                return ((QuadTreeTiles) value).like(quadTreePrefix);
+            }
+            if (value == null || value == UNDETERMINED) {
+                return null;
+            }
+            return value instanceof String && pattern.test((String) value);
+        }
+    }
+
+    // Property value of quadtree tiles that are covered, such as the tiles of a capability
+    private static final class QuadTreeTiles {
+        private final List<String> tiles;
+
+        QuadTreeTiles(List<String> tiles) {
+            this.tiles = tiles;
+        }
+
+        // Overlaps when a tile lies within the prefix or the prefix lies within a tile
+        Boolean like(String prefix) {
+            if (prefix == null) {
+                return null;
+            }
+            for (String tile : tiles) {
+                if (tile.startsWith(prefix) || prefix.startsWith(tile)) {
+                    return Boolean.TRUE;
+                }
+            }
+            return Boolean.FALSE;
+        }
+    }
+
+    static class SelectorParser {
+        private static final Pattern TOKEN = Pattern.compile(
+                "\\s*(?:('(?:[^']|'')*')|(\\d+(?:\\.\\d*)?(?:[eE][+-]?\\d+)?|\\.\\d+(?:[eE][+-]?\\d+)?)"
+                        + "|([\\p{javaJavaIdentifierStart}][\\p{javaJavaIdentifierPart}]*)|(<>|<=|>=|[=<>+\\-*/(),]))");
+        private static final Pattern QUADTREE_PATTERN = Pattern.compile("%,([0-3]+)%");
+
+        private final String selector;
+        private final List<String> tokens = new ArrayList<>();
+        private int position;
+
+        private SelectorParser(String selector) {
+            this.selector = selector;
+            Matcher matcher = TOKEN.matcher(selector);
+            int end = 0;
+            while (end < selector.length() && matcher.find(end) && matcher.start() == end) {
+                tokens.add(selector.substring(matcher.start(), matcher.end()).trim());
+                end = matcher.end();
+            }
+            if (!selector.substring(end).isBlank()) {
+                throw new IllegalArgumentException("Unexpected character at " + end + " in selector: " + selector);
+            }
+        }
+
+        // An empty selector selects everything
+        static Expression parse(String selector) {
+            SelectorParser parser = new SelectorParser(selector);
+            if (parser.tokens.isEmpty()) {
+                return properties -> Boolean.TRUE;
+            }
+            Expression expression = parser.parseOr();
+            if (parser.position < parser.tokens.size()) {
+                throw parser.error("Unexpected '" + parser.tokens.get(parser.position) + "'");
+            }
+            return expression;
+        }
+
+        private Expression parseOr() {
+            Expression left = parseAnd();
+            while (accept("OR")) {
+                Expression l = left;
+                Expression r = parseAnd();
+                left = properties -> or(l.evaluate(properties), r.evaluate(properties));
+            }
+            return left;
+        }
+
+        private Expression parseAnd() {
+            List<Expression> operands = new ArrayList<>();
+            operands.add(parseNot());
+            while (accept("AND")) {
+                operands.add(parseNot());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Conjunction(operands);
+        }
+
+        private Expression parseNot() {
+            if (accept("NOT")) {
+                Expression operand = parseNot();
+                return properties -> not(operand.evaluate(properties));
+            }
+            return parseComparison();
+        }
+
+        private Expression parseComparison() {
+            Expression left = parseAdditive();
+            boolean negated = accept("NOT");
+            if (accept("BETWEEN")) {
+                Expression low = parseAdditive();
+                expect("AND");
+                Expression high = parseAdditive();
+                Expression between = properties -> {
+                    Object value = left.evaluate(properties);
+                    return and(compare(value, low.evaluate(properties), Comparison.GREATER_EQUAL),
+                            compare(value, high.evaluate(properties), Comparison.LESS_EQUAL));
+                };
+                return negated ? properties -> not(between.evaluate(properties)) : between;
+            }
+            if (accept("IN")) {
+                String identifier = identifierOf(left);
+                expect("(");
+                Set<String> values = new HashSet<>();
+                do {
+                    values.add(parseString());
+                } while (accept(","));
+                expect(")");
+                ValueTest in = new ValueTest(identifier, values);
+                return negated ? properties -> not(in.evaluate(properties)) : in;
+            }
+            if (accept("LIKE")) {
+                String identifier = identifierOf(left);
+                String pattern = parseString();
+                Character escape = null;
+                if (accept("ESCAPE")) {
+                    String escapeText = parseString();
+                    if (escapeText.length() != 1) {
+                        throw error("ESCAPE must be a single character");
+                    }
+                    escape = escapeText.charAt(0);
+                }
+                Matcher quadTree = QUADTREE_PATTERN.matcher(pattern);
+                LikeTest like = new LikeTest(identifier, likePattern(pattern, escape),
+                        escape == null && quadTree.matches() ? quadTree.group(1) : null);
+                return negated ? properties -> not(like.evaluate(properties)) : like;
+            }
+            if (negated) {
+                throw error("Expected BETWEEN, IN or LIKE after NOT");
+            }
+            if (accept("IS")) {
+                boolean notNull = accept("NOT");
+                expect("NULL");
+                return properties -> {
+                    Object value = left.evaluate(properties);
+                    if (value == UNDETERMINED) {
+                        return null;
+                    }
+                    return notNull == (value != null);
+                };
+            }
+            for (Comparison comparison : Comparison.values()) {
+                if (accept(comparison.operator)) {
+                    Expression right = parseAdditive();
+                    if (comparison == Comparison.EQUAL) {
+                        ValueTest test = valueTest(left, right);
+                        if (test != null) {
+                            return test;
+                        }
+                    }
+                    if (right instanceof Literal) {
+                        Object constant = ((Literal) right).value;
+                        return properties -> compare(left.evaluate(properties), constant, comparison);
+                    }
+                    return properties -> compare(left.evaluate(properties), right.evaluate(properties), comparison);
+                }
+            }
+            return left;
+        }
+
+        private Expression parseAdditive() {
+            Expression left = parseMultiplicative();
+            while (true) {
+                char operator = accept("+") ? '+' : accept("-") ? '-' : 0;
+                if (operator == 0) {
+                    return left;
+                }
+                Expression l = left;
+                Expression r = parseMultiplicative();
+                left = properties -> arithmetic(l.evaluate(properties), r.evaluate(properties), operator);
+            }
+        }
+
+        private Expression parseMultiplicative() {
+            Expression left = parseUnary();
+            while (true) {
+                char operator = accept("*") ? '*' : accept("/") ? '/' : 0;
+                if (operator == 0) {
+                    return left;
+                }
+                Expression l = left;
+                Expression r = parseUnary();
+                left = properties -> arithmetic(l.evaluate(properties), r.evaluate(properties), operator);
+            }
+        }
+
+        private Expression parseUnary() {
+            if (accept("-")) {
+                Expression operand = parseUnary();
+                return properties -> arithmetic(0L, operand.evaluate(properties), '-');
+            }
+            if (accept("+")) {
+                return parseUnary();
+            }
+            return parsePrimary();
+        }
+
+        private Expression parsePrimary() {
+            if (accept("(")) {
+                Expression expression = parseOr();
+                expect(")");
+                return expression;
+            }
+            String token = next();
+            if (token.startsWith("'")) {
+                String value = unquote(token);
+                return new Literal(value);
+            }
+            if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+                Object value = token.matches("\\d+") ? (Object) Long.parseLong(token) : (Object) Double.parseDouble(token);
+                return new Literal(value);
+            }
+            if ("TRUE".equalsIgnoreCase(token) || "FALSE".equalsIgnoreCase(token)) {
+                return new Literal(Boolean.parseBoolean(token));
+            }
+            if (!Character.isJavaIdentifierStart(token.charAt(0)) || isKeyword(token)) {
+                throw error("Unexpected '" + token + "'");
+            }
+            return new Identifier(token);
+        }
+
+        private String parseString() {
+            String token = next();
+            if (!token.startsWith("'")) {
+                throw error("Expected a string instead of '" + token + "'");
+            }
+            return unquote(token);
+        }
+
+        private static ValueTest valueTest(Expression left, Expression right) {
+            if (left instanceof Identifier && right instanceof Literal && ((Literal) right).value instanceof String) {
+                return new ValueTest(((Identifier) left).name, Set.of((String) ((Literal) right).value));
+            }
+            if (right instanceof Identifier && left instanceof Literal && ((Literal) left).value instanceof String) {
+                return new ValueTest(((Identifier) right).name, Set.of((String) ((Literal) left).value));
+            }
+            return null;
+        }
+
+        private String identifierOf(Expression expression) {
+            if (!(expression instanceof Identifier)) {
+                throw error("Expected an identifier");
+            }
+            return ((Identifier) expression).name;
+        }
+
+        // Patterns with a single wildcard at the start or end are matched without a regular expression, as selectors
+        // like "quadTree LIKE '%,1004%'" or "publicationId LIKE 'NL%'" are by far the most common
+        private static Predicate<String> likePattern(String pattern, Character escape) {
+            if (escape == null && pattern.indexOf('_') < 0) {
+                int wildcards = pattern.length() - pattern.replace("%", "").length();
+                String text = pattern.replace("%", "");
+                boolean leading = pattern.startsWith("%");
+                boolean trailing = pattern.length() > 1 && pattern.endsWith("%");
+                if (wildcards == 0) {
+                    return text::equals;
+                }
+                if (wildcards == 1 && leading) {
+                    return value -> value.endsWith(text);
+                }
+                if (wildcards == 1 && trailing) {
+                    return value -> value.startsWith(text);
+                }
+                if (wildcards == 2 && leading && trailing) {
+                    return value -> value.contains(text);
+                }
+            }
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (escape != null && c == escape && i + 1 < pattern.length()) {
+                    regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                } else if (c == '%') {
+                    regex.append(".*");
+                } else if (c == '_') {
+                    regex.append('.');
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            Pattern compiled = Pattern.compile(regex.toString(), Pattern.DOTALL);
+            return value -> compiled.matcher(value).matches();
+        }
+
+        private static String unquote(String token) {
+            return token.substring(1, token.length() - 1).replace("''", "'");
+        }
+
+        private static boolean isKeyword(String token) {
+            switch (token.toUpperCase()) {
+                case "AND":
+                case "OR":
+                case "NOT":
+                case "BETWEEN":
+                case "IN":
+                case "LIKE":
+                case "ESCAPE":
+                case "IS":
+                case "NULL":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean accept(String expected) {
+            if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(expected)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String expected) {
+            if (!accept(expected)) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private String next() {
+            if (position >= tokens.size()) {
+                throw error("Unexpected end");
+            }
+            return tokens.get(position++);
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at token " + position + " in selector: " + selector);
+        }
+
+        private static Object not(Object value) {
+            return value instanceof Boolean ? !(Boolean) value : null;
+        }
+
+        private static Object and(Object left, Object right) {
+            if (Boolean.FALSE.equals(left) || Boolean.FALSE.equals(right)) {
+                return Boolean.FALSE;
+            }
+            return Boolean.TRUE.equals(left) && Boolean.TRUE.equals(right) ? Boolean.TRUE : null;
+        }
+
+        private static Object or(Object left, Object right) {
+            if (Boolean.TRUE.equals(left) || Boolean.TRUE.equals(right)) {
+                return Boolean.TRUE;
+            }
+            return Boolean.FALSE.equals(left) && Boolean.FALSE.equals(right) ? Boolean.FALSE : null;
+        }
+
+        // Values of different types are not equal, only numbers can be ordered
+        private static Object compare(Object left, Object right, Comparison comparison) {
+            if (left == null || right == null || left == UNDETERMINED || right == UNDETERMINED) {
+                return null;
+            }
+            if (left instanceof Number && right instanceof Number) {
+                int order = compareNumbers((Number) left, (Number) right);
+                switch (comparison) {
+                    case EQUAL:
+                        return order == 0;
+                    case NOT_EQUAL:
+                        return order != 0;
+                    case LESS:
+                        return order < 0;
+                    case GREATER:
+                        return order > 0;
+                    case LESS_EQUAL:
+                        return order <= 0;
+                    default:
+                        return order >= 0;
+                }
+            }
+            if (comparison == Comparison.EQUAL) {
+                return left.equals(right);
+            }
+            if (comparison == Comparison.NOT_EQUAL) {
+                return !left.equals(right);
+            }
+            return Boolean.FALSE;
+        }
+
+        private static int compareNumbers(Number left, Number right) {
+            if (isIntegral(left) && isIntegral(right)) {
+                return Long.compare(left.longValue(), right.longValue());
+            }
+            return Double.compare(left.doubleValue(), right.doubleValue());
+        }
+
+        private static boolean isIntegral(Number number) {
+            return number instanceof Long || number instanceof Integer || number instanceof Short
+                    || number instanceof Byte || number instanceof UnsignedInteger || number instanceof UnsignedShort
+                    || number instanceof UnsignedByte;
+        }
+
+        private static Object arithmetic(Object left, Object right, char operator) {
+            if (!(left instanceof Number) || !(right instanceof Number)) {
+                return null;
+            }
+            Number l = (Number) left;
+            Number r = (Number) right;
+            if (isIntegral(l) && isIntegral(r) && !(operator == '/' && r.longValue() == 0)) {
+                switch (operator) {
+                    case '+':
+                        return l.longValue() + r.longValue();
+                    case '-':
+                        return l.longValue() - r.longValue();
+                    case '*':
+                        return l.longValue() * r.longValue();
+                    default:
+                        return l.longValue() / r.longValue();
+                }
+            }
+            switch (operator) {
+                case '+':
+                    return l.doubleValue() + r.doubleValue();
+                case '-':
+                    return l.doubleValue() - r.doubleValue();
+                case '*':
+                    return l.doubleValue() * r.doubleValue();
+                default:
+                    return l.doubleValue() / r.doubleValue();
+            }
+        }
+    }
+
+    private enum Comparison {
+        EQUAL("="), NOT_EQUAL("<>"), LESS("<"), GREATER(">"), LESS_EQUAL("<="), GREATER_EQUAL(">=");
+
+        final String operator;
+
+        Comparison(String operator) {
+            this.operator = operator;
+        }
+    }
+
+    private static final class Literal implements Expression {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            return value;
+        }
+    }
+
+    private static final class Identifier implements Expression {
+        final String name;
+
+        Identifier(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Object evaluate(Function<String, Object> properties) {
+            return properties.apply(name);
+        }
+    }
+
+    // ======== CAPABILITY CATALOGUE ========
+    // Index of the capabilities that can be subscribed to. It is used to check locally whether the selector overlaps
+    // any capability before the subscription is posted, as a subscription without overlap ends up as NO_OVERLAP and
+    // still uses the POST budget of the usage policy. The capability list is streamed from the response one
+    // capability at a time, only the application part of every capability is kept.
+    private static class CapabilityIndex {
+        private final List<Capability.Application> capabilities = new ArrayList<>();
+        private final FieldIndex messageTypes = new FieldIndex();
+        private final FieldIndex originatingCountries = new FieldIndex();
+        private final FieldIndex publisherIds = new FieldIndex();
+        private final QuadTreeIndex quadTree = new QuadTreeIndex();
+
+        static CapabilityIndex read(InputStream stream) throws IOException {
+            CapabilityIndex index = new CapabilityIndex();
+            try (JsonParser parser = objectMapper.getFactory().createParser(stream)) {
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IOException("Expected a list of capabilities");
+                }
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    Capability capability = CAPABILITY_READER.readValue(parser);
+                    if (capability.getApplication() != null) {
+                        index.add(capability.getApplication());
+                    }
+                }
+            }
+            return index;
+        }
+
+        private void add(Capability.Application application) {
+            int ordinal = capabilities.size();
+            capabilities.add(application);
+            messageTypes.add(application.getMessageType(), ordinal);
+            originatingCountries.add(application.getOriginatingCountry(), ordinal);
+            publisherIds.add(application.getPublisherId(), ordinal);
+            quadTree.add(application.getQuadTree(), ordinal);
+        }
+
+        int size() {
+            return capabilities.size();
+        }
+
+        // Returns the first capability the selector may select messages of, or null when there is none
+        Capability.Application findOverlap(Expression selector) {
+            BitSet candidates = new BitSet();
+            candidates.set(0, capabilities.size());
+            List<Expression> conditions = selector instanceof Conjunction
+                    ? ((Conjunction) selector).operands : List.of(selector);
+            for (Expression condition : conditions) {
+                narrow(candidates, condition);
+            }
+
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                Capability.Application capability = capabilities.get(i);
+                if (!Boolean.FALSE.equals(selector.evaluate(name -> propertyOf(capability, name)))) {
+                    return capability;
+                }
+            }
+            return null;
+        }
+
+        private void narrow(BitSet candidates, Expression condition) {
+            if (condition instanceof ValueTest) {
+                ValueTest test = (ValueTest) condition;
+                FieldIndex field = "messageType".equals(test.identifier) ? messageTypes
+                        : "originatingCountry".equals(test.identifier) ? originatingCountries
+                        : "publisherId".equals(test.identifier) ? publisherIds : null;
+                if (field != null) {
+                    candidates.and(field.find(test.values));
+                }
+            } else if (condition instanceof LikeTest) {
+                LikeTest test = (LikeTest) condition;
+                if ("quadTree".equals(test.identifier) && test.quadTreePrefix != null) {
+                    candidates.and(quadTree.find(test.quadTreePrefix));
+                }
+            }
+        }
+
+        // A property the capability doesn't describe may have any value in a message
+        private static Object propertyOf(Capability.Application capability, String name) {
+            Object value;
+            switch (name) {
+                case "messageType":
+                    value = capability.getMessageType();
+                    break;
+                case "protocolVersion":
+                    value = capability.getProtocolVersion();
+                    break;
+                case "publisherId":
+                    value = capability.getPublisherId();
+                    break;
+                case "publicationId":
+                    value = capability.getPublicationId();
+                    break;
+                case "originatingCountry":
+                    value = capability.getOriginatingCountry();
+                    break;
+                case "quadTree":
+                    value = capability.getQuadTree().isEmpty() ? null : new QuadTreeTiles(capability.getQuadTree());
+                    break;
+                default:
+                    value = null;
+            }
+            return value != null ? value : UNDETERMINED;
+        }
+    }
+
+    // Capabilities by the value of one field, a capability without the field matches every value
+    private static class FieldIndex {
+        private final Map<String, BitSet> byValue = new HashMap<>();
+        private final BitSet missing = new BitSet();
+
+        void add(String value, int ordinal) {
+            if (value == null) {
+                missing.set(ordinal);
+            } else {
+                byValue.computeIfAbsent(value, v -> new BitSet()).set(ordinal);
+            }
+        }
+
+        BitSet find(Set<String> values) {
+            BitSet result = (BitSet) missing.clone();
+            for (String value : values) {
+                BitSet ordinals = byValue.get(value);
+                if (ordinals != null) {
+                    result.or(ordinals);
+                }
+            }
+            return result;
+        }
+    }
+
+    // Prefix trie over the quadtree tiles of the capabilities. Every node keeps the capabilities with a tile ending at
+    // the node and the capabilities with a tile anywhere below it. Capabilities without tiles, or with tiles that are
+    // not made of the digits 0-3, match every prefix.
+    private static class QuadTreeIndex {
+        private final QuadTreeNode root = new QuadTreeNode();
+        private final BitSet unindexed = new BitSet();
+
+        void add(List<String> tiles, int ordinal) {
+            if (tiles.isEmpty()) {
+                unindexed.set(ordinal);
+            }
+            for (String tile : tiles) {
+                if (!tile.matches("[0-3]+")) {
+                    unindexed.set(ordinal);
+                    continue;
+                }
+                QuadTreeNode node = root;
+                node.below.set(ordinal);
+                for (int i = 0; i < tile.length(); i++) {
+                    int digit = tile.charAt(i) - '0';
+                    if (node.children[digit] == null) {
+                        node.children[digit] = new QuadTreeNode();
+                    }
+                    node = node.children[digit];
+                    node.below.set(ordinal);
+                }
+                node.here.set(ordinal);
+            }
+        }
+
+        // Capabilities with a tile that contains the prefix or lies within it
+        BitSet find(String prefix) {
+            BitSet result = (BitSet) unindexed.clone();
+            QuadTreeNode node = root;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                result.or(node.here);
+                node = node.children[prefix.charAt(i) - '0'];
+            }
+            if (node != null) {
+                result.or(node.below);
+            }
+            return result;
+        }
+    }
+
+    private static class QuadTreeNode {
+        final QuadTreeNode[] children = new QuadTreeNode[4];
+        final BitSet here = new BitSet();
+        final BitSet below = new BitSet();
+    }
+
+    // Completes with false only when the catalogue could be loaded and none of its capabilities overlaps the selector
+    private static CompletableFuture<Boolean> checkSelectorOverlapAsync() {
+        if (!ACTOR_API_CAPABILITY_CHECK) {
+            return CompletableFuture.completedFuture(true);
+        }
+        Expression selector;
+        try {
+            selector = SelectorParser.parse(ACTOR_API_SUBSCRIPTION_SELECTOR);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Unable to check the selector against the capabilities, subscribing anyway", e);
+            return CompletableFuture.completedFuture(true);
+        }
+        Request request = new Request.Builder()
+                .url(apiUrl("subscriptions/capabilities"))
+                .build();
+        // The asynchronous call passes the usage policy without buffering, so the list is parsed while it arrives
+        return apiCallAsync(request, response -> {
+            if (!response.isSuccessful()) {
+                throw new IOException("Getting capabilities failed with HTTP status " + response.code());
+            }
+            return CapabilityIndex.read(response.body().byteStream());
+        }).handle((index, e) -> {
+            if (e != null) {
+                logger.log(Level.WARNING, "Unable to check the selector against the capabilities, subscribing anyway", e);
+                return true;
+            }
+            Capability.Application overlap = index.findOverlap(selector);
+            if (overlap == null) {
+                logger.warning("Selector '" + ACTOR_API_SUBSCRIPTION_SELECTOR + "' overlaps none of the "
+                        + index.size() + " capabilities, not subscribing");
+                return false;
+            }
+            try {
+                logger.info("Selector overlaps capability " + objectMapper.writeValueAsString(overlap));
+            } catch (IOException jsonException) {
+                logger.info("Selector overlaps capability " + overlap);
+            }
+            return true;
+        });
+    }
+
+    // ======== MESSAGE ROUTING ========
+    // Fans the messages of one broad subscription out to in-process consumers. A consumer either has a narrower
+    // selector of its own, which is parsed once and evaluated against the application properties of every message,
+    // or a set of quadtree tiles, which are looked up in a prefix trie with the quadTree property of the message.
+    // Messages may be routed from the reactor thread and the consumer threads at the same time.
+    private static class MessageRouter {
+        private final List<Expression> selectors = new ArrayList<>();
+        private final List<RoutedConsumer> selectorConsumers = new ArrayList<>();
+        private final QuadTreeRouter quadTreeRouter = new QuadTreeRouter();
+
+        // Consumer selectors by consumer name, such as {"denm": "messageType = 'DENM'"}, and consumer quadtree tiles
+        // by consumer name, such as {"north": ["1200", "1201"]}
+        static MessageRouter fromJson(String selectorsJson, String quadTreesJson) throws IOException {
+            MessageRouter router = new MessageRouter();
+            Map<String, String> selectors = objectMapper.readValue(selectorsJson,
+                    new TypeReference<LinkedHashMap<String, String>>() {});
+            for (Map.Entry<String, String> entry : selectors.entrySet()) {
+                router.selectors.add(SelectorParser.parse(entry.getValue()));
+                router.selectorConsumers.add(new RoutedConsumer(entry.getKey()));
+                logger.info("Consumer '" + entry.getKey() + "' selects " + entry.getValue());
+            }
+            Map<String, List<String>> quadTrees = objectMapper.readValue(quadTreesJson,
+                    new TypeReference<LinkedHashMap<String, List<String>>>() {});
+            for (Map.Entry<String, List<String>> entry : quadTrees.entrySet()) {
+                router.quadTreeRouter.register(new RoutedConsumer(entry.getKey()), entry.getValue());
+                logger.info("Consumer '" + entry.getKey() + "' covers quadtree tiles " + entry.getValue());
+            }
+            return router;
+        }
+
+        boolean isEmpty() {
+            return selectorConsumers.isEmpty() && quadTreeRouter.isEmpty();
+        }
+
+        void route(Map<String, Object> properties) {
+            if (!selectorConsumers.isEmpty()) {
+                Function<String, Object> lookup = properties::get;
+                for (int i = 0; i < selectors.size(); i++) {
+                    if (Boolean.TRUE.equals(selectors.get(i).evaluate(lookup))) {
+                        selectorConsumers.get(i).accept(properties);
+                    }
+                }
+            }
+            Object quadTree = properties.get("quadTree");
+            if (quadTree instanceof String) {
+                quadTreeRouter.route((String) quadTree, properties);
+            }
+        }
+    }
+
+    private static class RoutedConsumer {
+        private final String name;
+        private final AtomicLong received = new AtomicLong();
+
+        RoutedConsumer(String name) {
+            this.name = name;
+        }
+
+        void accept(Map<String, Object> properties) {
+            long count = received.incrementAndGet();
+            if (sampleMessageLog()) {
+                logger.info("Consumer '" + name + "' messages received: " + count + ", last properties=" + properties);
+            }
+        }
+    }
+
+    // Prefix trie over the quadtree tiles of the consumers. A message is routed to every consumer with a tile that
+    // contains one of the message tiles or lies within one, which takes a single walk down the trie per message tile.
+    // Registrations copy the consumer arrays of the nodes they touch, so routing reads them without locking.
+    private static class QuadTreeRouter {
+        private static final RoutedConsumer[] NONE = new RoutedConsumer[0];
+
+        private final TileNode root = new TileNode();
+        private final Map<RoutedConsumer, List<String>> registrations = new HashMap<>();
+        // Consumers matched by the message being routed on the current thread, reused for every message
+        private final ThreadLocal<List<RoutedConsumer>> matched = ThreadLocal.withInitial(ArrayList::new);
+
+        synchronized void register(RoutedConsumer consumer, List<String> tiles) {
+            for (String tile : tiles) {
+                if (!tile.matches("[0-3]+")) {
+                    throw new IllegalArgumentException("Invalid quadtree tile '" + tile + "'");
+                }
+            }
+            unregister(consumer);
+            registrations.put(consumer, List.copyOf(tiles));
+            for (String tile : tiles) {
+                TileNode node = root;
+                for (int i = 0; i < tile.length(); i++) {
+                    node = node.child(tile.charAt(i) - '0', true);
+                    node.below = add(node.below, consumer);
+                }
+                node.here = add(node.here, consumer);
+            }
+        }
+
+        synchronized void unregister(RoutedConsumer consumer) {
+            List<String> tiles = registrations.remove(consumer);
+            if (tiles == null) {
+                return;
+            }
+            for (String tile : tiles) {
+                TileNode node = root;
+                for (int i = 0; i < tile.length(); i++) {
+                    node = node.child(tile.charAt(i) - '0', false);
+                    node.below = remove(node.below, consumer);
+                }
+                node.here = remove(node.here, consumer);
+            }
+        }
+
+        synchronized boolean isEmpty() {
+            return registrations.isEmpty();
+        }
+
+        // The quadTree property holds comma separated tiles, such as ",12003,1201,"
+        void route(String quadTree, Map<String, Object> properties) {
+            List<RoutedConsumer> consumers = matched.get();
+            TileNode node = root;
+            for (int i = 0; i <= quadTree.length(); i++) {
+                char c = i < quadTree.length() ? quadTree.charAt(i) : ',';
+                if (c == ',') {
+                    // End of a message tile, the consumers with a tile within it also match
+                    if (node != null && node != root) {
+                        collect(consumers, node.below);
+                    }
+                    node = root;
+                } else if (node != null) {
+                    int digit = c - '0';
+                    node = digit >= 0 && digit < 4 ? node.child(digit, false) : null;
+                    if (node != null) {
+                        collect(consumers, node.here);
+                    }
+                }
+            }
+            try {
+                for (int i = 0; i < consumers.size(); i++) {
+                    consumers.get(i).accept(properties);
+                }
+            } finally {
+                consumers.clear();
+            }
+        }
+
+        // Adds the consumers that weren't matched by an earlier message tile yet
+        private static void collect(List<RoutedConsumer> consumers, RoutedConsumer[] candidates) {
+            for (RoutedConsumer candidate : candidates) {
+                if (!consumers.contains(candidate)) {
+                    consumers.add(candidate);
+                }
+            }
+        }
+
+        private static RoutedConsumer[] add(RoutedConsumer[] consumers, RoutedConsumer consumer) {
+            for (RoutedConsumer existing : consumers) {
+                if (existing == consumer) {
+                    return consumers;
+                }
+            }
+            RoutedConsumer[] result = Arrays.copyOf(consumers, consumers.length + 1);
+            result[consumers.length] = consumer;
+            return result;
+        }
+
+        private static RoutedConsumer[] remove(RoutedConsumer[] consumers, RoutedConsumer consumer) {
+            int index = Arrays.asList(consumers).indexOf(consumer);
+            if (index < 0) {
+                return consumers;
+            }
+            if (consumers.length == 1) {
+                return NONE;
+            }
+            RoutedConsumer[] result = new RoutedConsumer[consumers.length - 1];
+            System.arraycopy(consumers, 0, result, 0, index);
+            System.arraycopy(consumers, index + 1, result, index, result.length - index);
+            return result;
+        }
+
+        private static class TileNode {
+            private final AtomicReferenceArray<TileNode> children = new AtomicReferenceArray<>(4);
+            // Consumers with a tile ending at this node, and with a tile ending at or below this node
+            volatile RoutedConsumer[] here = NONE;
+            volatile RoutedConsumer[] below = NONE;
+
+            TileNode child(int digit, boolean create) {
+                TileNode child = children.get(digit);
+                if (child == null && create) {
+                    child = new TileNode();
+                    children.set(digit, child);
+                }
+                return child;
+            }
+        }
+    }
+
+    // ======== RECEIVE PATH SUPPORT ========
+    // Everything between a delivery arriving on the receiver link of one endpoint and settling it, apart from decoding
+    // the message: the credit window, the consumer pipeline, "zero-copy" mode, the inbound log and reconnecting after
+    // a lost connection. ReceiverHandler forwards the link events, all methods run on the reactor thread unless noted.
+    private static class ReceivePath {
+        private final SubscriptionEndpoint endpoint;
+        private final CreditWindow creditWindow;
+        private final boolean zeroCopy;
+        // Null when MESSAGE_CONSUMER_THREADS is 0 and the messages are processed on the reactor thread
+        private final ConsumerPipeline pipeline;
+        // Connects again after a lost connection
+        private final ReceiverHandler handler;
+        private Receiver receiver;
+        private volatile boolean linkOpen;
+        private final ReconnectSupervisor reconnect;
+        private boolean closed;
+        private final AwaitingDurable awaitingLog = new AwaitingDurable();
+        // Counters, gauges and the settle latency of this endpoint, from receiving a message until it is settled
+        private final ReceiverMetrics metrics;
+
+        // Connects again with the handler, which opens the session and the link again when the connection is open
+        private final BaseHandler reconnectTimer = new BaseHandler() {
+            @Override
+            public void onTimerTask(Event event) {
+                if (!closed) {
+                    event.getReactor().connectionToHost(endpoint.getHost(), endpoint.getPort(), handler);
+                }
+            }
+        };
+
+        // Receive path state for "zero-copy" mode, reused for every message
+        private ByteBuffer receiveBuffer = ByteBuffer.allocate(1024);
+        private WritableBuffer receiveTarget = new WritableBuffer.ByteBufferWrapper(receiveBuffer);
+        private final MessageView messageView = new MessageView();
+        private long receivedMessages;
+        private long receivedBytes;
+
+        ReceivePath(SubscriptionEndpoint endpoint, ConsumerPipeline pipeline, ReceiverHandler handler) {
+            this.endpoint = endpoint;
+            this.pipeline = pipeline;
+            this.handler = handler;
+            this.zeroCopy = "zero-copy".equals(MESSAGE_RECEIVE_MODE);
+            this.creditWindow = CreditWindow.forEndpoint(endpoint);
+            this.reconnect = new ReconnectSupervisor(endpoint.key());
+            this.metrics = MetricsRegistry.register(endpoint.key());
+        }
+
+        ReceiverMetrics metrics() {
+            return metrics;
+        }
+
+        // True once the interchange has opened the receiver link, may be read from any thread
+        boolean isLinkOpen() {
+            return linkOpen;
+        }
+
+        void transportError() {
+            metrics.transportErrors.increment();
+        }
+
+        // Stops receiving for an endpoint that is no longer part of the subscription
+        void close() {
+            closed = true;
+            linkOpen = false;
+            MetricsRegistry.unregister(metrics);
+        }
+
+        // Hands the slots of the link's messages still in the consumer pipeline to the other links
+        void release(Receiver receiver) {
+            if (pipeline != null) {
+                pipeline.release(receiver);
+            }
+        }
+
+        void linkOpened(Receiver receiver) {
+            this.receiver = receiver;
+            // The consumer pipeline finds the metrics of a delivery through its link
+            receiver.setContext(metrics);
+            linkOpen = true;
+            long downtimeNanos = reconnect.connected();
+            if (downtimeNanos > 0) {
+                metrics.reconnects.increment();
+                metrics.downtimeNanos.add(downtimeNanos);
+            }
+            metrics.connected = true;
+            if (pipeline != null) {
+                // With a consumer pipeline this link's share of the pipeline capacity is the credit
+                pipeline.attach(receiver, creditWindow.maximum());
+            } else {
+                receiver.flow(creditWindow.window());
+            }
+            publishGauges();
+        }
+
+        void linkClosed() {
+            linkOpen = false;
+        }
+
+        void connectionLost(Reactor reactor) {
+            linkOpen = false;
+            receiver = null;
+            metrics.connected = false;
+            publishGauges();
+            if (closed) {
+                return;
+            }
+            int delayMillis = reconnect.connectionLost();
+            logger.warning("Connection to " + endpoint.key() + " lost, reconnecting in " + delayMillis + " ms");
+            reactor.schedule(delayMillis, reconnectTimer);
+        }
+
+        // Counts a complete message and takes it over when it goes to the consumer pipeline or is received in
+        // "zero-copy" mode. False when the handler reads and decodes it.
+        boolean handOff(Receiver receiver, Delivery delivery, long receivedAt) {
+            metrics.messagesReceived.increment();
+            metrics.bytesReceived.add(delivery.pending());
+            if (pipeline != null) {
+                if (!pipeline.submit(receiver, delivery, receivedAt)) {
+                    // Only happens when the peer sends beyond the granted credit
+                    logger.warning("Consumer pipeline full, releasing message");
+                    receiver.advance();
+                    delivery.disposition(Released.getInstance());
+                    delivery.settle();
+                    metrics.messagesNotAccepted.increment();
+                }
+                publishGauges();
+                return true;
+            }
+            if (zeroCopy) {
+                receiveZeroCopy(receiver, delivery);
+                accept(receiver, delivery, receiveBuffer.array(), receiveBuffer.position(), receivedAt);
+                return true;
+            }
+            return false;
+        }
+
+        // Accepts the message and gives its credit back, or leaves that to acceptDurable when the inbound log is on
+        void accept(Receiver receiver, Delivery delivery, byte[] message, int length, long receivedAt) {
+            if (inboundLog != null) {
+                acceptWhenLogged(delivery, message, length, receivedAt);
+                return;
+            }
+            delivery.disposition(Accepted.getInstance());
+            delivery.settle();
+            metrics.settleLatency.record(System.nanoTime() - receivedAt);
+            creditWindow.replenish(receiver);
+            publishGauges();
+        }
+
+        // The gauges are written on the reactor thread when the credit or the unsettled deliveries change
+        private void publishGauges() {
+            metrics.credit = receiver != null ? receiver.getCredit() : 0;
+            if (pipeline == null) {
+                metrics.creditWindow = creditWindow.window();
+            }
+            metrics.unsettled = receiver != null ? receiver.getUnsettled() : 0;
+        }
+
+        // The delivery is accepted by acceptDurable once the log has forced the message to disk, and its credit is
+        // only given back then. A message that can't be logged is released, so the interchange delivers it again.
+        private void acceptWhenLogged(Delivery delivery, byte[] message, int length, long receivedAt) {
+            try {
+                awaitingLog.add(delivery, inboundLog.append(message, 0, length), receivedAt);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to log message, releasing it", e);
+                delivery.disposition(Released.getInstance());
+                delivery.settle();
+                metrics.messagesNotAccepted.increment();
+            }
+        }
+
+        // Called on the reactor thread after the inbound log has forced records to disk
+        void acceptDurable() {
+            long durableOffset = inboundLog.durableOffset();
+            boolean accepted = false;
+            Delivery delivery;
+            while ((delivery = awaitingLog.pollDurable(durableOffset)) != null) {
+                delivery.disposition(Accepted.getInstance());
+                delivery.settle();
+                metrics.settleLatency.record(System.nanoTime() - awaitingLog.polledReceivedAt());
+                accepted = true;
+            }
+            if (accepted && receiver != null && receiver.getLocalState() == EndpointState.ACTIVE) {
+                creditWindow.replenish(receiver);
+            }
+            if (accepted) {
+                publishGauges();
+            }
+        }
+
+        // Reads the message into the reusable receive buffer and hands a view over it to onMessage, without decoding
+        private void receiveZeroCopy(Receiver receiver, Delivery delivery) {
+            int size = delivery.pending();
+            if (receiveBuffer.capacity() < size) {
+                receiveBuffer = ByteBuffer.allocate(Math.max(size, receiveBuffer.capacity() * 2));
+                receiveTarget = new WritableBuffer.ByteBufferWrapper(receiveBuffer);
+            }
+            receiveBuffer.clear();
+            receiver.recv(receiveTarget);
+            receiver.advance();
+            messageView.wrap(receiveBuffer, receiveBuffer.position());
+            onMessage(messageView);
+        }
+
+        // The view is only valid during this call, the underlying buffer is reused for the next message
+        private void onMessage(MessageView message) {
+            ByteBuffer body = message.body();
+            receivedMessages++;
+            receivedBytes += body != null ? body.remaining() : 0;
+            if (sampleMessageLog()) {
+                logger.info("Messages received: " + receivedMessages + ", body bytes: " + receivedBytes
+                        + ", last properties=" + message.applicationProperties());
+            }
+            metrics.recordEndToEnd(message.messageType(), message.creationTimeNanos());
+            // Only decode the application properties when there is a consumer to route to
+            if (!messageRouter.isEmpty()) {
+                messageRouter.route(message.applicationProperties());
+            }
+        }
+    }
+
+    // Creation time stamped into a message by its sender, for measuring the end-to-end latency. The delivery example
+    // stamps the standard creation-time property in milliseconds and a message annotation in nanoseconds since the
+    // epoch, messages from other senders often only have the property.
+    static class CreationTime {
+        static final Symbol ANNOTATION = Symbol.valueOf("x-opt-creation-time-nanos");
+        static final long CLOCK_OFFSET_NANOS = TimeUnit.MICROSECONDS.toNanos(MESSAGE_LATENCY_CLOCK_OFFSET_MICROS);
+
+        // Instant.now() reads the system clock with microsecond resolution, unlike System.currentTimeMillis()
+        static long nowNanos() {
+            Instant now = Instant.now();
+            return TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+        }
+
+        // Nanoseconds since the epoch, or -1 when the message has no creation time
+        static long of(Message message) {
+            MessageAnnotations annotations = message.getMessageAnnotations();
+            if (annotations != null && annotations.getValue() != null) {
+                Object nanos = annotations.getValue().get(ANNOTATION);
+                if (nanos instanceof Long) {
+                    return (Long) nanos;
+                }
+            }
+            long millis = message.getCreationTime();
+            return millis > 0 ? TimeUnit.MILLISECONDS.toNanos(millis) : -1;
+        }
+
+        // Latency of a message created at the given time by a sender whose clock is CLOCK_OFFSET_NANOS ahead
+        static long latencyNanos(long createdNanos) {
+            return nowNanos() - createdNanos + CLOCK_OFFSET_NANOS;
+        }
+    }
+
+    // Adaptive credit window for the receiver link. The window doubles while messages are processed as fast as they
+    // arrive and halves when delivered messages start queueing up locally. It never exceeds the configured maximum or
+    // the maxMessageRate advertised by the endpoint, more than one second of messages in flight is of no use.
+    private static class CreditWindow {
+        private final int minimum;
+        private final int maximum;
+        private volatile int window;
+
+        CreditWindow(int minimum, int configuredMaximum, int maxMessageRate) {
+            int maximum = Math.max(minimum, configuredMaximum);
+            if (maxMessageRate > 0) {
+                maximum = Math.max(minimum, Math.min(maximum, maxMessageRate));
+            }
+            this.minimum = minimum;
+            this.maximum = maximum;
+            this.window = minimum;
+        }
+
+        int maximum() {
+            return maximum;
+        }
+
+        static CreditWindow forEndpoint(SubscriptionEndpoint endpoint) {
+            Integer maxMessageRate = endpoint.getMaxMessageRate();
+            return new CreditWindow(10, RECEIVER_MAX_CREDIT, maxMessageRate != null ? maxMessageRate.intValue() : 0);
+        }
+
+        // Current window size, may be read from any thread
+        int window() {
+            return window;
+        }
+
+        // Called on the reactor thread after a delivery has been processed
+        void replenish(Receiver receiver) {
+            int credit = receiver.getCredit();
+            int queued = receiver.getQueued();
+            if (credit + queued >= window / 2) {
+                return;
+            }
+
+            int adjusted = window;
+            if (queued > window / 4) {
+                adjusted = Math.max(minimum, window / 2);
+            } else if (queued == 0) {
+                adjusted = Math.min(maximum, window * 2);
+            }
+            if (adjusted != window) {
+                window = adjusted;
+                logger.fine("Credit window adjusted to " + adjusted);
+            }
+
+            receiver.flow(window - credit - queued);
+        }
+    }
+
+    // Read-only view over an encoded AMQP message. Wrapping only locates the body and application properties
+    // sections, the application properties are decoded on first access.
+    static class MessageView {
+        private static final int MESSAGE_ANNOTATIONS = 0x72;
+        private static final int PROPERTIES = 0x73;
+        private static final int APPLICATION_PROPERTIES = 0x74;
+        private static final int DATA = 0x75;
+        private static final int AMQP_VALUE = 0x77;
+        private static final byte[] CREATION_TIME_KEY = CreationTime.ANNOTATION.toString().getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] MESSAGE_TYPE_KEY = "messageType".getBytes(StandardCharsets.US_ASCII);
+
+        private final DecoderImpl decoder = new DecoderImpl();
+        private ByteBuffer source;
+        private ByteBuffer bodyView;
+        private ByteBuffer propertiesView;
+        private int bodyStart;
+        private int bodyEnd;
+        private int propertiesStart;
+        private int propertiesEnd;
+        private Map<String, Object> properties;
+        // Start of the values of the sections that are scanned without decoding them, -1 when absent
+        private int annotationsValue;
+        private int messagePropertiesValue;
+        private int propertiesValue;
+        // The last messageType read, which is returned again for the next message of the same type
+        private String messageType;
+        private byte[] messageTypeBytes = new byte[0];
+
+        MessageView() {
+            AMQPDefinedTypes.registerAllTypes(decoder, new EncoderImpl(decoder));
+        }
+
+        void wrap(ByteBuffer buffer, int length) {
+            if (buffer != source) {
+                source = buffer;
+                bodyView = buffer.asReadOnlyBuffer();
+                propertiesView = buffer.asReadOnlyBuffer();
+            }
+            bodyStart = -1;
+            propertiesStart = -1;
+            properties = null;
+            annotationsValue = -1;
+            messagePropertiesValue = -1;
+            propertiesValue = -1;
+
+            int position = 0;
+            while (position < length) {
+                int sectionStart = position;
+                if (u8(position) != 0x00) {
+                    throw new IllegalArgumentException("Expected a described section at offset " + position);
+                }
+                position++;
+                long code;
+                int descriptorFormat = u8(position);
+                if (descriptorFormat == 0x53) {
+                    code = u8(position + 1);
+                } else if (descriptorFormat == 0x80) {
+                    code = bodyView.getLong(position + 1);
+                } else {
+                    throw new IllegalArgumentException("Unsupported section descriptor 0x" + Integer.toHexString(descriptorFormat));
+                }
+                int valueStart = skip(position);
+                position = skip(valueStart);
+
+                if (code == MESSAGE_ANNOTATIONS) {
+                    annotationsValue = valueStart;
+                } else if (code == PROPERTIES) {
+                    messagePropertiesValue = valueStart;
+                } else if (code == APPLICATION_PROPERTIES) {
+                    propertiesStart = sectionStart;
+                    propertiesEnd = position;
+                    propertiesValue = valueStart;
+                } else if ((code == DATA || code == AMQP_VALUE) && bodyStart < 0) {
+                    // Binary and string values expose their content, any other value type is exposed encoded
+                    int format = u8(valueStart);
+                    bodyStart = valueStart;
+                    if (format == 0xa0 || format == 0xa1) {
+                        bodyStart += 2;
+                    } else if (format == 0xb0 || format == 0xb1) {
+                        bodyStart += 5;
+                    }
+                    bodyEnd = position;
+                }
+            }
+        }
+
+        // Body content as a read-only buffer, or null when the message has no body
+        ByteBuffer body() {
+            if (bodyStart < 0) {
+                return null;
+            }
+            bodyView.clear();
+            bodyView.limit(bodyEnd).position(bodyStart);
+            return bodyView;
+        }
+
+        Map<String, Object> applicationProperties() {
+            if (properties == null && propertiesStart >= 0) {
+                propertiesView.clear();
+                propertiesView.limit(propertiesEnd).position(propertiesStart);
+                decoder.setByteBuffer(propertiesView);
+                properties = ((ApplicationProperties) decoder.readObject()).getValue();
+                decoder.setByteBuffer(null);
+            }
+            return properties != null ? properties : Collections.emptyMap();
+        }
+
+        // Creation time in nanoseconds since the epoch from the annotation, or else from the creation-time property,
+        // or -1 when the message has neither
+        long creationTimeNanos() {
+            if (annotationsValue >= 0) {
+                int position = firstEntry(annotationsValue);
+                for (int entries = entryCount(annotationsValue); entries > 0; entries -= 2) {
+                    int value = skip(position);
+                    if (textEquals(position, CREATION_TIME_KEY)) {
+                        if (u8(value) == 0x81) {
+                            return bodyView.getLong(value + 1);
+                        } else if (u8(value) == 0x55) {
+                            return bodyView.get(value + 1);
+                        }
+                    }
+                    position = skip(value);
+                }
+            }
+            // The properties list has creation-time as its tenth field, a timestamp in milliseconds
+            if (messagePropertiesValue >= 0 && entryCount(messagePropertiesValue) > 9) {
+                int position = firstEntry(messagePropertiesValue);
+                for (int field = 0; field < 9; field++) {
+                    position = skip(position);
+                }
+                if (u8(position) == 0x83) {
+                    return TimeUnit.MILLISECONDS.toNanos(bodyView.getLong(position + 1));
+                }
+            }
+            return -1;
+        }
+
+        // The messageType application property, scanned without decoding the other properties, or null when absent
+        String messageType() {
+            if (properties != null) {
+                Object value = properties.get("messageType");
+                return value instanceof String ? (String) value : null;
+            }
+            if (propertiesValue < 0) {
+                return null;
+            }
+            int position = firstEntry(propertiesValue);
+            for (int entries = entryCount(propertiesValue); entries > 0; entries -= 2) {
+                int value = skip(position);
+                if (textEquals(position, MESSAGE_TYPE_KEY)) {
+                    int format = u8(value);
+                    if (format != 0xa1 && format != 0xb1) {
+                        return null;
+                    }
+                    if (!textEquals(value, messageTypeBytes)) {
+                        int length = format == 0xa1 ? u8(value + 1) : bodyView.getInt(value + 1);
+                        messageTypeBytes = new byte[length];
+                        bodyView.clear();
+                        bodyView.position(value + (format == 0xa1 ? 2 : 5));
+                        bodyView.get(messageTypeBytes);
+                        messageType = new String(messageTypeBytes, StandardCharsets.UTF_8);
+                    }
+                    return messageType;
+                }
+                position = skip(value);
+            }
+            return null;
+        }
+
+        // Number of elements of the list or map at the given offset, a map counts its keys and values
+        private int entryCount(int position) {
+            switch (u8(position)) {
+                case 0xc0:
+                case 0xc1:
+                    return u8(position + 2);
+                case 0xd0:
+                case 0xd1:
+                    return bodyView.getInt(position + 5);
+                default:
+                    return 0;
+            }
+        }
+
+        private int firstEntry(int position) {
+            int format = u8(position);
+            return format == 0xc0 || format == 0xc1 ? position + 3 : position + 9;
+        }
+
+        // True when the string or symbol at the given offset has exactly the given bytes
+        private boolean textEquals(int position, byte[] expected) {
+            int format = u8(position);
+            int length;
+            int start;
+            if (format == 0xa1 || format == 0xa3) {
+                length = u8(position + 1);
+                start = position + 2;
+            } else if (format == 0xb1 || format == 0xb3) {
+                length = bodyView.getInt(position + 1);
+                start = position + 5;
+            } else {
+                return false;
+            }
+            if (length != expected.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bodyView.get(start + i) != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int u8(int index) {
+            return bodyView.get(index) & 0xff;
+        }
+
+        // Returns the offset just past the encoded value starting at the given offset
+        private int skip(int position) {
+            int format = u8(position);
+            if (format == 0x00) {
+                return skip(skip(position + 1));
+            }
+            switch (format >> 4) {
+                case 0x4:
+                    return position + 1;
+                case 0x5:
+                    return position + 2;
+                case 0x6:
+                    return position + 3;
+                case 0x7:
+                    return position + 5;
+                case 0x8:
+                    return position + 9;
+                case 0x9:
+                    return position + 17;
+                case 0xa:
+                case 0xc:
+                case 0xe:
+                    return position + 2 + u8(position + 1);
+                case 0xb:
+                case 0xd:
+                case 0xf:
+                    return position + 5 + bodyView.getInt(position + 1);
+                default:
+                    throw new IllegalArgumentException("Unsupported format code 0x" + Integer.toHexString(format));
+            }
+        }
+    }
+
+    // Hands received messages from the reactor thread to a pool of consumer threads through a bounded ring and returns
+    // them through a second ring once processed. The pipeline is shared by the receivers of all subscription endpoints.
+    // The number of messages in the pipeline never exceeds its capacity, a receiver only gets credit back for the slots
+    // its messages have freed, so slow consumers push back on the interchange.
+    private static class ConsumerPipeline extends BaseHandler {
+        private final int capacity;
+        private final RingBuffer<InboundMessage> inbound;
+        private final RingBuffer<InboundMessage> completed;
+        // Free slots, only used by the reactor thread
+        private final ArrayDeque<InboundMessage> free = new ArrayDeque<>();
+        // Processed messages whose record in the inbound log is not on disk yet, only used by the reactor thread
+        private final ArrayDeque<InboundMessage> awaitingLog = new ArrayDeque<>();
+        private final AtomicBoolean wakeupRequested = new AtomicBoolean();
+        private volatile Reactor reactor;
+        // The receivers the capacity is handed out to as credit, only used by the reactor thread
+        private final Map<Receiver, LinkShare> shares = new LinkedHashMap<>();
+        // Capacity not handed out as credit to any receiver, only used by the reactor thread
+        private int unassigned;
+
+        ConsumerPipeline(int minimumCapacity, int threads) {
+            inbound = new RingBuffer<>(minimumCapacity);
+            completed = new RingBuffer<>(minimumCapacity);
+            capacity = inbound.capacity();
+            unassigned = capacity;
+            for (int i = 0; i < capacity; i++) {
+                free.push(new InboundMessage());
+            }
+            for (int i = 0; i < threads; i++) {
+                Thread thread = new Thread(this::consume, "message-consumer-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        // Null when MESSAGE_CONSUMER_THREADS is 0. The capacity is twice the credit of the initial endpoints, leaving
+        // room for endpoints that are added later. When more endpoints are added than that, the capacity is shared
+        // equally among them.
+        static ConsumerPipeline forEndpoints(List<SubscriptionEndpoint> endpoints) {
+            if (MESSAGE_CONSUMER_THREADS <= 0) {
+                return null;
+            }
+            int capacity = 0;
+            for (SubscriptionEndpoint endpoint : endpoints) {
+                capacity += CreditWindow.forEndpoint(endpoint).maximum();
+            }
+            return new ConsumerPipeline(2 * capacity, MESSAGE_CONSUMER_THREADS);
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        @Override
+        public void onReactorInit(Event event) {
+            reactor = event.getReactor();
+        }
+
+        @Override
+        public void onReactorQuiesced(Event event) {
+            settleCompleted();
+        }
+
+        // Called on the reactor thread when a receiver link opens. The link gets credit up to its window as far as the
+        // unassigned capacity allows, and is topped up as slots become free, such as those of the messages of a link
+        // that was lost while they were in process.
+        void attach(Receiver receiver, int wanted) {
+            shares.put(receiver, new LinkShare(wanted));
+            rebalance();
+            distribute();
+        }
+
+        // Called on the reactor thread when a receiver link is closed, its unused credit becomes available again. Its
+        // messages in process free their slots when they are settled.
+        void release(Receiver receiver) {
+            if (shares.remove(receiver) != null) {
+                unassigned += receiver.getCredit() + receiver.getQueued();
+                rebalance();
+                distribute();
+            }
+        }
+
+        // A link's window is the credit it wants, but no more than an equal part of the capacity, so every link gets
+        // credit when more links are open than the capacity was sized for. A link above its new window gives slots
+        // back as its messages are settled.
+        private void rebalance() {
+            int fairShare = Math.max(1, capacity / Math.max(1, shares.size()));
+            for (Map.Entry<Receiver, LinkShare> entry : shares.entrySet()) {
+                LinkShare share = entry.getValue();
+                share.window = Math.min(share.wanted, fairShare);
+                ((ReceiverMetrics) entry.getKey().getContext()).creditWindow = share.window;
+            }
+        }
+
+        // Hands out unassigned capacity as credit to the open links below their window
+        private void distribute() {
+            for (Map.Entry<Receiver, LinkShare> entry : shares.entrySet()) {
+                Receiver receiver = entry.getKey();
+                LinkShare share = entry.getValue();
+                int credit = Math.min(share.window - share.held, unassigned);
+                if (credit > 0 && receiver.getLocalState() == EndpointState.ACTIVE) {
+                    receiver.flow(credit);
+                    share.held += credit;
+                    unassigned -= credit;
+                }
+            }
+        }
+
+        // Called on the reactor thread, copies the message into a free slot and passes it to the consumer threads
+        boolean submit(Receiver receiver, Delivery delivery, long receivedAt) {
+            InboundMessage message = free.poll();
+            if (message == null) {
+                return false;
+            }
+            int size = delivery.pending();
+            if (message.data.length < size) {
+                message.data = new byte[size];
+            }
+            message.length = receiver.recv(message.data, 0, size);
+            receiver.advance();
+            message.logOffset = -1;
+            if (inboundLog != null) {
+                try {
+                    message.logOffset = inboundLog.append(message.data, 0, message.length);
+                } catch (IOException e) {
+                    // Settled as released once processed, so the interchange delivers it again
+                    logger.log(Level.WARNING, "Unable to log message", e);
+                }
+            }
+            message.delivery = delivery;
+            message.receivedAt = receivedAt;
+            message.metrics = (ReceiverMetrics) receiver.getContext();
+            inbound.offer(message);
+            return true;
+        }
+
+        // Called on the reactor thread, settles the processed messages and gives their credit back to their receivers
+        private void settleCompleted() {
+            wakeupRequested.set(false);
+            InboundMessage message;
+            while ((message = completed.poll()) != null) {
+                if (inboundLog != null) {
+                    awaitingLog.add(message);
+                } else {
+                    settle(message);
+                }
+            }
+            // Messages are settled in the order they were processed, a message waits for the ones before it
+            if (inboundLog != null) {
+                long durableOffset = inboundLog.durableOffset();
+                while (!awaitingLog.isEmpty() && awaitingLog.peek().logOffset < durableOffset) {
+                    message = awaitingLog.poll();
+                    if (message.logOffset < 0) {
+                        message.outcome = Released.getInstance();
+                    }
+                    settle(message);
+                }
+            }
+            if (unassigned > 0) {
+                distribute();
+            }
+        }
+
+        private void settle(InboundMessage message) {
+            Receiver receiver = (Receiver) message.delivery.getLink();
+            message.delivery.disposition(message.outcome);
+            message.delivery.settle();
+            ReceiverMetrics metrics = (ReceiverMetrics) receiver.getContext();
+            if (metrics != null) {
+                metrics.settleLatency.record(System.nanoTime() - message.receivedAt);
+                if (!(message.outcome instanceof Accepted)) {
+                    metrics.messagesNotAccepted.increment();
+                }
+            }
+            message.delivery = null;
+            free.push(message);
+            // The slot is credit of the same link again, unless the link is gone or holds more than its window
+            LinkShare share = shares.get(receiver);
+            if (share != null && share.held <= share.window && receiver.getLocalState() == EndpointState.ACTIVE) {
+                receiver.flow(1);
+            } else {
+                if (share != null) {
+                    share.held--;
+                }
+                unassigned++;
+            }
+        }
+
+        private void consume() {
+            int idle = 0;
+            while (true) {
+                InboundMessage message = inbound.poll();
+                if (message == null) {
+                    if (++idle < 100) {
+                        Thread.onSpinWait();
+                    } else {
+                        LockSupport.parkNanos(100_000);
+                    }
+                    continue;
+                }
+                idle = 0;
+                try {
+                    processMessage(message.data, message.length, message.metrics);
+                    message.outcome = Accepted.getInstance();
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Error processing message", e);
+                    message.outcome = new Rejected();
+                }
+                completed.offer(message);
+                // Wake the reactor so the disposition is sent without waiting for the next network event
+                Reactor reactor = this.reactor;
+                if (reactor != null && wakeupRequested.compareAndSet(false, true)) {
+                    reactor.wakeup();
+                }
+            }
+        }
+    }
+
+    // The part of the consumer pipeline capacity of a receiver: the credit it wants, the credit it is kept at, and the
+    // slots it holds as credit or as messages in process
+    private static final class LinkShare {
+        private final int wanted;
+        private int window;
+        private int held;
+
+        LinkShare(int wanted) {
+            this.wanted = wanted;
+        }
+    }
+
+    private static class InboundMessage {
+        private byte[] data = new byte[1024];
+        private int length;
+        private long logOffset;
+        private long receivedAt;
+        private ReceiverMetrics metrics;
+        private Delivery delivery;
+        private DeliveryState outcome;
+    }
+
+    // Bounded lock-free queue for any number of producer and consumer threads. Every slot carries a sequence number
+    // telling producers and consumers whose turn it is (D. Vyukov's bounded MPMC queue).
+    private static class RingBuffer<T> {
+        private final AtomicReferenceArray<T> elements;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+        private final int mask;
+
+        RingBuffer(int minimumCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, minimumCapacity - 1)) << 1;
+            elements = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        boolean offer(T element) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        elements.lazySet(index, element);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        T poll() {
+            long position = head.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        T element = elements.get(index);
+                        elements.lazySet(index, null);
+                        sequences.set(index, position + mask + 1);
+                        return element;
+                    }
+                    position = head.get();
+                } else if (difference < 0) {
+                    return null;
+                } else {
+                    position = head.get();
+                }
+            }
+        }
+    }
+
+    // Durable log of the received messages in rolling memory-mapped segment files. Every record holds an AMQP-encoded
+    // message as it was received, application properties included, with its offset in the log and its receive time.
+    // A sparse index next to every segment has the offset, receive time and position of a record every 4 KiB, which
+    // is where a replay from a point in time starts. The reactor thread appends, a flusher thread forces what has been
+    // appended to disk and then wakes the reactor, which only accepts deliveries whose records are on disk. All
+    // records appended while a force is in progress are forced together by the next one.
+    private static class InboundLog {
+        private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+        // Record header: int message length, int CRC32 of the message, long offset, long receive time in milliseconds
+        private static final int HEADER_BYTES = 24;
+        // Index entry: long offset, long receive time in milliseconds, int position, int unused
+        private static final int INDEX_INTERVAL_BYTES = 4096;
+        private static final int INDEX_ENTRY_BYTES = 24;
+        private static final int INDEX_BYTES = (SEGMENT_BYTES / INDEX_INTERVAL_BYTES + 1) * INDEX_ENTRY_BYTES;
+        private static final String LOG_SUFFIX = ".log";
+        private static final String INDEX_SUFFIX = ".index";
+
+        private final Path directory;
+        private final long retentionMillis;
+        private final CRC32 crc = new CRC32();
+        // First offset and receive time of every segment file, oldest first (only used by the reactor thread)
+        private final ArrayDeque<long[]> files = new ArrayDeque<>();
+        private volatile LogSegment current;
+        // Segments that are full, the flusher forces and closes them
+        private final ConcurrentLinkedQueue<LogSegment> rolled = new ConcurrentLinkedQueue<>();
+        private long nextOffset;
+        // Records with a lower offset have been appended, respectively forced to disk
+        private volatile long appendedOffset;
+        private volatile long durableOffset;
+        private final AtomicBoolean flushRequested = new AtomicBoolean();
+        private final Thread flusher;
+        private volatile Reactor reactor;
+        private volatile boolean closed;
+
+        private InboundLog(Path directory, long retentionMillis) {
+            this.directory = directory;
+            this.retentionMillis = retentionMillis;
+            this.flusher = new Thread(this::flush, "inbound-log-flusher");
+            this.flusher.setDaemon(true);
+        }
+
+        // Opens the log in the directory and starts a new segment after the records already in it
+        static InboundLog open(Path directory, long retentionMillis) throws IOException {
+            Files.createDirectories(directory);
+            InboundLog log = new InboundLog(directory, retentionMillis);
+            for (Path file : segmentFiles(directory)) {
+                long firstOffset = firstOffsetOf(file);
+                long records = 0;
+                long firstTimestamp = -1;
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    for (int position = 0; isRecord(map, position, firstOffset + records, log.crc); position = next(map, position)) {
+                        if (records == 0) {
+                            firstTimestamp = map.getLong(position + 16);
+                        }
+                        records++;
+                    }
+                }
+                if (records == 0) {
+                    Files.delete(file);
+                    Files.deleteIfExists(indexFileOf(file));
+                    continue;
+                }
+                log.files.add(new long[]{firstOffset, firstTimestamp});
+                log.nextOffset = firstOffset + records;
+            }
+            log.appendedOffset = log.nextOffset;
+            log.durableOffset = log.nextOffset;
+            log.current = log.newSegment();
+            log.flusher.start();
+            logger.info("Inbound log " + directory + " opened at offset " + log.nextOffset);
+            return log;
+        }
+
+        // The flusher wakes the reactor after every force, so the deliveries of the forced records are accepted
+        void setReactor(Reactor reactor) {
+            this.reactor = reactor;
+        }
+
+        long durableOffset() {
+            return durableOffset;
+        }
+
+        // Appends a message and returns its offset, the record is durable once durableOffset() is above the offset
+        long append(byte[] data, int offset, int length) throws IOException {
+            if (length > SEGMENT_BYTES - HEADER_BYTES) {
+                throw new IOException("Message of " + length + " bytes doesn't fit in a log segment");
+            }
+            if (current.writePosition + HEADER_BYTES + length > SEGMENT_BYTES) {
+                roll();
+            }
+            LogSegment segment = current;
+            MappedByteBuffer map = segment.map;
+            int position = segment.writePosition;
+            long recordOffset = nextOffset++;
+            long now = System.currentTimeMillis();
+            if (position >= segment.nextIndexPosition) {
+                int entry = segment.indexEntries++ * INDEX_ENTRY_BYTES;
+                segment.index.putLong(entry, recordOffset);
+                segment.index.putLong(entry + 8, now);
+                segment.index.putInt(entry + 16, position);
+                segment.nextIndexPosition = position + INDEX_INTERVAL_BYTES;
+            }
+            crc.reset();
+            crc.update(data, offset, length);
+            map.position(position + HEADER_BYTES);
+            map.put(data, offset, length);
+            map.putInt(position + 4, (int) crc.getValue());
+            map.putLong(position + 8, recordOffset);
+            map.putLong(position + 16, now);
+            // The length is written last, a record without it is not read back
+            map.putInt(position, length);
+            segment.writePosition = position + HEADER_BYTES + length;
+            if (segment.writePosition + 4 <= SEGMENT_BYTES) {
+                map.putInt(segment.writePosition, 0);
+            }
+
+            appendedOffset = nextOffset;
+            if (flushRequested.compareAndSet(false, true)) {
+                LockSupport.unpark(flusher);
+            }
+            return recordOffset;
+        }
+
+        private void roll() throws IOException {
+            rolled.add(current);
+            current = newSegment();
+            // Segments of which even the next segment starts before the retention period are deleted
+            long expired = System.currentTimeMillis() - retentionMillis;
+            while (files.size() > 2) {
+                Iterator<long[]> iterator = files.iterator();
+                long[] oldest = iterator.next();
+                if (iterator.next()[1] >= expired) {
+                    break;
+                }
+                files.poll();
+                Path file = directory.resolve(String.format("%020d%s", oldest[0], LOG_SUFFIX));
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(indexFileOf(file));
+            }
+        }
+
+        private LogSegment newSegment() throws IOException {
+            Path file = directory.resolve(String.format("%020d%s", nextOffset, LOG_SUFFIX));
+            LogSegment segment = new LogSegment(file, FileChannel.MapMode.READ_WRITE);
+            segment.map.putInt(0, 0);
+            files.add(new long[]{nextOffset, System.currentTimeMillis()});
+            return segment;
+        }
+
+        // Group commit: every force covers all records appended up to its start
+        private void flush() {
+            while (!closed) {
+                if (!flushRequested.get()) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                    continue;
+                }
+                flushRequested.set(false);
+                // The records below the target are in the segment read after it, or in segments that were rolled
+                // before that read. A segment is queued in rolled before current moves on, so draining rolled after
+                // reading current finds all of them, also when the reactor rolls in between.
+                long target = appendedOffset;
+                LogSegment segment = current;
+                try {
+                    segment.force();
+                    // A rolled segment is only taken off the queue once it is forced, so a failed force is retried
+                    while ((segment = rolled.peek()) != null) {
+                        segment.force();
+                        rolled.poll();
+                        segment.close();
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    // durableOffset stays below the records until a later force covers all of them
+                    logger.log(Level.SEVERE, "Unable to force the inbound log to disk, retrying in 1 s", e);
+                    flushRequested.set(true);
+                    LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+                    continue;
+                }
+                durableOffset = target;
+                Reactor reactor = this.reactor;
+                if (reactor != null) {
+                    reactor.wakeup();
+                }
+            }
+        }
+
+        void close() throws IOException, InterruptedException {
+            closed = true;
+            LockSupport.unpark(flusher);
+            flusher.join();
+            LogSegment segment;
+            while ((segment = rolled.poll()) != null) {
+                segment.force();
+                segment.close();
+            }
+            current.force();
+            current.close();
+        }
+
+        // Passes the messages received from the given time on to the handler, the buffer is reused for every message
+        static long replay(Path directory, long fromMillis, RecordHandler handler) throws IOException {
+            List<Path> segmentFiles = segmentFiles(directory);
+            CRC32 crc = new CRC32();
+            ByteBuffer message = ByteBuffer.allocate(1024);
+            long replayed = 0;
+            // Starts in the last segment with a first record before the given time
+            int first = 0;
+            for (int i = 0; i < segmentFiles.size(); i++) {
+                try (LogSegment segment = new LogSegment(segmentFiles.get(i), FileChannel.MapMode.READ_ONLY)) {
+                    if (segment.map.getInt(0) > 0 && segment.map.getLong(16) < fromMillis) {
+                        first = i;
+                    }
+                }
+            }
+            for (int i = first; i < segmentFiles.size(); i++) {
+                Path file = segmentFiles.get(i);
+                long expectedOffset = firstOffsetOf(file);
+                try (LogSegment segment = new LogSegment(file, FileChannel.MapMode.READ_ONLY)) {
+                    int position = 0;
+                    if (i == first) {
+                        int entry = segment.findIndexEntry(fromMillis);
+                        if (entry >= 0) {
+                            expectedOffset = segment.index.getLong(entry * INDEX_ENTRY_BYTES);
+                            position = segment.index.getInt(entry * INDEX_ENTRY_BYTES + 16);
+                        }
+                    }
+                    MappedByteBuffer map = segment.map;
+                    for (; isRecord(map, position, expectedOffset, crc); position = next(map, position), expectedOffset++) {
+                        long receivedAt = map.getLong(position + 16);
+                        if (receivedAt < fromMillis) {
+                            continue;
+                        }
+                        int length = map.getInt(position);
+                        if (message.capacity() < length) {
+                            message = ByteBuffer.allocate(Math.max(length, message.capacity() * 2));
+                        }
+                        map.position(position + HEADER_BYTES);
+                        map.get(message.array(), 0, length);
+                        handler.onRecord(message, length, receivedAt);
+                        replayed++;
+                    }
+                }
+            }
+            return replayed;
+        }
+
+        // True when a complete record with the expected offset starts at the position
+        private static boolean isRecord(MappedByteBuffer map, int position, long expectedOffset, CRC32 crc) {
+            if (position + HEADER_BYTES > map.capacity()) {
+                return false;
+            }
+            int length = map.getInt(position);
+            if (length <= 0 || length > map.capacity() - position - HEADER_BYTES || map.getLong(position + 8) != expectedOffset) {
+                return false;
+            }
+            crc.reset();
+            ByteBuffer message = map.duplicate();
+            message.position(position + HEADER_BYTES).limit(position + HEADER_BYTES + length);
+            crc.update(message);
+            return (int) crc.getValue() == map.getInt(position + 4);
+        }
+
+        private static int next(MappedByteBuffer map, int position) {
+            return position + HEADER_BYTES + map.getInt(position);
+        }
+
+        private static List<Path> segmentFiles(Path directory) throws IOException {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            Collections.sort(files);
+            return files;
+        }
+
+        private static long firstOffsetOf(Path file) {
+            return Long.parseLong(file.getFileName().toString().replace(LOG_SUFFIX, ""));
+        }
+
+        private static Path indexFileOf(Path file) {
+            return file.resolveSibling(file.getFileName().toString().replace(LOG_SUFFIX, INDEX_SUFFIX));
+        }
+
+        interface RecordHandler {
+            void onRecord(ByteBuffer message, int length, long receivedAt);
+        }
+
+        private static class LogSegment implements AutoCloseable {
+            final FileChannel channel;
+            final FileChannel indexChannel;
+            final MappedByteBuffer map;
+            final MappedByteBuffer index;
+            int writePosition;
+            int nextIndexPosition;
+            int indexEntries;
+
+            LogSegment(Path file, FileChannel.MapMode mode) throws IOException {
+                boolean writable = mode == FileChannel.MapMode.READ_WRITE;
+                StandardOpenOption[] options = writable
+                        ? new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE}
+                        : new StandardOpenOption[]{StandardOpenOption.READ};
+                channel = FileChannel.open(file, options);
+                indexChannel = FileChannel.open(indexFileOf(file), options);
+                map = channel.map(mode, 0, writable ? SEGMENT_BYTES : channel.size());
+                index = indexChannel.map(mode, 0, writable ? INDEX_BYTES : indexChannel.size());
+            }
+
+            // Last index entry with a receive time before the given time, or -1 when there is none
+            int findIndexEntry(long millis) {
+                int low = 0;
+                int high = index.capacity() / INDEX_ENTRY_BYTES - 1;
+                int found = -1;
+                while (low <= high) {
+                    int middle = (low + high) >>> 1;
+                    long receivedAt = index.getLong(middle * INDEX_ENTRY_BYTES + 8);
+                    // Unused entries at the end of the index are zero
+                    if (receivedAt != 0 && receivedAt < millis) {
+                        found = middle;
+                        low = middle + 1;
+                    } else {
+                        high = middle - 1;
+                    }
+                }
+                return found;
+            }
+
+            void force() {
+                map.force();
+                index.force();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+                indexChannel.close();
+            }
+        }
+    }
+
+    // Deliveries waiting for their record in the inbound log to be on disk, in offset order. Only used by the reactor
+    // thread.
+    private static class AwaitingDurable {
+        private Delivery[] deliveries = new Delivery[64];
+        private long[] offsets = new long[64];
+        private long[] receivedAt = new long[64];
+        private int head;
+        private int size;
+        private long polledReceivedAt;
+
+        void add(Delivery delivery, long offset, long receivedNanos) {
+            if (size == deliveries.length) {
+                Delivery[] grownDeliveries = new Delivery[size * 2];
+                long[] grownOffsets = new long[size * 2];
+                long[] grownReceivedAt = new long[size * 2];
+                for (int i = 0; i < size; i++) {
+                    grownDeliveries[i] = deliveries[(head + i) % size];
+                    grownOffsets[i] = offsets[(head + i) % size];
+                    grownReceivedAt[i] = receivedAt[(head + i) % size];
+                }
+                deliveries = grownDeliveries;
+                offsets = grownOffsets;
+                receivedAt = grownReceivedAt;
+                head = 0;
+            }
+            int tail = (head + size) % deliveries.length;
+            deliveries[tail] = delivery;
+            offsets[tail] = offset;
+            receivedAt[tail] = receivedNanos;
+            size++;
+        }
+
+        // Removes and returns the oldest delivery when its record is durable, otherwise returns null
+        Delivery pollDurable(long durableOffset) {
+            if (size == 0 || offsets[head] >= durableOffset) {
+                return null;
+            }
+            Delivery delivery = deliveries[head];
+            deliveries[head] = null;
+            polledReceivedAt = receivedAt[head];
+            head = (head + 1) % deliveries.length;
+            size--;
+            return delivery;
+        }
+
+        // Receive time of the delivery last returned by pollDurable
+        long polledReceivedAt() {
+            return polledReceivedAt;
+        }
+    }
+
+    // Passes the messages of the last MESSAGE_LOG_REPLAY_MINUTES in the inbound log to the consumers, without
+    // subscribing again
+    private static void replayInboundLog() throws IOException {
+        long fromMillis = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(MESSAGE_LOG_REPLAY_MINUTES);
+        logger.info("Replaying messages received since " + new Date(fromMillis) + " from " + MESSAGE_LOG_DIR);
+        MessageView view = new MessageView();
+        long replayed = InboundLog.replay(Paths.get(MESSAGE_LOG_DIR), fromMillis, new InboundLog.RecordHandler() {
+            private long count;
+
+            @Override
+            public void onRecord(ByteBuffer message, int length, long receivedAt) {
+                view.wrap(message, length);
+                count++;
+                if (sampleMessageLog()) {
+                    logger.info("Replayed message " + count + " received at " + new Date(receivedAt)
+                            + ", properties=" + view.applicationProperties());
+                }
+                if (!messageRouter.isEmpty()) {
+                    messageRouter.route(view.applicationProperties());
+                }
+            }
+        });
+        logger.info("Replayed " + replayed + " messages");
+    }
+
+    // ======== METRICS ========
+    // Counters, gauges and latency histograms of the subscription endpoints. The receivers and the consumer pipeline
+    // record into them without locks or allocations. They are served in the Prometheus text format on /metrics of
+    // METRICS_PORT, and registered with the platform MBean server for JMX clients.
+    public interface ReceiverMetricsMBean {
+        long getMessagesReceived();
+
+        long getBytesReceived();
+
+        long getMessagesNotAccepted();
+
+        int getCredit();
+
+        int getCreditWindow();
+
+        int getUnsettled();
+
+        boolean isConnected();
+
+        long getReconnects();
+
+        double getDowntimeSeconds();
+
+        long getTransportErrors();
+
+        long getSettleLatencyCount();
+
+        long getSettleLatencyP50Micros();
+
+        long getSettleLatencyP99Micros();
+
+        long getSettleLatencyP999Micros();
+
+        String[] getEndToEndLatencies();
+    }
+
+    static class ReceiverMetrics implements ReceiverMetricsMBean {
+        final String endpoint;
+        final LongAdder messagesReceived = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        final LongAdder messagesNotAccepted = new LongAdder();
+        final LongAdder reconnects = new LongAdder();
+        final LongAdder downtimeNanos = new LongAdder();
+        final LongAdder transportErrors = new LongAdder();
+        final LatencyHistogram settleLatency = new LatencyHistogram();
+        // Latency from the creation time stamped by the sender until the message is consumed, by messageType
+        final Map<String, LatencyHistogram> endToEndLatency = new ConcurrentHashMap<>();
+        private final AtomicBoolean clockSkewReported = new AtomicBoolean();
+        volatile int credit;
+        volatile int creditWindow;
+        volatile int unsettled;
+        volatile boolean connected;
+
+        ReceiverMetrics(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public long getMessagesReceived() {
+            return messagesReceived.sum();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        @Override
+        public long getMessagesNotAccepted() {
+            return messagesNotAccepted.sum();
+        }
+
+        @Override
+        public int getCredit() {
+            return credit;
+        }
+
+        @Override
+        public int getCreditWindow() {
+            return creditWindow;
+        }
+
+        @Override
+        public int getUnsettled() {
+            return unsettled;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public long getReconnects() {
+            return reconnects.sum();
+        }
+
+        @Override
+        public double getDowntimeSeconds() {
+            return downtimeNanos.sum() / 1e9;
+        }
+
+        @Override
+        public long getTransportErrors() {
+            return transportErrors.sum();
+        }
+
+        @Override
+        public long getSettleLatencyCount() {
+            return settleLatency.count();
+        }
+
+        @Override
+        public long getSettleLatencyP50Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(settleLatency.valueAt(0.50));
+        }
+
+        @Override
+        public long getSettleLatencyP99Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(settleLatency.valueAt(0.99));
+        }
+
+        @Override
+        public long getSettleLatencyP999Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(settleLatency.valueAt(0.999));
+        }
+
+        @Override
+        public String[] getEndToEndLatencies() {
+            return endToEndLatency.entrySet().stream()
+                    .map(entry -> String.format("%s: %d messages, p50 %d us, p99 %d us", entry.getKey(),
+                            entry.getValue().count(), TimeUnit.NANOSECONDS.toMicros(entry.getValue().valueAt(0.50)),
+                            TimeUnit.NANOSECONDS.toMicros(entry.getValue().valueAt(0.99))))
+                    .toArray(String[]::new);
+        }
+
+        // Called on the reactor thread or a consumer thread once the message is consumed. Messages without a creation
+        // time are not measured, a latency below zero means the clock of the sender is ahead and is recorded as zero.
+        void recordEndToEnd(String messageType, long createdNanos) {
+            if (createdNanos < 0) {
+                return;
+            }
+            long latency = CreationTime.latencyNanos(createdNanos);
+            if (latency < 0 && clockSkewReported.compareAndSet(false, true)) {
+                logger.warning("Message from " + endpoint + " created " + TimeUnit.NANOSECONDS.toMicros(-latency)
+                        + " us in the future, set MESSAGE_LATENCY_CLOCK_OFFSET_MICROS to correct the clock offset");
+            }
+            String key = messageType != null ? messageType : "unknown";
+            LatencyHistogram histogram = endToEndLatency.get(key);
+            if (histogram == null) {
+                // Message types are a short list, anything beyond it shares one histogram
+                histogram = endToEndLatency.computeIfAbsent(endToEndLatency.size() < 32 ? key : "other",
+                        type -> new LatencyHistogram());
+            }
+            histogram.record(latency);
+        }
+    }
+
+    // The metrics of the current endpoints. Endpoints are registered by the receivers on the reactor thread and read by
+    // the HTTP server and JMX threads.
+    private static class MetricsRegistry {
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final Map<String, ReceiverMetrics> endpoints = new ConcurrentHashMap<>();
+        private static HttpServer server;
+
+        static ReceiverMetrics register(String endpoint) {
+            ReceiverMetrics metrics = new ReceiverMetrics(endpoint);
+            endpoints.put(endpoint, metrics);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(metrics, ReceiverMetricsMBean.class), objectName(endpoint));
+            } catch (JMException e) {
+                logger.log(Level.WARNING, "Unable to register the metrics of " + endpoint + " with JMX", e);
+            }
+            return metrics;
+        }
+
+        static void unregister(ReceiverMetrics metrics) {
+            endpoints.remove(metrics.endpoint, metrics);
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(metrics.endpoint));
+            } catch (JMException e) {
+                logger.fine("Metrics of " + metrics.endpoint + " were not registered with JMX: " + e.getMessage());
+            }
+        }
+
+        private static ObjectName objectName(String endpoint) throws MalformedObjectNameException {
+            return new ObjectName("local-actor-api:type=SubscriptionEndpoint,endpoint=" + ObjectName.quote(endpoint));
+        }
+
+        // Serves /metrics on METRICS_PORT, nothing is served when the port is 0
+        static void startHttpServer() throws IOException {
+            if (METRICS_PORT <= 0) {
+                return;
+            }
+            server = HttpServer.create(new InetSocketAddress(METRICS_PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            logger.info("Serving metrics on port " + METRICS_PORT + " at /metrics");
+        }
+
+        static void stopHttpServer() {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+
+        static String scrape() {
+            StringBuilder out = new StringBuilder(4096);
+            metric(out, "amqp_receiver_messages_received_total", "counter", "Messages received from the endpoint", ReceiverMetrics::getMessagesReceived);
+            metric(out, "amqp_receiver_bytes_received_total", "counter", "Encoded message bytes received from the endpoint", ReceiverMetrics::getBytesReceived);
+            metric(out, "amqp_receiver_messages_not_accepted_total", "counter", "Messages released or rejected instead of accepted", ReceiverMetrics::getMessagesNotAccepted);
+            metric(out, "amqp_receiver_credit", "gauge", "Link credit granted to the endpoint", ReceiverMetrics::getCredit);
+            metric(out, "amqp_receiver_credit_window", "gauge", "Credit window of the endpoint, adapted to the queued messages or its share of the consumer pipeline", ReceiverMetrics::getCreditWindow);
+            metric(out, "amqp_receiver_unsettled", "gauge", "Messages received but not yet settled", ReceiverMetrics::getUnsettled);
+            metric(out, "amqp_receiver_connected", "gauge", "1 while the link to the endpoint is open", m -> m.isConnected() ? 1 : 0);
+            metric(out, "amqp_receiver_reconnects_total", "counter", "Connections to the endpoint restored after a loss", ReceiverMetrics::getReconnects);
+            metric(out, "amqp_receiver_downtime_seconds_total", "counter", "Time from losing the connection until the link was open again", ReceiverMetrics::getDowntimeSeconds);
+            metric(out, "amqp_receiver_transport_errors_total", "counter", "Transport errors of the connection to the endpoint", ReceiverMetrics::getTransportErrors);
+            summary(out, "amqp_receiver_settle_latency_seconds", "Time from receiving a message until it was settled", m -> m.settleLatency);
+            endToEndSummary(out);
+            return out.toString();
+        }
+
+        private static void metric(StringBuilder out, String name, String type, String help, ToDoubleFunction<ReceiverMetrics> value) {
+            header(out, name, type, help);
+            for (ReceiverMetrics metrics : endpoints.values()) {
+                sample(out, name, endpointLabel(metrics), value.applyAsDouble(metrics));
+            }
+        }
+
+        private static void summary(StringBuilder out, String name, String help, Function<ReceiverMetrics, LatencyHistogram> histogram) {
+            header(out, name, "summary", help);
+            for (ReceiverMetrics metrics : endpoints.values()) {
+                quantiles(out, name, endpointLabel(metrics), histogram.apply(metrics));
+            }
+        }
+
+        // One summary per endpoint and messageType
+        private static void endToEndSummary(StringBuilder out) {
+            String name = "amqp_receiver_end_to_end_latency_seconds";
+            header(out, name, "summary", "Time from the creation time stamped by the sender until the message was consumed");
+            for (ReceiverMetrics metrics : endpoints.values()) {
+                for (Map.Entry<String, LatencyHistogram> entry : metrics.endToEndLatency.entrySet()) {
+                    String labels = endpointLabel(metrics) + ",messageType=\"" + escape(entry.getKey()) + '"';
+                    quantiles(out, name, labels, entry.getValue());
+                }
+            }
+        }
+
+        private static void header(StringBuilder out, String name, String type, String help) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private static void quantiles(StringBuilder out, String name, String labels, LatencyHistogram latency) {
+            long[] counts = latency.snapshot();
+            for (double quantile : QUANTILES) {
+                sample(out, name, labels + ",quantile=\"" + quantile + '"', LatencyHistogram.valueAt(counts, quantile) / 1e9);
+            }
+            sample(out, name + "_sum", labels, latency.sum() / 1e9);
+            sample(out, name + "_count", labels, latency.count());
+        }
+
+        private static String endpointLabel(ReceiverMetrics metrics) {
+            return "endpoint=\"" + escape(metrics.endpoint) + '"';
+        }
+
+        // The messageType comes from the messages, so backslashes, quotes and line breaks are escaped
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        private static void sample(StringBuilder out, String name, String labels, double value) {
+            out.append(name).append('{').append(labels).append("} ");
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                out.append((long) value);
+            } else {
+                out.append(value);
+            }
+            out.append('\n');
+        }
+    }
+
+    // Latency histogram in the style of HdrHistogram: values below 128 ns have a bucket each, above that every power of
+    // two range is split into 64 buckets, which keeps the error under 1.6%. Recording is an atomic increment without
+    // allocation, so any thread may record while others read.
+    private static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 64;
+        private static final int BUCKETS = 2 * SUB_BUCKETS + 40 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        long valueAt(double quantile) {
+            return valueAt(snapshot(), quantile);
+        }
+
+        // Upper bound of the bucket holding the quantile of the counts, which may also be the difference of snapshots
+        static long valueAt(long[] counts, double quantile) {
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBoundOf(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucketOf(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            // Shifts the value into [64, 128), the shift selects the range and the shifted value the bucket within it
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+            int bucket = 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            long subBucket = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    // ======== LOGGING ========
+    // Formats "yyyy-MM-dd HH:mm:ss.SSS LEVEL message" lines. The date and time only change once per second, so the
+    // formatted second is cached and only the milliseconds are appended per line. Unlike SimpleFormatter it has no
+    // synchronized methods, any number of threads may format at the same time.
+    private static class LineFormatter extends Formatter {
+        private static final DateTimeFormatter SECOND_FORMAT =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+        // Parsed message patterns, per thread as a MessageFormat can't be shared
+        private static final ThreadLocal<Map<String, MessageFormat>> MESSAGE_FORMATS = ThreadLocal.withInitial(HashMap::new);
+
+        private volatile FormattedSecond formattedSecond = new FormattedSecond(Long.MIN_VALUE, "");
+
+        @Override
+        public String format(LogRecord record) {
+            long millis = record.getMillis();
+            long second = Math.floorDiv(millis, 1000);
+            FormattedSecond formatted = formattedSecond;
+            if (formatted.second != second) {
+                formatted = new FormattedSecond(second, SECOND_FORMAT.format(Instant.ofEpochSecond(second)));
+                formattedSecond = formatted;
+            }
+            int milli = Math.floorMod(millis, 1000);
+            String message = message(record);
+            StringBuilder line = new StringBuilder(formatted.text.length() + message.length() + 16);
+            line.append(formatted.text).append('.');
+            if (milli < 100) {
+                line.append('0');
+            }
+            if (milli < 10) {
+                line.append('0');
+            }
+            line.append(milli).append(' ').append(record.getLevel().getName()).append(' ').append(message)
+                    .append(System.lineSeparator());
+            return line.toString();
+        }
+
+        // Records with parameters are formatted here, so the logging thread doesn't pay for it when logging is
+        // asynchronous. Formatter.formatMessage isn't used, it is synchronized.
+        private static String message(LogRecord record) {
+            Object[] parameters = record.getParameters();
+            if (parameters == null || parameters.length == 0) {
+                return record.getMessage();
+            }
+            return MESSAGE_FORMATS.get().computeIfAbsent(record.getMessage(), MessageFormat::new).format(parameters);
+        }
+
+        private static final class FormattedSecond {
+            final long second;
+            final String text;
+
+            FormattedSecond(long second, String text) {
+                this.second = second;
+                this.text = text;
+            }
+        }
+    }
+
+    // Hands log records to a background writer through a lock-free ring, so logging threads never wait for the
+    // console or for each other. The writer formats the records and writes them in batches. A record that doesn't fit
+    // in the ring is dropped instead of blocking, the writer reports how many were dropped.
+    private static class AsyncLogHandler extends Handler {
+        private final RingBuffer<LogRecord> records = new RingBuffer<>(65536);
+        private final AtomicLong dropped = new AtomicLong();
+        private final Thread writer;
+        private volatile boolean idle;
+        private volatile boolean closed;
+
+        AsyncLogHandler() {
+            writer = new Thread(this::write, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            if (closed || !isLoggable(record)) {
+                return;
+            }
+            if (!records.offer(record)) {
+                dropped.incrementAndGet();
+            } else if (idle) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        private void write() {
+            PrintStream out = System.err;
+            StringBuilder batch = new StringBuilder(8192);
+            while (true) {
+                LogRecord record;
+                while (batch.length() < 65536 && (record = records.poll()) != null) {
+                    try {
+                        batch.append(getFormatter().format(record));
+                    } catch (RuntimeException e) {
+                        batch.append("Unable to format log record: ").append(e).append(System.lineSeparator());
+                    }
+                }
+                long droppedRecords = dropped.getAndSet(0);
+                if (droppedRecords > 0) {
+                    batch.append(getFormatter().format(new LogRecord(Level.WARNING,
+                            droppedRecords + " log records dropped, the log writer can't keep up")));
+                }
+                if (batch.length() > 0) {
+                    out.print(batch);
+                    out.flush();
+                    batch.setLength(0);
+                    continue;
+                }
+                if (closed) {
+                    return;
+                }
+                // Checks the ring once more after announcing the wait, a record offered in between unparks the writer
+                idle = true;
+                if ((record = records.poll()) != null) {
+                    idle = false;
+                    batch.append(getFormatter().format(record));
+                    continue;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                idle = false;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        // Called at shutdown by the LogManager, waits for the writer to write what is left in the ring
+        @Override
+        public void close() {
+            closed = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Per message log lines are only logged for one in LOG_MESSAGE_SAMPLE_RATE messages, picked at random so threads
+    // don't share a counter, and only when INFO is enabled. Callers check this before formatting anything.
+    private static boolean sampleMessageLog() {
+        return logger.isLoggable(Level.INFO)
+                && (LOG_MESSAGE_SAMPLE_RATE <= 1 || ThreadLocalRandom.current().nextInt(LOG_MESSAGE_SAMPLE_RATE) == 0);
+    }
+
+    // ======== STARTUP AND RUN LOOP ========
+    private static void dumpConfig() {
+        logger.info("ACTOR_API_HOST: '" + ACTOR_API_HOST + "'");
+        logger.info("ACTOR_API_PORT: '" + ACTOR_API_PORT + "'");
+        logger.info("ACTOR_API_SUBSCRIPTION_SELECTOR: '" + ACTOR_API_SUBSCRIPTION_SELECTOR + "'");
+        logger.info("ACTOR_COMMON_NAME: '" + ACTOR_COMMON_NAME + "'");
+        logger.info("ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM: '" + ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM + "'");
+        logger.info("CA_CERTIFICATE_PEM: '" + CA_CERTIFICATE_PEM + "'");
+        logger.info("RECEIVER_MAX_CREDIT: '" + RECEIVER_MAX_CREDIT + "'");
+        logger.info("MESSAGE_RECEIVE_MODE: '" + MESSAGE_RECEIVE_MODE + "'");
+        logger.info("MESSAGE_CONSUMER_THREADS: '" + MESSAGE_CONSUMER_THREADS + "'");
+        logger.info("ACTOR_API_POLL_INTERVAL: '" + ACTOR_API_POLL_INTERVAL + "'");
+        logger.info("ACTOR_API_CAPABILITY_CHECK: '" + ACTOR_API_CAPABILITY_CHECK + "'");
+        logger.info("MESSAGE_CONSUMER_SELECTORS_JSON: '" + MESSAGE_CONSUMER_SELECTORS_JSON + "'");
+        logger.info("MESSAGE_CONSUMER_QUADTREES_JSON: '" + MESSAGE_CONSUMER_QUADTREES_JSON + "'");
+        logger.info("MESSAGE_LOG_DIR: '" + MESSAGE_LOG_DIR + "'");
+        logger.info("MESSAGE_LOG_RETENTION_MINUTES: '" + MESSAGE_LOG_RETENTION_MINUTES + "'");
+        logger.info("MESSAGE_LOG_REPLAY_MINUTES: '" + MESSAGE_LOG_REPLAY_MINUTES + "'");
+        logger.info("METRICS_PORT: '" + METRICS_PORT + "'");
+        logger.info("MESSAGE_LATENCY_CLOCK_OFFSET_MICROS: '" + MESSAGE_LATENCY_CLOCK_OFFSET_MICROS + "'");
+        logger.info("LOG_MODE: '" + LOG_MODE + "'");
+        logger.info("LOG_MESSAGE_SAMPLE_RATE: '" + LOG_MESSAGE_SAMPLE_RATE + "'");
+    }
+
+    private static void configureLogging() {
+        // Configure console handler, or a background writer when LOG_MODE is "async"
+        Handler handler = "async".equals(LOG_MODE) ? new AsyncLogHandler() : new ConsoleHandler();
+        handler.setLevel(Level.ALL);
+        handler.setFormatter(new LineFormatter());
+
+        // Configure logger
+        logger.setLevel(Level.ALL);
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+
+        // Set Proton library logging to INFO
+        Logger protonLogger = Logger.getLogger("org.apache.qpid.proton");
         protonLogger.setLevel(Level.INFO);
     }
 
@@ -510,11 +4336,19 @@ public class Main {
         dumpConfig();
 
         try {
+            MetricsRegistry.startHttpServer();
             initializeHttpClient();
-            subscribeAndReceive();
+            messageRouter = MessageRouter.fromJson(MESSAGE_CONSUMER_SELECTORS_JSON, MESSAGE_CONSUMER_QUADTREES_JSON);
+            if (MESSAGE_LOG_REPLAY_MINUTES > 0) {
+                replayInboundLog();
+            } else {
+                subscribeAndReceive();
+            }
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Application error", e);
             e.printStackTrace();
+        } finally {
+            MetricsRegistry.stopHttpServer();
         }
 
         logger.info("Application stopped");
@@ -6,6 +6,20 @@ export ACTOR_API_SUBSCRIPTION_SELECTOR="messageType = 'TEST'"
 export ACTOR_COMMON_NAME="example.actor"
 export ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM="/home/user/Downloads/bundle/key_and_certificate.pem"
 export CA_CERTIFICATE_PEM="/home/user/Downloads/bundle/ca.pem"
+export RECEIVER_MAX_CREDIT="1000"
+export MESSAGE_RECEIVE_MODE="decode"
+export MESSAGE_CONSUMER_THREADS="0"
+export ACTOR_API_POLL_INTERVAL="10"
+export ACTOR_API_CAPABILITY_CHECK="true"
+export MESSAGE_CONSUMER_SELECTORS_JSON="{}"
+export MESSAGE_CONSUMER_QUADTREES_JSON="{}"
+export MESSAGE_LOG_DIR=""
+export MESSAGE_LOG_RETENTION_MINUTES="60"
+export MESSAGE_LOG_REPLAY_MINUTES="0"
+export METRICS_PORT="0"
+export MESSAGE_LATENCY_CLOCK_OFFSET_MICROS="0"
+export LOG_MODE="sync"
+export LOG_MESSAGE_SAMPLE_RATE="1"
 
 # Copy certificate files with expected names
 cp "$ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM" chain_and_key.pem
@@ -21,6 +35,20 @@ docker run --rm -it  \
   -e ACTOR_COMMON_NAME="$ACTOR_COMMON_NAME" \
   -e ACTOR_CERTIFICATE_CHAIN_AND_KEY_PEM="chain_and_key.pem" \
   -e CA_CERTIFICATE_PEM="ca.pem" \
+  -e RECEIVER_MAX_CREDIT="$RECEIVER_MAX_CREDIT" \
+  -e MESSAGE_RECEIVE_MODE="$MESSAGE_RECEIVE_MODE" \
+  -e MESSAGE_CONSUMER_THREADS="$MESSAGE_CONSUMER_THREADS" \
+  -e ACTOR_API_POLL_INTERVAL="$ACTOR_API_POLL_INTERVAL" \
+  -e ACTOR_API_CAPABILITY_CHECK="$ACTOR_API_CAPABILITY_CHECK" \
+  -e MESSAGE_CONSUMER_SELECTORS_JSON="$MESSAGE_CONSUMER_SELECTORS_JSON" \
+  -e MESSAGE_CONSUMER_QUADTREES_JSON="$MESSAGE_CONSUMER_QUADTREES_JSON" \
+  -e MESSAGE_LOG_DIR="$MESSAGE_LOG_DIR" \
+  -e MESSAGE_LOG_RETENTION_MINUTES="$MESSAGE_LOG_RETENTION_MINUTES" \
+  -e MESSAGE_LOG_REPLAY_MINUTES="$MESSAGE_LOG_REPLAY_MINUTES" \
+  -e METRICS_PORT="$METRICS_PORT" \
+  -e MESSAGE_LATENCY_CLOCK_OFFSET_MICROS="$MESSAGE_LATENCY_CLOCK_OFFSET_MICROS" \
+  -e LOG_MODE="$LOG_MODE" \
+  -e LOG_MESSAGE_SAMPLE_RATE="$LOG_MESSAGE_SAMPLE_RATE" \
   subscription-example-java
 
 # Clean up